@@ -1,31 +1,49 @@
 package com.ringlord;
 
 import java.awt.Rectangle;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,6 +61,23 @@ import com.ringlord.mime.Base64;
  * in-memory alterations are not accidentally persisted.
  * </p>
  *
+ * <p>
+ * A Config may be read and written from any thread. Readers see an immutable
+ * snapshot of all values, which writers replace atomically (copy-on-write);
+ * several changes that belong together can be applied as one {@link Batch}.
+ * Typed values (numbers, Rectangles, lists, etc.) are parsed once per snapshot
+ * and cached, so that repeated reads cost only a lookup.
+ * </p>
+ *
+ * <p>
+ * Changes are also written to disk in the background once no further changes
+ * have been made for a second. The file is replaced
+ * atomically (written to a temporary file, synced, then renamed), so that
+ * neither a crash nor another reader ever sees it half-written. Changes made to
+ * the file by others are picked up, but only if its content actually differs
+ * from what was last read or written.
+ * </p>
+ *
  * @author K. Udo Schuermann
  * @see Settings
  **/
@@ -59,23 +94,29 @@ public class Config
 
 
   public Config( final File file,
-	         final String commentLine )
+		 final String commentLine )
   {
     super();
     this.file = file;
     this.info = (commentLine == null
 	? "Edit only with great care: If you break it, you get to keep both parts!"
 	: commentLine);
-    load( file,
-	  prefs );
+    final File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    final byte[] content = read( file );
+    contentHash = hash( content );
+    snapshot.set( new Snapshot( parse( content ) ) );
 
+    WatchService ws = null;
     try
       {
-	final WatchService ws = FileSystems.getDefault().newWatchService();
-	final Path parent = file.toPath().getParent();
-	parent.register( ws,
-	                 StandardWatchEventKinds.ENTRY_MODIFY );
-	final Thread updated = new Thread()
+	ws = FileSystems.getDefault().newWatchService();
+	parent.toPath().register( ws,
+				  StandardWatchEventKinds.ENTRY_CREATE,
+				  StandardWatchEventKinds.ENTRY_MODIFY );
+	final WatchService watchService = ws;
+	final Path name = file.toPath().getFileName();
+	final Thread updated = new Thread( "Config watcher: " + file.getName() )
 	{
 	  @Override
 	  public void run()
@@ -85,38 +126,18 @@ public class Config
 	      {
 		try
 		  {
-		    final WatchKey key = ws.take();
+		    final WatchKey key = watchService.take();
 		    for( final WatchEvent<?> event : key.pollEvents() )
 		      {
-			final WatchEvent.Kind<?> kind = event.kind();
-			if( kind == StandardWatchEventKinds.ENTRY_MODIFY )
+			// Other files in the same directory are of no interest
+			if( name.equals( event.context() ) )
 			  {
-			    @SuppressWarnings("unchecked") final Path path = parent.resolve( ((WatchEvent<Path>)event)
-				.context() );
-			    if( path.equals( file.toPath() ) )
-			      {
-				if( wasJustSaved )
-				  {
-				    wasJustSaved = false;
-				    continue;
-				  }
-				final Map<String,String> updatedConfig = new HashMap<>();
-				load( file,
-				      updatedConfig );
-				final boolean isModified = merge( prefs,
-				                                  updatedConfig );
-				if( isModified )
-				  {
-				    isDirty = true;
-				    setChanged();
-				    notifyObservers();
-				  }
-			      }
+			    scheduleReload();
 			  }
 		      }
 		    key.reset();
 		  }
-		catch( final InterruptedException x )
+		catch( final InterruptedException | ClosedWatchServiceException x )
 		  {
 		    break;
 		  }
@@ -130,77 +151,93 @@ public class Config
       {
 	x.printStackTrace( System.err );
       }
+    this.watchService = ws;
   }
 
 
   /**
-   * Merges changes from disk and changes in memory, with awareness of the
-   * original data that was loaded from disk.
-   *
-   *
-   * Entries are modified in memory only if the have not bee
-   *
-   * modified in the updated configuration, which remain unchanged in memory are
-   * updated; Entries modified in the updated
-   *
-   * @param currentConfig
-   * @param updatedConfig
-   * @param originalConfig
+   * Re-reads the file once the burst of events that announced its change is
+   * over (an editor may truncate, write, and touch it several times in a row).
    */
-  private boolean merge( final Map<String,String> currentConfig,
-	                 final Map<String,String> updatedConfig )
+  private void scheduleReload()
   {
-    boolean isModified = false;
-
-    // Add new keys from the updated configuration; update keys whose value has
-    // changed
-    for( final Map.Entry<String,String> e : updatedConfig.entrySet() )
+    synchronized( executor )
       {
-	if( currentConfig.containsKey( e.getKey() ) )
+	if( pendingReload != null )
+	  {
+	    pendingReload.cancel( false );
+	  }
+	try
 	  {
-	    final String updatedValue = e.getValue();
-	    final String currentValue = currentConfig.get( e.getKey() );
-	    if( ((updatedValue == null) && (currentValue != null)) ||
-		((updatedValue != null) && (currentValue == null)) ||
-		!updatedValue.equals( currentValue ) )
+	    pendingReload = executor.schedule( new Runnable()
+	    {
+	      @Override
+	      public void run()
 	      {
-		currentConfig.put( e.getKey(),
-		                   e.getValue() );
-		isModified = true;
+		reload();
 	      }
+	    },
+					       RELOAD_DELAY_MS,
+					       TimeUnit.MILLISECONDS );
 	  }
-	else
+	catch( final RuntimeException x )
 	  {
-	    currentConfig.put( e.getKey(),
-		               e.getValue() );
-	    isModified = true;
+	    // Already closed
 	  }
       }
+  }
 
-    // Remove keys from the current configuration if no longer present in the
-    // updated configuration
-    List<String> toBeRemoved = null;
-    for( final Map.Entry<String,String> e : currentConfig.entrySet() )
+
+  /**
+   * Replaces the values in memory with those updated on disk, unless the file
+   * has the same content as when last read or written. Runs on the executor,
+   * and so never concurrently with a save.
+   */
+  private void reload()
+  {
+    final byte[] content = read( file );
+    final byte[] updatedHash = hash( content );
+    if( Arrays.equals( updatedHash,
+		       contentHash ) )
       {
-	if( !updatedConfig.containsKey( e.getKey() ) )
-	  {
-	    if( toBeRemoved == null )
-	      {
-		toBeRemoved = new ArrayList<>();
-	      }
-	    toBeRemoved.add( e.getKey() );
-	  }
+	return;
+      }
+    contentHash = updatedHash;
+
+    final Map<String,String> updatedConfig = parse( content );
+    if( merge( updatedConfig ) )
+      {
+	// What is in memory is once more what is on disk
+	isDirty = false;
+	setChanged();
+	notifyObservers();
       }
-    if( toBeRemoved != null )
+  }
+
+
+  /**
+   * Replaces the values in memory with those updated on disk, unless they are
+   * the same.
+   *
+   * @param updatedConfig
+   *          The values as they are now on disk.
+   * @return true if the values in memory were changed.
+   */
+  private boolean merge( final Map<String,String> updatedConfig )
+  {
+    while( true )
       {
-	for( final String key : toBeRemoved )
+	final Snapshot current = snapshot.get();
+	if( current.values.equals( updatedConfig ) )
+	  {
+	    return false;
+	  }
+	if( snapshot.compareAndSet( current,
+				    new Snapshot( updatedConfig ) ) )
 	  {
-	    currentConfig.remove( key );
+	    return true;
 	  }
-	isModified = true;
       }
-
-    return isModified;
   }
 
 
@@ -212,28 +249,43 @@ public class Config
 
   public Collection<String> getKeys()
   {
-    final List<String> tmp = new ArrayList<>();
-    tmp.addAll( prefs.keySet() );
-    Collections.sort( tmp );
-    return Collections.unmodifiableList( tmp );
+    return snapshot.get().sortedKeys();
   }
 
 
   /**
-   * Loads the file when the Config is first constructed.
-   *
    * @param file
+   * @return The content of the file, or an empty array if it doesn't exist
+   *         (yet) or can't be read.
    */
-  private void load( final File file,
-	             final Map<String,String> prefs )
+  private static byte[] read( final File file )
   {
-    final File parent = file.getParentFile();
-    if( parent != null )
+    try
+      {
+	return Files.readAllBytes( file.toPath() );
+      }
+    catch( final NoSuchFileException x )
       {
-	parent.mkdirs();
+	// It's fine, we will create it
       }
-    prefs.clear();
-    try( final BufferedReader f = new BufferedReader( new FileReader( file ) ) )
+    catch( final IOException x )
+      {
+	x.printStackTrace();
+      }
+    return new byte[0];
+  }
+
+
+  /**
+   * @param content
+   *          The content of a config file.
+   * @return The values defined in it.
+   */
+  private static Map<String,String> parse( final byte[] content )
+  {
+    final Map<String,String> prefs = new HashMap<>();
+    try( final Reader f = new InputStreamReader( new ByteArrayInputStream( content ),
+						 Charset.defaultCharset() ) )
       {
 	final Properties p = new Properties();
 	p.load( f );
@@ -244,56 +296,110 @@ public class Config
 		       p.getProperty( key ) );
 	  }
       }
-    catch( final FileNotFoundException x )
-      {
-	// It's fine, we will create it
-      }
     catch( final IOException x )
       {
 	x.printStackTrace();
       }
+    return prefs;
   }
 
 
-  private void save( final File file )
+  private static byte[] hash( final byte[] content )
   {
-    wasJustSaved = true; // prevent reload/merge trigger
-    try( final BufferedWriter f = new BufferedWriter( new FileWriter( file ) ) )
+    try
       {
-	final List<String> keys = new ArrayList<>();
-	keys.addAll( prefs.keySet() );
-	Collections.sort( keys );
+	return MessageDigest.getInstance( "SHA-256" ).digest( content );
+      }
+    catch( final NoSuchAlgorithmException x )
+      {
+	// Every Java platform is required to support SHA-256
+	throw new IllegalStateException( x );
+      }
+  }
 
-	final StringTokenizer t = new StringTokenizer( info,
-	                                               "\n\r" );
-	while( t.hasMoreTokens() )
+
+  /**
+   * Writes the current values to a temporary file next to the config file,
+   * forces it to disk, and then moves it into place. Runs on the executor.
+   */
+  private void write()
+  {
+    isDirty = false; // changes made from here on need another save
+    final Snapshot current = snapshot.get();
+
+    final StringBuilder sb = new StringBuilder();
+    final StringTokenizer t = new StringTokenizer( info,
+						   "\n\r" );
+    while( t.hasMoreTokens() )
+      {
+	final String s = t.nextToken();
+	if( !s.startsWith( "#" ) )
 	  {
-	    final String s = t.nextToken();
-	    if( !s.startsWith( "#" ) )
-	      {
-		f.write( "# " );
-	      }
-	    f.write( s );
-	    f.write( EOLN );
+	    sb.append( "# " );
+	  }
+	sb.append( s ).append( EOLN );
+      }
+    sb.append( "# Last written on " ).append( new Date() ).append( EOLN );
+    sb.append( EOLN );
+    for( final String key : current.sortedKeys() )
+      {
+	sb.append( escape( key ) ).append( '=' ).append( escape( current.values.get( key ) ) ).append( EOLN );
+      }
+    sb.append( EOLN );
+    sb.append( "#eot" );
+    sb.append( EOLN );
+    final byte[] content = sb.toString().getBytes( Charset.defaultCharset() );
+
+    final File parent = file.getAbsoluteFile().getParentFile();
+    File temp = null;
+    try
+      {
+	temp = File.createTempFile( "." + file.getName() + "-",
+				    ".tmp",
+				    parent );
+	try( final FileOutputStream f = new FileOutputStream( temp ) )
+	  {
+	    f.write( content );
+	    f.getChannel().force( true );
 	  }
-	f.write( "# Last written on " + new Date() + EOLN );
-	f.write( EOLN );
-	for( final String key : keys )
+	// The watcher will see this, but reload() will recognize the content
+	contentHash = hash( content );
+	try
 	  {
-	    f.write( escape( key ) + "=" + escape( prefs.get( key ) ) + EOLN );
+	    Files.move( temp.toPath(),
+			file.toPath(),
+			StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING );
 	  }
-	f.write( EOLN );
-	f.write( "#eot" );
-	f.write( EOLN );
-	f.flush();
+	catch( final AtomicMoveNotSupportedException x )
+	  {
+	    Files.move( temp.toPath(),
+			file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING );
+	  }
+	temp = null;
+      }
+    catch( final ClosedChannelException x )
+      {
+	isDirty = true;
+	Logger.getGlobal().log( Level.SEVERE,
+				"Interrupted while saving config to file " + file,
+				x );
       }
     catch( final IOException x )
       {
+	isDirty = true;
 	Logger.getGlobal().log( Level.SEVERE,
-	                        "Failed to save config to file " + file,
-	                        x );
+				"Failed to save config to file " + file,
+				x );
+      }
+    finally
+      {
+	if( temp != null )
+	  {
+	    temp.delete();
+	  }
       }
-    isDirty = false;
     setChanged();
     notifyObservers();
   }
@@ -305,11 +411,81 @@ public class Config
   }
 
 
+  /**
+   * Writes any unsaved changes now (or creates the file if it doesn't exist
+   * yet), and waits until that is done.
+   */
   public void save()
   {
     if( isDirty || !file.exists() )
       {
-	save( file );
+	final Future<?> f;
+	synchronized( executor )
+	  {
+	    if( pendingSave != null )
+	      {
+		pendingSave.cancel( false );
+		pendingSave = null;
+	      }
+	    f = executor.submit( new Runnable()
+	    {
+	      @Override
+	      public void run()
+	      {
+		write();
+	      }
+	    } );
+	  }
+	try
+	  {
+	    f.get();
+	  }
+	catch( final InterruptedException x )
+	  {
+	    Thread.currentThread().interrupt();
+	  }
+	catch( final ExecutionException x )
+	  {
+	    Logger.getGlobal().log( Level.SEVERE,
+				    "Failed to save config to file " + file,
+				    x.getCause() );
+	  }
+      }
+  }
+
+
+  /**
+   * Saves the changes in the background once there have been no further
+   * changes for {@link #SAVE_DELAY_MS} milliseconds.
+   */
+  private void scheduleSave()
+  {
+    synchronized( executor )
+      {
+	if( pendingSave != null )
+	  {
+	    pendingSave.cancel( false );
+	  }
+	try
+	  {
+	    pendingSave = executor.schedule( new Runnable()
+	    {
+	      @Override
+	      public void run()
+	      {
+		if( isDirty )
+		  {
+		    write();
+		  }
+	      }
+	    },
+					     SAVE_DELAY_MS,
+					     TimeUnit.MILLISECONDS );
+	  }
+	catch( final RuntimeException x )
+	  {
+	    // Already closed; close() saves whatever was changed
+	  }
       }
   }
 
@@ -318,13 +494,18 @@ public class Config
 
   public void reset()
   {
-    load( file,
-	  prefs );
+    final byte[] content = read( file );
+    contentHash = hash( content );
+    snapshot.set( new Snapshot( parse( content ) ) );
+    isDirty = false;
     setChanged();
     notifyObservers();
   }
 
 
+  /**
+   * Writes any unsaved changes (synchronously) and stops watching the file.
+   */
   @Override
   public void close()
     throws IOException
@@ -333,6 +514,109 @@ public class Config
       {
 	save();
       }
+    isReady = false;
+    synchronized( executor )
+      {
+	executor.shutdown();
+      }
+    if( watchService != null )
+      {
+	watchService.close();
+      }
+  }
+
+
+
+
+  // ======================================================================
+
+  /**
+   * Begins a set of changes that are to be applied together: readers will see
+   * either none or all of them.
+   *
+   * @return A new, empty Batch.
+   */
+  public Batch edit()
+  {
+    return new Batch();
+  }
+
+
+  /**
+   * A set of changes to be {@link #apply() applied} to the Config atomically.
+   */
+  public class Batch
+  {
+    /**
+     * @param key
+     * @param value
+     *          The new value, or null to remove the key.
+     * @return This Batch, for convenience.
+     */
+    public Batch put( final String key,
+		      final String value )
+    {
+      changes.put( key,
+		   value );
+      return this;
+    }
+
+
+    public Batch remove( final String key )
+    {
+      return put( key,
+		  null );
+    }
+
+
+    /**
+     * Publishes a new snapshot with all of the changes in this Batch.
+     */
+    public void apply()
+    {
+      while( true )
+	{
+	  final Snapshot current = snapshot.get();
+	  final Map<String,String> values = new HashMap<>( current.values );
+	  for( final Map.Entry<String,String> e : changes.entrySet() )
+	    {
+	      if( e.getValue() == null )
+		{
+		  values.remove( e.getKey() );
+		}
+	      else
+		{
+		  values.put( e.getKey(),
+			      e.getValue() );
+		}
+	    }
+	  if( snapshot.compareAndSet( current,
+				      new Snapshot( values ) ) )
+	    {
+	      break;
+	    }
+	}
+      isDirty = true;
+      setChanged();
+      scheduleSave();
+    }
+
+    private final Map<String,String> changes = new LinkedHashMap<>();
+  }
+
+
+  /**
+   * Changes a single value.
+   *
+   * @param key
+   * @param value
+   *          The new value, or null to remove the key.
+   */
+  private void set( final String key,
+		    final String value )
+  {
+    edit().put( key,
+		value ).apply();
   }
 
 
@@ -346,27 +630,27 @@ public class Config
    * @param value
    */
   public void put( final String baseKey,
-	           final List<String> values )
+		   final List<String> values )
   {
+    final Batch batch = edit();
     int n = 0;
     for( final String val : values )
       {
-	put( baseKey + "." + (n++),
-	     val );
+	batch.put( baseKey + "." + (n++),
+		   val );
       }
     // Now remove all sequentially numbered keys beyond the size of this list
+    final Map<String,String> current = snapshot.get().values;
     while( true )
       {
 	final String k = baseKey + "." + (n++);
-	if( get( k,
-	         (String)null ) == null )
+	if( !current.containsKey( k ) )
 	  {
 	    break;
 	  }
-	put( k,
-	     (String)null );
+	batch.remove( k );
       }
-    setChanged();
+    batch.apply();
   }
 
 
@@ -379,27 +663,35 @@ public class Config
    * @return
    */
   public List<String> get( final String baseKey,
-	                   final List<String> defaultValues )
+			   final List<String> defaultValues )
   {
-    List<String> result = null;
-    int n = 0;
-    while( true )
+    final Snapshot current = snapshot.get();
+    Object result = current.series.get( baseKey );
+    if( result == null )
       {
-	final String val = get( baseKey + "." + (n++),
-	                        (String)null );
-	if( val == null )
+	List<String> list = null;
+	int n = 0;
+	while( true )
 	  {
-	    break;
-	  }
-	if( result == null )
-	  {
-	    result = new ArrayList<>();
+	    final String val = current.values.get( baseKey + "." + (n++) );
+	    if( val == null )
+	      {
+		break;
+	      }
+	    if( list == null )
+	      {
+		list = new ArrayList<>();
+	      }
+	    list.add( val );
 	  }
-	result.add( val );
+	result = (list == null
+	    ? INVALID
+	    : Collections.unmodifiableList( list ));
+	current.series.put( baseKey,
+			    result );
       }
-    return (result == null
-	? defaultValues
-	: result);
+    return valueOr( result,
+		    defaultValues );
   }
 
 
@@ -415,12 +707,13 @@ public class Config
    * @param separator
    */
   public void put( final String key,
-	           final List<String> value,
-	           final String separator )
+		   final List<String> value,
+		   final String separator )
   {
     if( value == null )
       {
-	prefs.remove( key );
+	set( key,
+	     null );
       }
     else
       {
@@ -453,15 +746,16 @@ public class Config
 		  {
 		    sb.append( "," );
 		  }
-		final byte[] bytes = Base64.encode( s.getBytes( utf8 ) );
-		sb.append( new String( bytes ) );
+		final byte[] bytes = s.getBytes( utf8 );
+		Base64.appendTo( sb,
+				 bytes,
+				 0,
+				 bytes.length );
 	      }
 	  }
-	prefs.put( key,
-	           sb.toString() );
+	set( key,
+	     sb.toString() );
       }
-    isDirty = true;
-    setChanged();
   }
 
 
@@ -478,74 +772,85 @@ public class Config
    *          separated with commas, otherwise the separator (which may be
    *          anything, including newline or even multiple characters) is used
    *          to break the value into multiple items.
-   * @return
+   * @return An unmodifiable List
    */
   public List<String> get( final String key,
-	                   final List<String> defaultValue,
-	                   final String separator )
+			   final List<String> defaultValue,
+			   final String separator )
   {
-    final String tmp = prefs.get( key );
-    if( (tmp == null) || (tmp.length() == 0) )
+    final Snapshot current = snapshot.get();
+    final String sep = (separator == null
+	? ""
+	: separator);
+    final SeparatedList cached = current.lists.get( key );
+    if( (cached != null) && cached.separator.equals( sep ) )
       {
-	return defaultValue;
+	return valueOr( cached.items,
+			defaultValue );
       }
-    final List<String> result = new ArrayList<>();
-    int start = 0;
-    int pos;
-    if( (separator != null) && (separator.length() > 0) )
+
+    final String tmp = current.values.get( key );
+    Object items;
+    if( (tmp == null) || (tmp.length() == 0) )
       {
-	final int len = separator.length();
-	while( (pos = tmp.indexOf( separator,
-	                           start )) > -1 )
-	  {
-	    result.add( tmp.substring( start,
-		                       pos ) );
-	    start = pos + len;
-	  }
-	result.add( tmp.substring( start ) );
+	items = INVALID;
       }
     else
       {
-	while( (pos = tmp.indexOf( ",",
-	                           start )) > -1 )
+	final List<String> result = new ArrayList<>();
+	int start = 0;
+	int pos;
+	if( sep.length() > 0 )
+	  {
+	    final int len = sep.length();
+	    while( (pos = tmp.indexOf( sep,
+				       start )) > -1 )
+	      {
+		result.add( tmp.substring( start,
+					   pos ) );
+		start = pos + len;
+	      }
+	    result.add( tmp.substring( start ) );
+	  }
+	else
 	  {
-	    final byte[] bytes = Base64.decode( tmp.substring( start,
-		                                               pos ).getBytes() );
+	    while( (pos = tmp.indexOf( ",",
+				       start )) > -1 )
+	      {
+		final byte[] bytes = Base64.decode( tmp.substring( start,
+								   pos ).getBytes() );
+		result.add( new String( bytes,
+					utf8 ) );
+		start = pos + 1;
+	      }
+	    final byte[] bytes = Base64.decode( tmp.substring( start ).getBytes() );
 	    result.add( new String( bytes,
-		                    utf8 ) );
-	    start = pos + 1;
+				    utf8 ) );
 	  }
-	final byte[] bytes = Base64.decode( tmp.substring( start ).getBytes() );
-	result.add( new String( bytes,
-	                        utf8 ) );
+	items = Collections.unmodifiableList( result );
       }
-    return result;
+    current.lists.put( key,
+		       new SeparatedList( sep,
+					  items ) );
+    return valueOr( items,
+		    defaultValue );
   }
 
 
   // ======================================================================
 
   public void put( final String key,
-	           final String value )
+		   final String value )
   {
-    if( value == null )
-      {
-	prefs.remove( key );
-      }
-    else
-      {
-	prefs.put( key,
-	           value );
-      }
-    isDirty = true;
-    setChanged();
+    set( key,
+	 value );
   }
 
 
   public String get( final String key,
-	             final String defaultValue )
+		     final String defaultValue )
   {
-    final String value = prefs.get( key );
+    final String value = snapshot.get().values.get( key );
     return (value == null
 	? defaultValue
 	: value);
@@ -554,29 +859,40 @@ public class Config
 
   // ======================================================================
   public void put( final String key,
-	           final Rectangle rect )
+		   final Rectangle rect )
   {
-    if( rect == null )
-      {
-	prefs.remove( key );
-      }
-    else
+    set( key,
+	 (rect == null
+	     ? null
+	     : rect.x + "," + rect.y + "," + rect.width + "," + rect.height) );
+  }
+
+
+  /**
+   * @return A copy of the (cached) Rectangle, which the caller may modify.
+   */
+  public Rectangle get( final String key,
+			final Rectangle defaultValue )
+  {
+    final Snapshot current = snapshot.get();
+    Object cached = current.rectangles.get( key );
+    if( cached == null )
       {
-	prefs.put( key,
-	           rect.x + "," + rect.y + "," + rect.width + "," + rect.height );
+	cached = parseRectangle( current.values.get( key ) );
+	current.rectangles.put( key,
+				cached );
       }
-    isDirty = true;
-    setChanged();
+    return (cached == INVALID
+	? defaultValue
+	: new Rectangle( (Rectangle)cached ));
   }
 
 
-  public Rectangle get( final String key,
-	                final Rectangle defaultValue )
+  private static Object parseRectangle( final String value )
   {
-    final String value = prefs.get( key );
     if( value == null )
       {
-	return defaultValue;
+	return INVALID;
       }
 
     try
@@ -585,173 +901,186 @@ public class Config
 
 	comma = value.indexOf( ',' );
 	final int x = Integer.parseInt( value.substring( 0,
-	                                                 comma ) );
+							 comma ) );
 
 	prev = comma + 1;
 	comma = value.indexOf( ',',
-	                       prev );
+			       prev );
 	final int y = Integer.parseInt( value.substring( prev,
-	                                                 comma ) );
+							 comma ) );
 
 	prev = comma + 1;
 	comma = value.indexOf( ',',
-	                       prev );
+			       prev );
 	final int w = Integer.parseInt( value.substring( prev,
-	                                                 comma ) );
+							 comma ) );
 
 	prev = comma + 1;
 	final int h = Integer.parseInt( value.substring( prev ) );
 
 	return new Rectangle( x,
-	                      y,
-	                      w,
-	                      h );
+			      y,
+			      w,
+			      h );
       }
     catch( final Exception x )
       {
 	x.printStackTrace();
-	return defaultValue;
+	return INVALID;
       }
   }
 
 
   // ======================================================================
   public void put( final String key,
-	           final Boolean value )
+		   final Boolean value )
   {
-    if( value == null )
-      {
-	prefs.remove( key );
-      }
-    else
-      {
-	prefs.put( key,
-	           String.valueOf( value ) );
-      }
-    isDirty = true;
-    setChanged();
+    set( key,
+	 (value == null
+	     ? null
+	     : String.valueOf( value )) );
   }
 
 
   public boolean get( final String key,
-	              final boolean defaultValue )
+		      final boolean defaultValue )
   {
-    try
+    final Snapshot current = snapshot.get();
+    Object cached = current.booleans.get( key );
+    if( cached == null )
       {
-	final String s = prefs.get( key );
-	if( s == null )
-	  {
-	    return defaultValue;
-	  }
-	return Boolean.parseBoolean( s );
-      }
-    catch( final NullPointerException x )
-      {
-	return defaultValue;
+	final String s = current.values.get( key );
+	cached = (s == null
+	    ? INVALID
+	    : Boolean.valueOf( s ));
+	current.booleans.put( key,
+			      cached );
       }
+    return (cached == INVALID
+	? defaultValue
+	: (Boolean)cached);
   }
 
 
   // ======================================================================
   public void put( final String key,
-	           final Double value )
+		   final Double value )
   {
-    if( value == null )
-      {
-	prefs.remove( key );
-      }
-    else
-      {
-	prefs.put( key,
-	           String.valueOf( value ) );
-      }
-    isDirty = true;
-    setChanged();
+    set( key,
+	 (value == null
+	     ? null
+	     : String.valueOf( value )) );
   }
 
 
   public double get( final String key,
-	             final double defaultValue )
+		     final double defaultValue )
   {
-    try
+    final Snapshot current = snapshot.get();
+    Object cached = current.doubles.get( key );
+    if( cached == null )
       {
-	return Double.parseDouble( prefs.get( key ) );
-      }
-    catch( NullPointerException | NumberFormatException x )
-      {
-	return defaultValue;
+	try
+	  {
+	    cached = Double.valueOf( current.values.get( key ) );
+	  }
+	catch( NullPointerException | NumberFormatException x )
+	  {
+	    cached = INVALID;
+	  }
+	current.doubles.put( key,
+			     cached );
       }
+    return (cached == INVALID
+	? defaultValue
+	: (Double)cached);
   }
 
 
   // ======================================================================
 
   public void put( final String key,
-	           final Long value )
+		   final Long value )
   {
-    if( value == null )
-      {
-	prefs.remove( key );
-      }
-    else
-      {
-	prefs.put( key,
-	           String.valueOf( value ) );
-      }
-    isDirty = true;
-    setChanged();
+    set( key,
+	 (value == null
+	     ? null
+	     : String.valueOf( value )) );
   }
 
 
   public long get( final String key,
-	           final long defaultValue )
+		   final long defaultValue )
   {
-    try
+    final Snapshot current = snapshot.get();
+    Object cached = current.longs.get( key );
+    if( cached == null )
       {
-	return Long.parseLong( prefs.get( key ) );
-      }
-    catch( NullPointerException | NumberFormatException x )
-      {
-	return defaultValue;
+	try
+	  {
+	    cached = Long.valueOf( current.values.get( key ) );
+	  }
+	catch( final NumberFormatException x )
+	  {
+	    cached = INVALID;
+	  }
+	current.longs.put( key,
+			   cached );
       }
+    return (cached == INVALID
+	? defaultValue
+	: (Long)cached);
   }
 
 
   // ======================================================================
 
   public void put( final String key,
-	           final Integer value )
+		   final Integer value )
   {
-    if( value == null )
-      {
-	prefs.remove( key );
-      }
-    else
-      {
-	prefs.put( key,
-	           String.valueOf( value ) );
-      }
-    isDirty = true;
-    setChanged();
+    set( key,
+	 (value == null
+	     ? null
+	     : String.valueOf( value )) );
   }
 
 
   public int get( final String key,
-	          final int defaultValue )
+		  final int defaultValue )
   {
-    try
-      {
-	return Integer.parseInt( prefs.get( key ) );
-      }
-    catch( NullPointerException | NumberFormatException x )
+    final Snapshot current = snapshot.get();
+    Object cached = current.ints.get( key );
+    if( cached == null )
       {
-	return defaultValue;
+	try
+	  {
+	    cached = Integer.valueOf( current.values.get( key ) );
+	  }
+	catch( final NumberFormatException x )
+	  {
+	    cached = INVALID;
+	  }
+	current.ints.put( key,
+			  cached );
       }
+    return (cached == INVALID
+	? defaultValue
+	: (Integer)cached);
   }
 
 
   // ======================================================================
 
+  @SuppressWarnings("unchecked")
+  private static <T> T valueOr( final Object cached,
+				final T defaultValue )
+  {
+    return (cached == INVALID
+	? defaultValue
+	: (T)cached);
+  }
+
+
   private static String escape( final String s )
   {
     final StringBuilder sb = new StringBuilder();
@@ -785,14 +1114,85 @@ public class Config
     return sb.toString();
   }
 
-  private boolean isDirty;
+
+  /**
+   * An immutable set of values, plus the typed values parsed from them so far.
+   * The caches only ever fill in values that follow from the (unchanging)
+   * strings, so sharing them between threads is harmless.
+   */
+  private static final class Snapshot
+  {
+    Snapshot( final Map<String,String> values )
+    {
+      this.values = Collections.unmodifiableMap( new HashMap<>( values ) );
+    }
+
+
+    Collection<String> sortedKeys()
+    {
+      Collection<String> result = keys;
+      if( result == null )
+	{
+	  final List<String> tmp = new ArrayList<>( values.keySet() );
+	  Collections.sort( tmp );
+	  keys = result = Collections.unmodifiableList( tmp );
+	}
+      return result;
+    }
+
+    final Map<String,String> values;
+    final Map<String,Object> ints = new ConcurrentHashMap<>();
+    final Map<String,Object> longs = new ConcurrentHashMap<>();
+    final Map<String,Object> doubles = new ConcurrentHashMap<>();
+    final Map<String,Object> booleans = new ConcurrentHashMap<>();
+    final Map<String,Object> rectangles = new ConcurrentHashMap<>();
+    final Map<String,Object> series = new ConcurrentHashMap<>();
+    final Map<String,SeparatedList> lists = new ConcurrentHashMap<>();
+    private volatile Collection<String> keys;
+  }
+
+
+  /**
+   * A parsed list value, and the separator it was parsed with.
+   */
+  private static final class SeparatedList
+  {
+    SeparatedList( final String separator,
+		   final Object items )
+    {
+      this.separator = separator;
+      this.items = items;
+    }
+
+    final String separator;
+    final Object items;
+  }
+
+  private volatile boolean isDirty;
   private volatile boolean isReady;
-  private volatile boolean wasJustSaved;
+  private volatile byte[] contentHash; // of the file as last read or written
+  private ScheduledFuture<?> pendingSave; // guarded by executor
+  private ScheduledFuture<?> pendingReload; // guarded by executor
   //
   private final File file;
   private final String info;
-  private final Map<String,String> prefs = new HashMap<>();
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+  private final WatchService watchService;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+				   "Config writer: " + file.getName() );
+      t.setDaemon( true );
+      return t;
+    }
+  } );
   //
+  private static final long SAVE_DELAY_MS = 1000;
+  private static final long RELOAD_DELAY_MS = 250;
+  private static final Object INVALID = new Object(); // cached "no such value"
   private static final Charset utf8 = Charset.forName( "UTF-8" );
   private static final String EOLN = System.getProperty( "line.separator" );
 }
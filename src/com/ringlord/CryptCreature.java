@@ -10,8 +10,10 @@ import java.util.logging.Logger;
 import javax.swing.SwingUtilities;
 
 import com.ringlord.cryptcreature.GUI;
-import com.ringlord.logging.LogFileHandler;
+import com.ringlord.logging.AsyncHandler;
+import com.ringlord.logging.CompressingLogFileHandler;
 import com.ringlord.logging.LogFormatter;
+import com.ringlord.logging.LogThrottle;
 
 
 public class CryptCreature
@@ -59,12 +61,18 @@ public class CryptCreature
       {
         if( loggingDir.isDirectory() )
           {
-            final Handler handler = new LogFileHandler( loggingDir,
-                                                        "cryptcreature-%u%g.log",
-                                                        1024 * 1024,
-                                                        10 );
+            // Rotated generations are gzipped in the background and kept up
+            // to a total of 10MB (compressed)
+            final Handler handler = new CompressingLogFileHandler( loggingDir,
+                                                                   "cryptcreature",
+                                                                   1024 * 1024,
+                                                                   10 * 1024 * 1024 );
             handler.setFormatter( new LogFormatter() );
-            logger.addHandler( handler );
+            // Keep formatting and disk I/O off the (crypto) worker threads,
+            // and collapse repetitive messages before they get that far
+            final AsyncHandler asyncHandler = new AsyncHandler( handler );
+            asyncHandler.setFilter( new LogThrottle( asyncHandler ) );
+            logger.addHandler( asyncHandler );
           }
         else
           {
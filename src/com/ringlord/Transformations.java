@@ -1,27 +1,119 @@
 package com.ringlord;
 
+import java.nio.charset.Charset;
+
+
 public class Transformations
 {
+  /**
+   * Renders bytes as hexadecimal digits, with a space after every 2 bytes and
+   * two spaces after every 8 bytes, such as "0123 4567 89ab cdef  0011 2233".
+   *
+   * @param bytes
+   *          The bytes to render (may be null).
+   * @return The hexadecimal rendering, which is empty for null or no bytes.
+   */
   public static String toString( final byte[] bytes )
   {
-    final StringBuilder sb = new StringBuilder();
-    if( bytes != null )
+    if( (bytes == null) || (bytes.length == 0) )
       {
-        for( int i = 0; i < bytes.length; i++ )
+        return "";
+      }
+    return new String( toChars( bytes ) );
+  }
+
+
+  /**
+   * Renders bytes as hexadecimal digits into a presized char[], grouped in the
+   * same manner as {@link #toString(byte[])}.
+   *
+   * @param bytes
+   *          The bytes to render.
+   * @return The hexadecimal rendering.
+   */
+  public static char[] toChars( final byte[] bytes )
+  {
+    final int n = bytes.length;
+    final int gaps = Math.max( 0,
+                               n - 1 );
+    final char[] result = new char[(2 * n) + (gaps / 2) + (gaps / 8)];
+    int pos = 0;
+    for( int i = 0; i < n; i++ )
+      {
+        final int b = bytes[i];
+        result[pos++] = HEX[(b >> 4) & 0x0f];
+        result[pos++] = HEX[b & 0x0f];
+        if( i + 1 < n )
           {
-            sb.append( String.format( "%02x",
-                                      bytes[i] ) );
             if( (i + 1) % 8 == 0 )
               {
-                sb.append( "  " );
+                result[pos++] = ' ';
+                result[pos++] = ' ';
               }
             else if( (i + 1) % 2 == 0 )
               {
-                sb.append( " " );
+                result[pos++] = ' ';
               }
           }
       }
-    return sb.toString().trim();
+    return result;
+  }
+
+
+  /**
+   * Defers the hexadecimal rendering of bytes until (and unless) it is actually
+   * needed. Pass the result as a parameter to a log message, for example
+   *
+   * <pre>
+   * logger.log( Level.INFO,
+   *             &quot;Cipher Text = {0}&quot;,
+   *             Transformations.lazyString( cipherText ) );
+   * </pre>
+   *
+   * and the rendering happens only if the log record is published and
+   * formatted. The bytes are referenced, not copied, so they must not be
+   * modified afterwards.
+   *
+   * @param bytes
+   *          The bytes to render (may be null).
+   * @return An object whose {@link Object#toString()} yields
+   *         {@link #toString(byte[])} of the bytes.
+   */
+  public static Object lazyString( final byte[] bytes )
+  {
+    return new Object()
+    {
+      @Override
+      public String toString()
+      {
+        return Transformations.toString( bytes );
+      }
+    };
+  }
+
+
+  /**
+   * Like {@link #lazyString(byte[])}, but defers decoding the bytes as text in
+   * the given character set, rather than rendering them in hexadecimal.
+   *
+   * @param bytes
+   *          The bytes to decode.
+   * @param charset
+   *          The character set of the text.
+   * @return An object whose {@link Object#toString()} yields the text.
+   */
+  public static Object lazyString( final byte[] bytes,
+                                   final Charset charset )
+  {
+    return new Object()
+    {
+      @Override
+      public String toString()
+      {
+        return new String( bytes,
+                           charset );
+      }
+    };
   }
 
 
@@ -54,4 +146,6 @@ public class Transformations
   private Transformations()
   {
   }
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
 }
@@ -1,18 +1,33 @@
 package com.ringlord.cryptcreature;
 
 import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 
 
 /**
+ * <p>
  * Seeks to discover and expose the valid algorithms and parameters.
+ * </p>
+ *
+ * <p>
+ * Discovery involves trying out every combination of algorithm, mode, padding,
+ * and key size, which takes a while; it therefore runs in the background, and
+ * the static methods report only what has been discovered so far. Interested
+ * parties can {@link #addListener(Listener) listen} for discoveries as they are
+ * made.
+ * </p>
  *
  * @author kusch211
  */
@@ -20,14 +35,104 @@ public class Algorithm
   implements
     Comparable<Algorithm>
 {
-  public static synchronized Algorithm[] all()
+  /**
+   * Receives the algorithms as they are discovered. The methods are called on
+   * the discovering (background) thread.
+   */
+  public interface Listener
+  {
+    /**
+     * @param algorithm
+     *          A newly discovered algorithm, complete with its key sizes.
+     */
+    void discovered( Algorithm algorithm );
+
+
+    /**
+     * Discovery is complete: There will be no further algorithms.
+     */
+    void finished();
+  }
+
+
+  public static Algorithm[] all()
   {
-    final Algorithm[] defensiveCopy = new Algorithm[all.length];
-    for( int i = 0; i < all.length; i++ )
+    final Algorithm[] defensiveCopy = new Algorithm[all.size()];
+    return all.toArray( defensiveCopy );
+  }
+
+
+  /**
+   * Starts the discovery (unless it has been started before), and registers a
+   * Listener which is first told about everything discovered so far, and then
+   * about each later discovery.
+   *
+   * @param l
+   *          The Listener.
+   */
+  public static void addListener( final Listener l )
+  {
+    synchronized( listeners )
       {
-        defensiveCopy[i] = all[i];
+        for( final Algorithm a : all )
+          {
+            l.discovered( a );
+          }
+        if( isComplete )
+          {
+            l.finished();
+          }
+        else
+          {
+            listeners.add( l );
+          }
       }
-    return defensiveCopy;
+    start();
+  }
+
+
+  public static void removeListener( final Listener l )
+  {
+    synchronized( listeners )
+      {
+        listeners.remove( l );
+      }
+  }
+
+
+  /**
+   * @return true once all algorithms have been discovered.
+   */
+  public static boolean isComplete()
+  {
+    return isComplete;
+  }
+
+
+  /**
+   * Starts the discovery of algorithms in the background, unless that has
+   * already happened.
+   */
+  public static void start()
+  {
+    synchronized( listeners )
+      {
+        if( isStarted )
+          {
+            return;
+          }
+        isStarted = true;
+      }
+    final Thread t = new Thread( "Algorithm discovery" )
+    {
+      @Override
+      public void run()
+      {
+        discover();
+      }
+    };
+    t.setDaemon( true );
+    t.start();
   }
 
 
@@ -129,6 +234,58 @@ public class Algorithm
   }
 
 
+  /**
+   * @return true for an authenticated mode (GCM, or ChaCha20-Poly1305), whose
+   *         Cipher appends a {@link #tagLength() tag} to the cipher text, and
+   *         refuses to decipher if the tag does not verify.
+   */
+  public boolean isAuthenticated()
+  {
+    return GCM.equals( mode ) || POLY1305.equals( mode );
+  }
+
+
+  /**
+   * @return The length in bytes of the authentication tag, or 0 if the mode is
+   *         not {@link #isAuthenticated() authenticated}.
+   */
+  public int tagLength()
+  {
+    return (isAuthenticated()
+        ? TAG_LENGTH
+        : 0);
+  }
+
+
+  /**
+   * @return The length in bytes of the init vector that the mode prefers, or 0
+   *         if any length will do (such as the block size).
+   */
+  public int initVectorLength()
+  {
+    return (isAuthenticated()
+        ? AEAD_NONCE_LENGTH
+        : 0);
+  }
+
+
+  /**
+   * @param initVector
+   *          The init vector (or nonce).
+   * @return The parameters with which to initialize the Cipher.
+   */
+  public AlgorithmParameterSpec parameterSpec( final byte[] initVector )
+  {
+    if( GCM.equals( mode ) )
+      {
+        return new GCMParameterSpec( 8 * TAG_LENGTH,
+                                     initVector );
+      }
+    // ChaCha20-Poly1305 takes its nonce as an IvParameterSpec, too
+    return new IvParameterSpec( initVector );
+  }
+
+
   public int[] keySizes()
   {
     final int[] defensiveCopy = new int[keySizes.size()];
@@ -143,6 +300,12 @@ public class Algorithm
 
   public String spec()
   {
+    if( POLY1305.equals( mode ) )
+      {
+        // The authenticated form of a stream cipher has a name of its own,
+        // and no mode of operation
+        return name + "-" + mode + "/None/" + padding;
+      }
     return name + "/" + mode + "/" + padding;
   }
 
@@ -186,6 +349,108 @@ public class Algorithm
     this.requireInitVector = requireInitVector;
   }
 
+  private static void discover()
+  {
+    final Logger logger = Logger.getLogger( java.util.logging.Logger.GLOBAL_LOGGER_NAME );
+    final long start = System.currentTimeMillis();
+    for( final String name : new String[]{"AES","Blowfish","ChaCha20","DES","DESede","RSA"} )
+      {
+        for( final String mode : new String[]{GCM,POLY1305,"PFB","PCBC","CFB","OFB","CTR","CBC","ECB"} )
+          {
+            final boolean requireIV = !"ECB".equals( mode );
+            for( final String padding : new String[]{"NoPadding",
+                                                     "PKCS1Padding",
+                                                     "PKCS2Padding",
+                                                     "PKCS5Padding",
+                                                     "OAEPWithSHA-1AndMGF1Padding",
+                                                     "OAEPWithSHA-256AndMGF1Padding"} )
+              {
+                try
+                  {
+                    final Algorithm a = new Algorithm( name,
+                                                       mode,
+                                                       padding,
+                                                       requireIV );
+                    final Cipher c = Cipher.getInstance( a.spec() );
+                    // The algorithm, mode, and padding seem to be
+                    // understood
+
+                    for( final int keySize : new int[]{32,
+                                                       56,
+                                                       64,
+                                                       96,
+                                                       112,
+                                                       128,
+                                                       168,
+                                                       192,
+                                                       256,
+                                                       320,
+                                                       384,
+                                                       448,
+                                                       512,
+                                                       1024,
+                                                       2048,
+                                                       3072,
+                                                       4096} )
+                      {
+                        try
+                          {
+                            final KeyGenerator keyGenerator = KeyGenerator.getInstance( a.name() );
+                            keyGenerator.init( keySize );
+                            final Key key = keyGenerator.generateKey();
+                            // This key size seems to be understood
+
+                            c.init( Cipher.ENCRYPT_MODE,
+                                    key );
+                            c.doFinal( TEST_BYTES );
+                            a.keySizes.add( keySize );
+                          }
+                        catch( final Throwable x )
+                          {
+                            logger.info( name +
+                                         "/" +
+                                         mode +
+                                         "/" +
+                                         padding +
+                                         " size=" +
+                                         keySize +
+                                         " ==> " +
+                                         x.getMessage() );
+                          }
+                      }
+                    if( a.keySizes.size() > 0 )
+                      {
+                        synchronized( listeners )
+                          {
+                            all.add( a );
+                            for( final Listener l : listeners )
+                              {
+                                l.discovered( a );
+                              }
+                          }
+                      }
+                  }
+                catch( final Throwable x )
+                  {
+                    logger.fine( name + "/" + mode + "/" + padding + " ==> " + x.getMessage() );
+                  }
+              }
+          }
+      }
+    logger.log( Level.INFO,
+                "Discovered {0} algorithms in {1}ms",
+                new Object[]{all.size(),System.currentTimeMillis() - start} );
+    synchronized( listeners )
+      {
+        isComplete = true;
+        for( final Listener l : listeners )
+          {
+            l.finished();
+          }
+        listeners.clear();
+      }
+  }
+
   private final String name;
   private final String mode;
   private final String padding;
@@ -193,93 +458,12 @@ public class Algorithm
   private final List<Integer> keySizes = new ArrayList<>();
   //
   private static final byte[] TEST_BYTES = "Testing!".getBytes();
-  private static final Algorithm[] all;
-  static
-    {
-      final Logger logger = Logger.getLogger( java.util.logging.Logger.GLOBAL_LOGGER_NAME );
-      final List<Algorithm> result = new ArrayList<>();
-      for( final String name : new String[]{"AES","Blowfish","DES","DESede","RSA"} )
-        {
-          for( final String mode : new String[]{"PFB","PCBC","CFB","OFB","CTR","CBC","ECB"} )
-            {
-              final boolean requireIV = !"ECB".equals( mode );
-              for( final String padding : new String[]{"NoPadding",
-                                                       "PKCS1Padding",
-                                                       "PKCS2Padding",
-                                                       "PKCS5Padding",
-                                                       "OAEPWithSHA-1AndMGF1Padding",
-                                                       "OAEPWithSHA-256AndMGF1Padding"} )
-                {
-                  try
-                    {
-                      final Algorithm a = new Algorithm( name,
-                                                         mode,
-                                                         padding,
-                                                         requireIV );
-                      final Cipher c = Cipher.getInstance( a.spec() );
-                      // The algorithm, mode, and padding seem to be
-                      // understood
-
-                      for( final int keySize : new int[]{32,
-                                                         56,
-                                                         64,
-                                                         96,
-                                                         112,
-                                                         128,
-                                                         168,
-                                                         192,
-                                                         256,
-                                                         320,
-                                                         384,
-                                                         448,
-                                                         512,
-                                                         1024,
-                                                         2048,
-                                                         3072,
-                                                         4096} )
-                        {
-                          try
-                            {
-                              final KeyGenerator keyGenerator = KeyGenerator.getInstance( a.name() );
-                              keyGenerator.init( keySize );
-                              final Key key = keyGenerator.generateKey();
-                              // This key size seems to be understood
-
-                              c.init( Cipher.ENCRYPT_MODE,
-                                      key );
-                              c.doFinal( TEST_BYTES );
-                              a.keySizes.add( keySize );
-                            }
-                          catch( final Throwable x )
-                            {
-                              logger.info( name +
-                                           "/" +
-                                           mode +
-                                           "/" +
-                                           padding +
-                                           " size=" +
-                                           keySize +
-                                           " ==> " +
-                                           x.getMessage() );
-                            }
-                        }
-                      if( a.keySizes.size() > 0 )
-                        {
-                          result.add( a );
-                        }
-                    }
-                  catch( final Throwable x )
-                    {
-                      logger.fine( name + "/" + mode + "/" + padding + " ==> " + x.getMessage() );
-                    }
-                }
-            }
-        }
-      all = new Algorithm[result.size()];
-      int n = 0;
-      for( final Algorithm a : result )
-        {
-          all[n++] = a;
-        }
-    }
+  private static final String GCM = "GCM";
+  private static final String POLY1305 = "Poly1305";
+  private static final int TAG_LENGTH = 16; // bytes
+  private static final int AEAD_NONCE_LENGTH = 12; // bytes
+  private static final List<Algorithm> all = new CopyOnWriteArrayList<>();
+  private static final List<Listener> listeners = new ArrayList<>();
+  private static boolean isStarted; // guarded by listeners
+  private static volatile boolean isComplete;
 }
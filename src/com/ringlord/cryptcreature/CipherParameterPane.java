@@ -2,6 +2,7 @@ package com.ringlord.cryptcreature;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -9,22 +10,34 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.ByteArrayOutputStream;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.security.InvalidKeyException;
+import java.nio.file.Files;
 import java.security.Key;
-import java.security.MessageDigest;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.swing.BorderFactory;
 import javax.swing.ComboBoxModel;
@@ -34,8 +47,14 @@ import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPasswordField;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.border.TitledBorder;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
@@ -44,7 +63,9 @@ import com.ringlord.mime.Base64;
 
 
 /**
- * An input panel for cryptographic parameters.
+ * An input panel for cryptographic parameters. The choice of algorithms fills
+ * in as they are {@link Algorithm discovered} in the background, and the last
+ * choice made is remembered in the {@link Config}.
  *
  * @author kusch211
  */
@@ -54,30 +75,34 @@ public class CipherParameterPane
   public static final String ACTION_SECRET_KEY_CHANGED = "KEY";
   public static final String ACTION_ALGORITHM_CHANGED = "ALG";
   public static final String ACTION_INITVECTOR_CHANGED = "IV";
+  public static final String ACTION_RECIPIENTS_CHANGED = "RSA";
+  public static final String ACTION_DIGEST_CHANGED = "DIGEST";
+  /**
+   * The command of a {@link ParameterChangeEvent} that reports more than one
+   * kind of change.
+   */
+  public static final String ACTION_PARAMETERS_CHANGED = "PARAMS";
 
 
   public CipherParameterPane( final Config config )
   {
     super( new BorderLayout( 6,
                              4 ) );
+    this.config = config;
 
     final Model<String> algorithmModel = new Model<>();
     final Model<String> modesModel = new Model<>();
     final Model<String> paddingModel = new Model<>();
     final Model<Integer> keySizeModel = new Model<>();
 
-    final JCheckBox forceFixedInitVector = new JCheckBox( "Force Initialization Vector: ",
-                                                          false );
-    forceFixedInitVector.setToolTipText( "<html>"
-                                         + "<b>Do not enable this option, except for demonstration purposes!</b><br>"
-                                         + "<br>"
-                                         + "Initialization vectors must be unique for each encryption operation<br>"
-                                         + "that uses the same key, otherwise the secret key can be discovered<br>"
-                                         + "and compromised through cryptanalysis!" );
+    forceFixedInitVector = new JCheckBox( "Force Initialization Vector: ",
+                                          false );
+    forceFixedInitVector.setToolTipText( FORCE_IV_TIP );
     this.fixedInitVector = new JTextField( 15 );
-    final JButton randomInitVector = new JButton( "Random" );
+    randomInitVector = new JButton( "Random" );
 
     final JButton loadSecretKey = new JButton( "Load\u2026" );
+    final JButton passwordSecretKey = new JButton( "Password\u2026" );
     final JButton saveSecretKey = new JButton( "Save\u2026" );
     saveSecretKey.setEnabled( false );
 
@@ -111,7 +136,7 @@ public class CipherParameterPane
                                   + "reveal nothing about the original data, but<br>"
                                   + "provide a type of data signature." );
 
-    final JComboBox<String> keyHashDigest = new JComboBox<>( new String[]{"SHA-256","SHA-1","MD5"} );
+    final JComboBox<String> keyHashDigest = new JComboBox<>( KeyDigests.ALGORITHMS );
     keyHashDigest.addItemListener( new ItemListener()
     {
       @Override
@@ -119,8 +144,7 @@ public class CipherParameterPane
       {
         if( e.getStateChange() == ItemEvent.SELECTED )
           {
-            updateSecretKeyDigest( secretKey,
-                                   secretKeyHash,
+            updateSecretKeyDigest( secretKeyHash,
                                    keyHashDigest );
           }
       }
@@ -136,6 +160,10 @@ public class CipherParameterPane
     saveSecretKey.setToolTipText( "<html>"
                                   + "Save current secret key to a file on disk.<br>"
                                   + "<b>Keep it secret, keep it safe!</b>" );
+    passwordSecretKey.setToolTipText( "<html>"
+                                      + "Derive the secret key from a password (PBKDF2).<br>"
+                                      + "The same password, salt, and iterations always<br>"
+                                      + "produce the same key; a long password is best." );
     randomSecretKey.addMouseListener( new MouseAdapter()
     {
       @Override
@@ -147,6 +175,12 @@ public class CipherParameterPane
         final Algorithm a = Algorithm.find( name,
                                             mode,
                                             padding );
+        if( a == null )
+          {
+            // Still discovering the algorithms
+            randomSecretKey.setToolTipText( null );
+            return;
+          }
 
         try
           {
@@ -189,7 +223,7 @@ public class CipherParameterPane
     keySizes = new JComboBox<>( keySizeModel );
 
     algorithmNames = new JComboBox<>( algorithmModel );
-    algorithmNames.addItemListener( new ItemListener()
+    algorithmNames.addItemListener( itemInTransaction( new ItemListener()
     {
       @Override
       public void itemStateChanged( final ItemEvent e )
@@ -197,6 +231,7 @@ public class CipherParameterPane
         if( e.getStateChange() == ItemEvent.SELECTED )
           {
             final String algorithm = (String)algorithmNames.getSelectedItem();
+            userSelected();
             modesModel.update( Algorithm.allModesFor( algorithm ) );
             modesModel.setSelectedItem( "CTR" ); // Avoid default 1st "CBC"
 
@@ -217,11 +252,12 @@ public class CipherParameterPane
 
                 fixedInitVector.setText( "" );
                 secretKey.setText( "" );
+                rememberSelection();
                 notifyActionListeners( ACTION_ALGORITHM_CHANGED );
               }
           }
       }
-    } );
+    } ) );
     algorithmNames.setToolTipText( "<html>"
                                    + "These are the names of algorithms that appear<br>"
                                    + "be be installed on your computer and accessible<br>"
@@ -232,7 +268,7 @@ public class CipherParameterPane
 
     modeNames = new JComboBox<>( modesModel );
     final Color modeNamesNormal = modeNames.getForeground();
-    modeNames.addItemListener( new ItemListener()
+    modeNames.addItemListener( itemInTransaction( new ItemListener()
     {
       @Override
       public void itemStateChanged( final ItemEvent e )
@@ -241,8 +277,10 @@ public class CipherParameterPane
           {
             final String algorithm = (String)algorithmNames.getSelectedItem();
             final String mode = (String)modeNames.getSelectedItem();
+            userSelected();
             paddingModel.update( Algorithm.allPaddingsFor( algorithm,
                                                            mode ) );
+            rememberSelection();
             notifyActionListeners( ACTION_ALGORITHM_CHANGED );
 
             switch( mode )
@@ -310,23 +348,38 @@ public class CipherParameterPane
               }
           }
       }
-    } );
+    } ) );
 
     paddingNames = new JComboBox<>( paddingModel );
+    paddingNames.addItemListener( itemInTransaction( new ItemListener()
+    {
+      @Override
+      public void itemStateChanged( final ItemEvent e )
+      {
+        if( e.getStateChange() == ItemEvent.SELECTED )
+          {
+            userSelected();
+            rememberSelection();
+            notifyActionListeners( ACTION_ALGORITHM_CHANGED );
+          }
+      }
+    } ) );
 
-    keySizes.addItemListener( new ItemListener()
+    keySizes.addItemListener( itemInTransaction( new ItemListener()
     {
       @Override
       public void itemStateChanged( final ItemEvent e )
       {
         if( e.getStateChange() == ItemEvent.SELECTED )
           {
+            userSelected();
             fixedInitVector.setText( "" );
             secretKey.setText( "" );
+            rememberSelection();
             notifyActionListeners( ACTION_ALGORITHM_CHANGED );
           }
       }
-    } );
+    } ) );
     keySizes.setToolTipText( "<html>"
                              + "Supported key lengths. If you see<br>"
                              + "no keys of size 192 or larger, then<br>"
@@ -344,8 +397,6 @@ public class CipherParameterPane
                              + "<em>times more difficult</em> to break using<br>"
                              + "brute-force computations." );
 
-    algorithmModel.update( Algorithm.allNames() );
-
     final JPanel p1 = new JPanel( new GridLayout( 2,
                                                   1 ) );
     p1.add( new JLabel( "Name" ) );
@@ -366,6 +417,41 @@ public class CipherParameterPane
     p4.add( new JLabel( "Key Size (bits)" ) );
     p4.add( keySizes );
 
+    digestTypes = new JComboBox<>( new String[]{Parameters.DEFAULT_DIGEST,
+                                                TreeDigest.NAME,
+                                                EncryptThenMac.NAME} );
+    digestTypes.setSelectedItem( config.get( "digest-type",
+                                             Parameters.DEFAULT_DIGEST ) );
+    publish( ACTION_DIGEST_CHANGED );
+    digestTypes.addItemListener( new ItemListener()
+    {
+      @Override
+      public void itemStateChanged( final ItemEvent e )
+      {
+        if( e.getStateChange() == ItemEvent.SELECTED )
+          {
+            config.put( "digest-type",
+                        (String)e.getItem() );
+            notifyActionListeners( ACTION_DIGEST_CHANGED );
+          }
+      }
+    } );
+    digestTypes.setToolTipText( "<html>"
+                                + "The digest of the plain text, with which the deciphered text<br>"
+                                + "is verified. A Merkle tree digest is hashed in parallel, and<br>"
+                                + "after an edit only the part of the text from the edit on is<br>"
+                                + "hashed again, which is much faster for long texts.<br>"
+                                + "<br>"
+                                + "HMAC-SHA-256 authenticates the cipher text instead (encrypt-<br>"
+                                + "then-MAC), with a key derived from the secret key: Changes<br>"
+                                + "are detected before deciphering, and cannot be covered up.<br>"
+                                + "<br>"
+                                + "Authenticated modes (GCM, Poly1305) use their tag instead." );
+    final JPanel p5 = new JPanel( new GridLayout( 2,
+                                                  1 ) );
+    p5.add( new JLabel( "Digest" ) );
+    p5.add( digestTypes );
+
     final JPanel algorithmInfo = new JPanel( new GridLayout( 1,
                                                              0,
                                                              6,
@@ -374,7 +460,9 @@ public class CipherParameterPane
     algorithmInfo.add( p2 );
     algorithmInfo.add( p3 );
     algorithmInfo.add( p4 );
-    algorithmInfo.setBorder( BorderFactory.createCompoundBorder( BorderFactory.createTitledBorder( "Cryptographic Algorithm & Parameters" ),
+    algorithmInfo.add( p5 );
+    algorithmTitle = BorderFactory.createTitledBorder( ALGORITHM_TITLE + " (discovering\u2026)" );
+    algorithmInfo.setBorder( BorderFactory.createCompoundBorder( algorithmTitle,
                                                                  BorderFactory.createEmptyBorder( 0,
                                                                                                   4,
                                                                                                   4,
@@ -407,9 +495,11 @@ public class CipherParameterPane
             randomInitVector.setEnabled( false );
             forceFixedInitVector.setForeground( normalForeground );
           }
+        // Whether the fixed init vector is used at all has changed
+        notifyActionListeners( ACTION_INITVECTOR_CHANGED );
       }
     } );
-    randomInitVector.addActionListener( new ActionListener()
+    randomInitVector.addActionListener( actionInTransaction( new ActionListener()
     {
       @Override
       public void actionPerformed( final ActionEvent e )
@@ -420,30 +510,33 @@ public class CipherParameterPane
         final Algorithm a = Algorithm.find( name,
                                             mode,
                                             padding );
+        if( (a == null) || (keySizes.getSelectedItem() == null) )
+          {
+            // Still discovering the algorithms
+            return;
+          }
 
         try
           {
-            final KeyGenerator keyGenerator = KeyGenerator.getInstance( a.name() );
-            keyGenerator.init( (int)keySizes.getSelectedItem() );
-            final Key key = keyGenerator.generateKey();
-
-            final Cipher c = Cipher.getInstance( a.spec() );
-            c.init( Cipher.ENCRYPT_MODE,
-                    key );
-            final byte[] iv = c.getIV();
-            fixedInitVector.setText( new String( Base64.encode( iv ) ) );
+            final byte[] iv = RandomPool.initVectorFor( a,
+                                                        Cipher.getInstance( a.spec() ) );
+            if( iv == null )
+              {
+                // The mode uses no init vector
+                return;
+              }
+            fixedInitVector.setText( new String( Base64.encodeToChars( iv ) ) );
             fixedInitVector.setToolTipText( "IV Length = " + (8 * iv.length) + " bits" );
           }
         catch( NoSuchAlgorithmException |
-               NoSuchPaddingException |
-               InvalidKeyException x )
+               NoSuchPaddingException x )
           {
             x.printStackTrace();
           }
       }
-    } );
+    } ) );
 
-    randomSecretKey.addActionListener( new ActionListener()
+    randomSecretKey.addActionListener( actionInTransaction( new ActionListener()
     {
       @Override
       public void actionPerformed( final ActionEvent arg0 )
@@ -454,14 +547,18 @@ public class CipherParameterPane
         final Algorithm a = Algorithm.find( name,
                                             mode,
                                             padding );
+        if( (a == null) || (keySizes.getSelectedItem() == null) )
+          {
+            // Still discovering the algorithms
+            return;
+          }
 
         try
           {
-            final KeyGenerator keyGenerator = KeyGenerator.getInstance( a.name() );
-            keyGenerator.init( (int)keySizes.getSelectedItem() );
-            final Key key = keyGenerator.generateKey();
+            final Key key = RandomPool.key( a.name(),
+                                            (int)keySizes.getSelectedItem() );
             final byte[] keyBytes = key.getEncoded();
-            secretKey.setText( new String( Base64.encode( keyBytes ) ) );
+            secretKey.setText( new String( Base64.encodeToChars( keyBytes ) ) );
             secretKey.setToolTipText( "<html>" +
                                       "Secret Key Length = " +
                                       (8 * keyBytes.length) +
@@ -473,6 +570,15 @@ public class CipherParameterPane
             x.printStackTrace();
           }
       }
+    } ) );
+
+    passwordSecretKey.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        deriveSecretKey( passwordSecretKey );
+      }
     } );
 
     loadSecretKey.addActionListener( new ActionListener()
@@ -495,53 +601,141 @@ public class CipherParameterPane
             final File selectedFile = keyFileChooser.getSelectedFile();
             config.put( "key-dir",
                         selectedFile.getParent() );
+            loadSecretKey.setEnabled( false );
 
-            try( InputStream f = new FileInputStream( selectedFile ) )
+            // The file is read (and a raw key encoded) in the background, and
+            // only the result is applied on the event dispatch thread; of a
+            // key ring, only the labels are read, and then the chosen key
+            new SwingWorker<List<KeyRing.Entry>,Void>()
+            {
+              @Override
+              protected List<KeyRing.Entry> doInBackground()
+                throws IOException
               {
-                final ByteArrayOutputStream keyData = new ByteArrayOutputStream();
-                final byte[] buffer = new byte[128];
-                int inBuffer;
-                while( (inBuffer = f.read( buffer )) > -1 )
+                if( KeyRing.isKeyRing( selectedFile ) )
                   {
-                    keyData.write( buffer,
-                                   0,
-                                   inBuffer );
+                    ring = KeyRing.openForReading( selectedFile );
+                    return ring.list();
                   }
-                keyData.flush();
-                final byte[] key = keyData.toByteArray();
-                final int keySizeBits = (key.length * 8);
-                final int selectedSize = (int)keySizes.getSelectedItem();
-                boolean ok;
-                if( selectedSize == keySizeBits )
-                  {
-                    ok = true;
-                  }
-                else
+                // A file holding nothing but one raw key
+                key = Files.readAllBytes( selectedFile.toPath() );
+                encoded = new String( Base64.encodeToChars( key ) );
+                return null;
+              }
+
+
+              @Override
+              protected void done()
+              {
+                loadSecretKey.setEnabled( true );
+                beginChange();
+                try
                   {
-                    ok = false;
-                    final ComboBoxModel<Integer> keySizeModel = keySizes.getModel();
-                    final int modelSize = keySizeModel.getSize();
-                    for( int i = 0; i < modelSize; i++ )
+                    final List<KeyRing.Entry> entries = get();
+                    int keySizeBits = 0;
+                    if( entries != null )
                       {
-                        final Integer size = keySizeModel.getElementAt( i );
-                        if( size == keySizeBits )
+                        final KeyRing.Entry chosen = choose( entries );
+                        if( chosen == null )
                           {
-                            keySizes.setSelectedItem( size );
-                            ok = true;
-                            break;
+                            return;
                           }
+                        key = ring.findByFingerprint( chosen.fingerprint() ).key().getEncoded();
+                        encoded = new String( Base64.encodeToChars( key ) );
+                        keySizeBits = chosen.keySizeBits();
+                      }
+                    if( keySizeBits == 0 )
+                      {
+                        keySizeBits = (key.length * 8);
                       }
+                    final Integer selectedSize = (Integer)keySizes.getSelectedItem();
+                    boolean ok;
+                    if( (selectedSize != null) && (selectedSize == keySizeBits) )
+                      {
+                        ok = true;
+                      }
+                    else
+                      {
+                        ok = false;
+                        final ComboBoxModel<Integer> keySizeModel = keySizes.getModel();
+                        final int modelSize = keySizeModel.getSize();
+                        for( int i = 0; i < modelSize; i++ )
+                          {
+                            final Integer size = keySizeModel.getElementAt( i );
+                            if( size == keySizeBits )
+                              {
+                                keySizes.setSelectedItem( size );
+                                ok = true;
+                                break;
+                              }
+                          }
+                      }
+                    if( ok )
+                      {
+                        secretKey.setText( encoded );
+                        secretKey.setToolTipText( "Secret Key Length = " + keySizeBits + " bits" );
+                      }
+                  }
+                catch( final Exception x )
+                  {
+                    x.printStackTrace();
                   }
-                if( ok )
+                finally
                   {
-                    secretKey.setText( new String( Base64.encode( key ) ) );
-                    secretKey.setToolTipText( "Secret Key Length = " + keySizeBits + " bits" );
+                    endChange();
+                    if( ring != null )
+                      {
+                        try
+                          {
+                            ring.close();
+                          }
+                        catch( final IOException x )
+                          {
+                            x.printStackTrace();
+                          }
+                      }
                   }
               }
-            catch( final Exception x )
+
+              /**
+               * Lets the user pick one of the keys of a key ring, preferring
+               * one for the chosen algorithm.
+               */
+              private KeyRing.Entry choose( final List<KeyRing.Entry> entries )
               {
-                x.printStackTrace();
+                if( entries.isEmpty() )
+                  {
+                    JOptionPane.showMessageDialog( CipherParameterPane.this,
+                                                   "The key ring " + selectedFile.getName() + " holds no keys.",
+                                                   "Load Secret Key",
+                                                   JOptionPane.INFORMATION_MESSAGE );
+                    return null;
+                  }
+                KeyRing.Entry preferred = entries.get( entries.size() - 1 );
+                final Algorithm a = getChosenAlgorithm();
+                if( a != null )
+                  {
+                    for( final KeyRing.Entry entry : entries )
+                      {
+                        if( a.name().equals( entry.algorithm() ) )
+                          {
+                            preferred = entry;
+                          }
+                      }
+                  }
+                return (KeyRing.Entry)JOptionPane.showInputDialog( CipherParameterPane.this,
+                                                                   "Choose a key from " + selectedFile.getName() + ":",
+                                                                   "Load Secret Key",
+                                                                   JOptionPane.QUESTION_MESSAGE,
+                                                                   null,
+                                                                   entries.toArray(),
+                                                                   preferred );
               }
+
+              private KeyRing ring;
+              private byte[] key;
+              private String encoded;
+            }.execute();
           }
       }
     } );
@@ -567,7 +761,36 @@ public class CipherParameterPane
             if( keyFileChooser.showDialog( CipherParameterPane.this,
                                            "Save" ) == JFileChooser.APPROVE_OPTION )
               {
-                try( OutputStream f = new FileOutputStream( keyFileChooser.getSelectedFile() ) )
+                final File selectedFile = keyFileChooser.getSelectedFile();
+                if( KeyRing.isKeyRing( selectedFile ) || selectedFile.getName().endsWith( KEY_RING_SUFFIX ) )
+                  {
+                    // The nominal size, which is less than the encoded length
+                    // for some (such as DES)
+                    final int keySizeBits = (getChosenSecretKeySize() > 0
+                        ? getChosenSecretKeySize()
+                        : 8 * keyBytes.length);
+                    final String label = JOptionPane.showInputDialog( CipherParameterPane.this,
+                                                                      "Label for the key:",
+                                                                      key.getAlgorithm() + " " + keySizeBits + "-bit key" );
+                    if( label == null )
+                      {
+                        return;
+                      }
+                    try( final KeyRing ring = KeyRing.open( selectedFile ) )
+                      {
+                        ring.add( label,
+                                  new SecretKeySpec( keyBytes,
+                                                     key.getAlgorithm() ),
+                                  keySizeBits );
+                      }
+                    catch( final Exception x )
+                      {
+                        x.printStackTrace();
+                      }
+                    return;
+                  }
+
+                try( OutputStream f = new FileOutputStream( selectedFile ) )
                   {
                     f.write( keyBytes );
                     f.flush();
@@ -636,8 +859,7 @@ public class CipherParameterPane
       {
         notifyActionListeners( ACTION_SECRET_KEY_CHANGED );
         saveSecretKey.setEnabled( secretKey.getText().length() > 0 );
-        updateSecretKeyDigest( secretKey,
-                               secretKeyHash,
+        updateSecretKeyDigest( secretKeyHash,
                                keyHashDigest );
         checkBadKeyOrIV();
       }
@@ -654,6 +876,7 @@ public class CipherParameterPane
                                                           4,
                                                           0 ) );
     keyButtons.add( loadSecretKey );
+    keyButtons.add( passwordSecretKey );
     keyButtons.add( saveSecretKey );
     keyButtons.add( randomSecretKey );
 
@@ -681,8 +904,10 @@ public class CipherParameterPane
                                                          4 ) );
     keyLabels.add( new JLabel( "Secret key:" ) );
     keyLabels.add( new JLabel( "Key digest:" ) );
+    keyLabels.add( new JLabel( "Public keys:" ) );
     keyFields.add( secretKeyPanel );
     keyFields.add( secretHashPanel );
+    keyFields.add( publicKeyPanel() );
 
     final JPanel keyPanel = new JPanel( new BorderLayout( 4,
                                                           0 ) );
@@ -720,6 +945,187 @@ public class CipherParameterPane
 
     add( BorderLayout.NORTH,
          parametersPanel );
+
+    // Show the last choice as soon as it has been found to be available
+    final String name = config.get( "cipher-algorithm",
+                                    (String)null );
+    if( name != null )
+      {
+        restore = new String[]{name,
+                               config.get( "cipher-mode",
+                                           "" ),
+                               config.get( "cipher-padding",
+                                           "" ),
+                               String.valueOf( config.get( "cipher-key-size",
+                                                           0 ) )};
+      }
+    Algorithm.addListener( new Algorithm.Listener()
+    {
+      @Override
+      public void discovered( final Algorithm algorithm )
+      {
+        scheduleRefresh( algorithmModel,
+                         modesModel,
+                         paddingModel,
+                         keySizeModel,
+                         false );
+      }
+
+
+      @Override
+      public void finished()
+      {
+        scheduleRefresh( algorithmModel,
+                         modesModel,
+                         paddingModel,
+                         keySizeModel,
+                         true );
+      }
+    } );
+  }
+
+
+  /**
+   * Arranges for the combo boxes to be brought up to date with the algorithms
+   * discovered so far. Discoveries come in bursts, so this happens only once
+   * for each burst.
+   */
+  private void scheduleRefresh( final Model<String> algorithmModel,
+                                final Model<String> modesModel,
+                                final Model<String> paddingModel,
+                                final Model<Integer> keySizeModel,
+                                final boolean isFinished )
+  {
+    if( isFinished || isRefreshPending.compareAndSet( false,
+                                                      true ) )
+      {
+        SwingUtilities.invokeLater( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            isRefreshPending.set( false );
+            refresh( algorithmModel,
+                     modesModel,
+                     paddingModel,
+                     keySizeModel,
+                     isFinished );
+          }
+        } );
+      }
+  }
+
+
+  private void refresh( final Model<String> algorithmModel,
+                        final Model<String> modesModel,
+                        final Model<String> paddingModel,
+                        final Model<Integer> keySizeModel,
+                        final boolean isFinished )
+  {
+    isRefreshing = true;
+    beginChange();
+    try
+      {
+        algorithmModel.update( Algorithm.allNames() );
+        final String name = (String)algorithmNames.getSelectedItem();
+        if( name != null )
+          {
+            modesModel.update( Algorithm.allModesFor( name ) );
+            if( isFinished && (modesModel.getIndexOf( modesModel.getSelectedItem() ) < 0) && (modesModel.getSize() > 0) )
+              {
+                // The preferred mode is not available for this algorithm
+                modesModel.setSelectedItem( modesModel.getElementAt( 0 ) );
+              }
+            paddingModel.update( Algorithm.allPaddingsFor( name,
+                                                           (String)modeNames.getSelectedItem() ) );
+            final Algorithm a = getChosenAlgorithm();
+            if( a != null )
+              {
+                keySizeModel.update( boxed( a.keySizes() ) );
+              }
+          }
+
+        if( restore != null )
+          {
+            final String[] choice = restore;
+            final Algorithm a = Algorithm.find( choice[0],
+                                                choice[1],
+                                                choice[2] );
+            if( a != null )
+              {
+                restore = null;
+                algorithmModel.setSelectedItem( a.name() );
+                modesModel.setSelectedItem( a.mode() );
+                paddingModel.setSelectedItem( a.padding() );
+                keySizeModel.update( boxed( a.keySizes() ) );
+                final Integer keySize = Integer.valueOf( choice[3] );
+                if( keySizeModel.getIndexOf( keySize ) > -1 )
+                  {
+                    keySizeModel.setSelectedItem( keySize );
+                  }
+              }
+            else if( isFinished )
+              {
+                // It is no longer available
+                restore = null;
+              }
+          }
+      }
+    finally
+      {
+        endChange();
+        isRefreshing = false;
+      }
+
+    if( isFinished )
+      {
+        algorithmTitle.setTitle( ALGORITHM_TITLE );
+        repaint();
+      }
+  }
+
+
+  private static Integer[] boxed( final int[] values )
+  {
+    final Integer[] items = new Integer[values.length];
+    for( int i = 0; i < values.length; i++ )
+      {
+        items[i] = values[i];
+      }
+    return items;
+  }
+
+
+  /**
+   * A choice made by the user (as opposed to one made while filling in the
+   * discovered algorithms) takes precedence over restoring the last one.
+   */
+  private void userSelected()
+  {
+    if( !isRefreshing )
+      {
+        restore = null;
+      }
+  }
+
+
+  private void rememberSelection()
+  {
+    final Algorithm a = getChosenAlgorithm();
+    final Object keySize = keySizes.getSelectedItem();
+    if( (a != null) && (keySize != null) && (restore == null) )
+      {
+        config.edit()
+              .put( "cipher-algorithm",
+                    a.name() )
+              .put( "cipher-mode",
+                    a.mode() )
+              .put( "cipher-padding",
+                    a.padding() )
+              .put( "cipher-key-size",
+                    keySize.toString() )
+              .apply();
+      }
   }
 
 
@@ -768,16 +1174,111 @@ public class CipherParameterPane
   }
 
 
+  /**
+   * Begins a change transaction: Until the matching {@link #endChange()}, the
+   * changes made to the parameters are collected rather than reported, and are
+   * then reported all at once in a single {@link ParameterChangeEvent}.
+   * Transactions may be nested; only the outermost one reports. Must be called
+   * on the event dispatch thread.
+   */
+  public void beginChange()
+  {
+    changeDepth++;
+  }
+
+
+  /**
+   * Ends a change transaction begun with {@link #beginChange()}.
+   */
+  public void endChange()
+  {
+    if( --changeDepth == 0 )
+      {
+        if( !pendingChanges.isEmpty() )
+          {
+            final Set<String> changes = new LinkedHashSet<>( pendingChanges );
+            pendingChanges.clear();
+            fireActionListeners( changes );
+          }
+      }
+  }
+
+
+  /**
+   * @param l
+   *          A listener
+   * @return A listener that runs l within a change transaction.
+   */
+  private ItemListener itemInTransaction( final ItemListener l )
+  {
+    return new ItemListener()
+    {
+      @Override
+      public void itemStateChanged( final ItemEvent e )
+      {
+        beginChange();
+        try
+          {
+            l.itemStateChanged( e );
+          }
+        finally
+          {
+            endChange();
+          }
+      }
+    };
+  }
+
+
+  /**
+   * @param l
+   *          A listener
+   * @return A listener that runs l within a change transaction.
+   */
+  private ActionListener actionInTransaction( final ActionListener l )
+  {
+    return new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        beginChange();
+        try
+          {
+            l.actionPerformed( e );
+          }
+        finally
+          {
+            endChange();
+          }
+      }
+    };
+  }
+
+
   private void notifyActionListeners( final String actionName )
+  {
+    publish( actionName );
+    if( changeDepth > 0 )
+      {
+        pendingChanges.add( actionName );
+      }
+    else
+      {
+        fireActionListeners( Collections.singleton( actionName ) );
+      }
+  }
+
+
+  private void fireActionListeners( final Set<String> changes )
   {
     final Set<ActionListener> listeners = new HashSet<>();
     listeners.addAll( actionListeners );
     if( !listeners.isEmpty() )
       {
-        final ActionEvent e = new ActionEvent( this,
-                                               0,
-                                               actionName );
-        for( final ActionListener l : actionListeners )
+        final ActionEvent e = new ParameterChangeEvent( this,
+                                                        changes );
+        for( final ActionListener l : listeners )
           {
             l.actionPerformed( e );
           }
@@ -785,6 +1286,633 @@ public class CipherParameterPane
   }
 
 
+  /**
+   * Brings the {@link Parameters} up to date with the kind of change that was
+   * made. This is the only place where the key and init vector are decoded.
+   */
+  private void publish( final String actionName )
+  {
+    switch( actionName )
+      {
+      case ACTION_ALGORITHM_CHANGED:
+        parameters = parameters.withAlgorithm( getChosenAlgorithm() );
+        prefetch( parameters.algorithm() );
+        if( updateFixedInitVector( parameters.algorithm() ) )
+          {
+            parameters = parameters.withInitVector( chosenInitVector() );
+          }
+        break;
+
+      case ACTION_SECRET_KEY_CHANGED:
+        parameters = parameters.withKey( decode( secretKey,
+                                                 "secret key" ) );
+        break;
+
+      case ACTION_RECIPIENTS_CHANGED:
+        parameters = parameters.withRecipients( recipients ).withPrivateKey( privateKey );
+        break;
+
+      case ACTION_DIGEST_CHANGED:
+        parameters = parameters.withDigestType( (String)digestTypes.getSelectedItem() );
+        break;
+
+      case ACTION_INITVECTOR_CHANGED:
+        parameters = parameters.withInitVector( chosenInitVector() );
+        break;
+
+      default:
+        break;
+      }
+  }
+
+
+  /**
+   * @return The fixed init vector, or null if a random one is to be used.
+   */
+  private byte[] chosenInitVector()
+  {
+    return (fixedInitVector.isEnabled()
+        ? decode( fixedInitVector,
+                  "init vector" )
+        : null);
+  }
+
+
+  /**
+   * Offers a fixed init vector only for algorithms that survive (however
+   * badly) its reuse: With GCM or ChaCha20-Poly1305, a nonce used twice with
+   * the same key gives away the authentication key, and then the tag can be
+   * forged.
+   *
+   * @return true if whether the fixed init vector is used has changed.
+   */
+  private boolean updateFixedInitVector( final Algorithm a )
+  {
+    final boolean isAllowed = (a == null) || !a.isAuthenticated();
+    final boolean wasUsed = fixedInitVector.isEnabled();
+    forceFixedInitVector.setEnabled( isAllowed );
+    forceFixedInitVector.setToolTipText( isAllowed
+        ? FORCE_IV_TIP
+        : "<html>"
+          + "Not available for authenticated modes (GCM, ChaCha20-Poly1305):<br>"
+          + "reusing a nonce with the same key reveals the authentication key,<br>"
+          + "and any tag can then be forged. A random nonce is used instead." );
+    final boolean isUsed = isAllowed && forceFixedInitVector.isSelected();
+    fixedInitVector.setEnabled( isUsed );
+    randomInitVector.setEnabled( isUsed );
+    return isUsed != wasUsed;
+  }
+
+
+  /**
+   * Asks for a password, salt, and number of iterations, and derives the secret
+   * key from them in the background. If the number of iterations is left
+   * empty, it is {@link PasswordKeys#calibrate(long) calibrated} to take about
+   * {@link #PBKDF2_TARGET_MILLIS}.
+   */
+  private void deriveSecretKey( final JButton passwordSecretKey )
+  {
+    final Algorithm a = getChosenAlgorithm();
+    final int keySize = getChosenSecretKeySize();
+    if( (a == null) || (keySize == 0) )
+      {
+        // Still discovering the algorithms
+        return;
+      }
+
+    final JPasswordField password = new JPasswordField( 24 );
+    final JTextField salt = new JTextField( config.get( "pbkdf2-salt",
+                                                        new String( Base64.encodeToChars( RandomPool.initVector( 16 ) ) ) ),
+                                            24 );
+    final JTextField iterations = new JTextField( config.get( "pbkdf2-iterations",
+                                                              "" ),
+                                                  8 );
+    iterations.setToolTipText( "<html>"
+                               + "Leave empty to pick as many as this<br>"
+                               + "computer can do in about " + PBKDF2_TARGET_MILLIS + "ms." );
+    final JPanel fields = new JPanel( new GridLayout( 0,
+                                                      2,
+                                                      4,
+                                                      4 ) );
+    fields.add( new JLabel( "Password:" ) );
+    fields.add( password );
+    fields.add( new JLabel( "Salt (Base64):" ) );
+    fields.add( salt );
+    fields.add( new JLabel( "Iterations:" ) );
+    fields.add( iterations );
+    final int choice = JOptionPane.showConfirmDialog( this,
+                                                      fields,
+                                                      "Derive Secret Key from Password",
+                                                      JOptionPane.OK_CANCEL_OPTION,
+                                                      JOptionPane.PLAIN_MESSAGE );
+    final char[] passwordChars = password.getPassword();
+    password.setText( "" );
+    if( choice != JOptionPane.OK_OPTION )
+      {
+        Arrays.fill( passwordChars,
+                     '\0' );
+        return;
+      }
+
+    final String saltText = salt.getText().trim();
+    final byte[] saltBytes = decode( salt,
+                                     "salt" );
+    if( saltBytes == null )
+      {
+        Arrays.fill( passwordChars,
+                     '\0' );
+        JOptionPane.showMessageDialog( this,
+                                       "The salt must be Base64 encoded, and must not be empty.",
+                                       "Derive Secret Key from Password",
+                                       JOptionPane.ERROR_MESSAGE );
+        return;
+      }
+    int count;
+    try
+      {
+        count = (iterations.getText().trim().isEmpty()
+            ? 0
+            : Integer.parseInt( iterations.getText().trim() ));
+      }
+    catch( final NumberFormatException x )
+      {
+        count = 0;
+      }
+    final int givenIterations = count;
+
+    final ProgressMonitor monitor = new ProgressMonitor( this,
+                                                         "Deriving the " + keySize + "-bit " + a.name() + " key\u2026",
+                                                         null,
+                                                         0,
+                                                         100 );
+    monitor.setMillisToDecideToPopup( 100 );
+    monitor.setMillisToPopup( 200 );
+    passwordSecretKey.setEnabled( false );
+
+    final SwingWorker<SecretKey,Void> worker = new SwingWorker<SecretKey,Void>()
+    {
+      @Override
+      protected SecretKey doInBackground()
+      {
+        try
+          {
+            usedIterations = (givenIterations > 0
+                ? givenIterations
+                : PasswordKeys.calibrate( PBKDF2_TARGET_MILLIS ));
+            return PasswordKeys.derive( passwordChars,
+                                        saltBytes,
+                                        usedIterations,
+                                        a.name(),
+                                        keySize,
+                                        new PasswordKeys.Progress()
+                                        {
+                                          @Override
+                                          public boolean progressed( final long done,
+                                                                     final long total )
+                                          {
+                                            setProgress( (int)((100 * done) / total) );
+                                            return !isCancelled();
+                                          }
+                                        } );
+          }
+        finally
+          {
+            Arrays.fill( passwordChars,
+                         '\0' );
+          }
+      }
+
+
+      @Override
+      protected void done()
+      {
+        monitor.close();
+        passwordSecretKey.setEnabled( true );
+        if( isCancelled() )
+          {
+            return;
+          }
+        beginChange();
+        try
+          {
+            final SecretKey key = get();
+            if( key != null )
+              {
+                config.edit()
+                      .put( "pbkdf2-salt",
+                            saltText )
+                      .put( "pbkdf2-iterations",
+                            String.valueOf( usedIterations ) )
+                      .apply();
+                secretKey.setText( new String( Base64.encodeToChars( key.getEncoded() ) ) );
+                secretKey.setToolTipText( "<html>" +
+                                          "Secret Key Length = " +
+                                          keySize +
+                                          " bits<br>" +
+                                          "Derived from a password with " +
+                                          usedIterations +
+                                          " iterations of PBKDF2" );
+              }
+          }
+        catch( final InterruptedException |
+                     ExecutionException x )
+          {
+            x.printStackTrace();
+          }
+        finally
+          {
+            endChange();
+          }
+      }
+
+      private volatile int usedIterations;
+    };
+    worker.addPropertyChangeListener( new PropertyChangeListener()
+    {
+      @Override
+      public void propertyChange( final PropertyChangeEvent e )
+      {
+        if( "progress".equals( e.getPropertyName() ) )
+          {
+            monitor.setProgress( (Integer)e.getNewValue() );
+            if( monitor.isCanceled() )
+              {
+                worker.cancel( false );
+              }
+          }
+      }
+    } );
+    worker.execute();
+  }
+
+
+  /**
+   * @return The controls for {@link Hybrid} encryption: The public keys of the
+   *         recipients, and the private key of the user.
+   */
+  private JPanel publicKeyPanel()
+  {
+    final JButton generate = new JButton( "Key Pair\u2026" );
+    final JButton add = new JButton( "Recipients\u2026" );
+    final JButton load = new JButton( "Private\u2026" );
+    final JButton clear = new JButton( "Clear" );
+    generate.setToolTipText( "<html>"
+                             + "Generate an RSA key pair, and save it as a public<br>"
+                             + "key (.pub) to give to others, and a private key<br>"
+                             + "(.key) to keep. <b>Keep it secret, keep it safe!</b>" );
+    add.setToolTipText( "<html>"
+                        + "Encipher for the owners of these public keys: The<br>"
+                        + "message is enciphered with a random session key,<br>"
+                        + "which only their private keys can recover." );
+    load.setToolTipText( "<html>"
+                         + "Load your private key, to decipher what<br>"
+                         + "was enciphered for your public key." );
+    clear.setToolTipText( "Forget the recipients and the private key" );
+    rsaSummary.setToolTipText( "<html>"
+                               + "With recipients, the secret key above is not used:<br>"
+                               + "a session key is wrapped for each recipient instead." );
+    updateRsaSummary();
+
+    generate.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        generateKeyPair( generate );
+      }
+    } );
+    add.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        final File[] files = chooseRsaFiles( "Add Recipients (Public Keys)",
+                                             true );
+        if( files == null )
+          {
+            return;
+          }
+        new SwingWorker<List<PublicKey>,Void>()
+        {
+          @Override
+          protected List<PublicKey> doInBackground()
+            throws Exception
+          {
+            final List<PublicKey> keys = new ArrayList<>();
+            for( final File f : files )
+              {
+                keys.add( Hybrid.readPublicKey( Files.readAllBytes( f.toPath() ) ) );
+              }
+            return keys;
+          }
+
+
+          @Override
+          protected void done()
+          {
+            try
+              {
+                addRecipients( get() );
+              }
+            catch( final InterruptedException |
+                         ExecutionException x )
+              {
+                showRsaError( "Cannot read the public key",
+                              x );
+              }
+          }
+        }.execute();
+      }
+    } );
+    load.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        final File[] files = chooseRsaFiles( "Load Private Key",
+                                             false );
+        if( files == null )
+          {
+            return;
+          }
+        new SwingWorker<PrivateKey,Void>()
+        {
+          @Override
+          protected PrivateKey doInBackground()
+            throws Exception
+          {
+            return Hybrid.readPrivateKey( Files.readAllBytes( files[0].toPath() ) );
+          }
+
+
+          @Override
+          protected void done()
+          {
+            try
+              {
+                privateKey = get();
+                updateRsaSummary();
+                notifyActionListeners( ACTION_RECIPIENTS_CHANGED );
+              }
+            catch( final InterruptedException |
+                         ExecutionException x )
+              {
+                showRsaError( "Cannot read the private key",
+                              x );
+              }
+          }
+        }.execute();
+      }
+    } );
+    clear.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        recipients.clear();
+        privateKey = null;
+        updateRsaSummary();
+        notifyActionListeners( ACTION_RECIPIENTS_CHANGED );
+      }
+    } );
+
+    final JPanel buttons = new JPanel( new GridLayout( 1,
+                                                       0,
+                                                       4,
+                                                       0 ) );
+    buttons.add( generate );
+    buttons.add( add );
+    buttons.add( load );
+    buttons.add( clear );
+    final JPanel panel = new JPanel( new BorderLayout( 4,
+                                                       0 ) );
+    panel.add( BorderLayout.CENTER,
+               rsaSummary );
+    panel.add( BorderLayout.EAST,
+               buttons );
+    return panel;
+  }
+
+
+  /**
+   * Generates an RSA key pair in the background, saves it, and makes its
+   * owner a recipient (and its private key the user's), so that the result
+   * can be tried out at once.
+   */
+  private void generateKeyPair( final JButton generate )
+  {
+    final Object size = JOptionPane.showInputDialog( this,
+                                                     "Size of the RSA key (bits):",
+                                                     "Generate Key Pair",
+                                                     JOptionPane.QUESTION_MESSAGE,
+                                                     null,
+                                                     new Integer[]{2048,3072,4096},
+                                                     3072 );
+    if( size == null )
+      {
+        return;
+      }
+    final File[] files = chooseRsaFiles( "Save Key Pair (.pub and .key)",
+                                         false );
+    if( files == null )
+      {
+        return;
+      }
+    final String base = files[0].getPath().replaceFirst( "\\.(pub|key)$",
+                                                         "" );
+    generate.setEnabled( false );
+    setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+    new SwingWorker<KeyPair,Void>()
+    {
+      @Override
+      protected KeyPair doInBackground()
+        throws IOException
+      {
+        final KeyPair pair = Hybrid.generateKeyPair( (Integer)size );
+        Files.write( new File( base + ".pub" ).toPath(),
+                     pair.getPublic().getEncoded() );
+        Files.write( new File( base + ".key" ).toPath(),
+                     pair.getPrivate().getEncoded() );
+        return pair;
+      }
+
+
+      @Override
+      protected void done()
+      {
+        generate.setEnabled( true );
+        setCursor( null );
+        try
+          {
+            final KeyPair pair = get();
+            privateKey = pair.getPrivate();
+            addRecipients( Collections.singletonList( pair.getPublic() ) );
+          }
+        catch( final InterruptedException |
+                     ExecutionException x )
+          {
+            showRsaError( "Cannot generate the key pair",
+                          x );
+          }
+      }
+    }.execute();
+  }
+
+
+  private File[] chooseRsaFiles( final String title,
+                                 final boolean isMultiple )
+  {
+    if( rsaFileChooser == null )
+      {
+        rsaFileChooser = new JFileChooser();
+        rsaFileChooser.setCurrentDirectory( new File( config.get( "rsa-dir",
+                                                                  config.get( "key-dir",
+                                                                              System.getProperty( "user.home" ) ) ) ) );
+      }
+    rsaFileChooser.setDialogTitle( title );
+    rsaFileChooser.setMultiSelectionEnabled( isMultiple );
+    if( rsaFileChooser.showDialog( this,
+                                   "OK" ) != JFileChooser.APPROVE_OPTION )
+      {
+        return null;
+      }
+    final File[] files = (isMultiple
+        ? rsaFileChooser.getSelectedFiles()
+        : new File[]{rsaFileChooser.getSelectedFile()});
+    if( files.length == 0 )
+      {
+        return null;
+      }
+    config.put( "rsa-dir",
+                files[0].getParent() );
+    return files;
+  }
+
+
+  /**
+   * Adds recipients, other than those already present.
+   */
+  private void addRecipients( final List<PublicKey> keys )
+  {
+    final Set<String> present = new HashSet<>();
+    for( final PublicKey k : recipients )
+      {
+        present.add( Hybrid.fingerprint( k ) );
+      }
+    for( final PublicKey k : keys )
+      {
+        if( present.add( Hybrid.fingerprint( k ) ) )
+          {
+            recipients.add( k );
+          }
+      }
+    updateRsaSummary();
+    notifyActionListeners( ACTION_RECIPIENTS_CHANGED );
+  }
+
+
+  private void updateRsaSummary()
+  {
+    final int count = recipients.size();
+    rsaSummary.setText( (count == 0
+        ? "No recipients"
+        : (count == 1
+            ? "1 recipient"
+            : count + " recipients")) +
+                        (privateKey == null
+                            ? ", no private key"
+                            : ", private key loaded") );
+  }
+
+
+  private void showRsaError( final String message,
+                             final Exception x )
+  {
+    final Throwable cause = ((x instanceof ExecutionException) && (x.getCause() != null)
+        ? x.getCause()
+        : x);
+    Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).log( Level.WARNING,
+                                                       message,
+                                                       cause );
+    JOptionPane.showMessageDialog( this,
+                                   message + ":\n" + cause.getMessage(),
+                                   "Public Keys",
+                                   JOptionPane.ERROR_MESSAGE );
+  }
+
+
+  /**
+   * Has the {@link RandomPool} generate keys and init vectors for the
+   * algorithm ahead of time, so that the "Random" buttons respond at once.
+   */
+  private void prefetch( final Algorithm a )
+  {
+    final int keySize = getChosenSecretKeySize();
+    if( (a == null) || (keySize == 0) )
+      {
+        return;
+      }
+    RandomPool.prefetchKeys( a.name(),
+                             keySize );
+    try
+      {
+        final int length = (a.initVectorLength() > 0
+            ? a.initVectorLength()
+            : Cipher.getInstance( a.spec() ).getBlockSize());
+        if( length > 0 )
+          {
+            RandomPool.prefetchInitVectors( length );
+          }
+      }
+    catch( NoSuchAlgorithmException |
+           NoSuchPaddingException x )
+      {
+        // Nothing to prefetch for
+      }
+  }
+
+
+  /**
+   * @return The decoded content of a field holding Base64 text, or null if it
+   *         is empty or cannot be decoded.
+   */
+  private static byte[] decode( final JTextField field,
+                                final String what )
+  {
+    final byte[] base64 = field.getText().trim().getBytes();
+    if( base64.length > 0 )
+      {
+        try
+          {
+            return Base64.decode( base64 );
+          }
+        catch( final RuntimeException x )
+          {
+            Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).log( Level.FINE,
+                                                               "Cannot decode the " + what,
+                                                               x );
+          }
+      }
+    return null;
+  }
+
+
+  /**
+   * @return The current parameters. This may be called from any thread, and
+   *         is the only way that background work should learn about the
+   *         chosen parameters.
+   */
+  public Parameters getParameters()
+  {
+    return parameters;
+  }
+
+
+  /**
+   * Reads the algorithm from the choices made in the user interface, and must
+   * therefore be called on the event dispatch thread. See
+   * {@link #getParameters()}.
+   */
   public Algorithm getChosenAlgorithm()
   {
     final String name = (String)algorithmNames.getSelectedItem();
@@ -796,9 +1924,15 @@ public class CipherParameterPane
   }
 
 
+  /**
+   * @return The chosen key size, or 0 if none is chosen (yet).
+   */
   public int getChosenSecretKeySize()
   {
-    return (int)keySizes.getSelectedItem();
+    final Integer keySize = (Integer)keySizes.getSelectedItem();
+    return (keySize == null
+        ? 0
+        : keySize);
   }
 
 
@@ -810,15 +1944,7 @@ public class CipherParameterPane
    */
   public Key getChosenSecretKey()
   {
-    final byte[] keyBytes = secretKey.getText().trim().getBytes();
-    if( keyBytes.length > 0 )
-      {
-        final byte[] secretKeyBytes = Base64.decode( keyBytes );
-        final Key key = new SecretKeySpec( secretKeyBytes,
-                                           (String)algorithmNames.getSelectedItem() );
-        return key;
-      }
-    return null;
+    return parameters.key();
   }
 
 
@@ -830,85 +1956,138 @@ public class CipherParameterPane
    */
   public byte[] getChosenInitVector()
   {
-    if( fixedInitVector.isEnabled() )
-      {
-        final byte[] ivBytes = fixedInitVector.getText().trim().getBytes();
-        if( ivBytes.length > 0 )
-          {
-            return Base64.decode( ivBytes );
-          }
-      }
-    return null;
+    return parameters.initVector();
   }
 
 
-  private static void updateSecretKeyDigest( final JTextField secretKey,
-                                             final JTextField secretKeyHash,
-                                             final JComboBox<String> keyHashDigest )
+  /**
+   * Shows the chosen digest of the secret key. The digests are computed in
+   * the background, all at once, whenever the key has changed; choosing a
+   * different digest for the same key merely looks it up.
+   */
+  private void updateSecretKeyDigest( final JTextField secretKeyHash,
+                                      final JComboBox<String> keyHashDigest )
   {
-    final byte[] keyBytes = secretKey.getText().trim().getBytes();
-    if( keyBytes.length > 0 )
+    final Parameters p = parameters;
+    final Key key = p.key();
+    if( key == null )
+      {
+        secretKeyHash.setText( "" );
+        return;
+      }
+
+    final KeyDigests digests = keyDigests;
+    if( (digests != null) && (digests.keyVersion() == p.keyVersion()) )
+      {
+        secretKeyHash.setText( digests.get( (String)keyHashDigest.getSelectedItem() ) );
+        return;
+      }
+
+    secretKeyHash.setText( "" );
+    new SwingWorker<KeyDigests,Void>()
+    {
+      @Override
+      protected KeyDigests doInBackground()
+      {
+        return new KeyDigests( key.getEncoded(),
+                               p.keyVersion() );
+      }
+
+
+      @Override
+      protected void done()
       {
-        final byte[] secretKeyBytes = Base64.decode( keyBytes );
-        final String digestAlgorithm = "" + keyHashDigest.getSelectedItem();
         try
           {
-            final MessageDigest md = MessageDigest.getInstance( digestAlgorithm );
-            final byte[] hash = md.digest( secretKeyBytes );
-            final String hash64 = new String( Base64.encode( hash ) );
-            secretKeyHash.setText( hash64 );
-            return;
+            final KeyDigests computed = get();
+            if( computed.keyVersion() == parameters.keyVersion() )
+              {
+                keyDigests = computed;
+                secretKeyHash.setText( computed.get( (String)keyHashDigest.getSelectedItem() ) );
+              }
           }
-        catch( final NoSuchAlgorithmException x )
+        catch( final InterruptedException |
+                     ExecutionException x )
           {
-            // TODO Auto-generated catch block
             x.printStackTrace();
           }
       }
-    secretKeyHash.setText( "" );
+    }.execute();
   }
 
 
   private class Model<T>
     extends DefaultComboBoxModel<T>
   {
+    /**
+     * Makes the model offer the given values (in their given order), leaving the
+     * selection alone if it is among them. Elements already present stay in
+     * place, so that discovering more of them does not disturb the user.
+     */
     final void update( final T[] values )
     {
-      @SuppressWarnings("unchecked") final T current = (T)getSelectedItem();
-      T reSelect = null;
-
-      removeAllElements();
-      for( final T item : values )
+      final List<T> wanted = Arrays.asList( values );
+      for( int i = getSize() - 1; i >= 0; i-- )
         {
-          addElement( item );
-          if( item.equals( current ) )
+          if( !wanted.contains( getElementAt( i ) ) )
             {
-              reSelect = item;
+              removeElementAt( i );
             }
         }
-      if( reSelect != null )
+      for( int i = 0; i < values.length; i++ )
         {
-          setSelectedItem( reSelect );
+          if( (i >= getSize()) || !values[i].equals( getElementAt( i ) ) )
+            {
+              insertElementAt( values[i],
+                               i );
+            }
+        }
+      if( (getSelectedItem() == null) && (getSize() > 0) )
+        {
+          setSelectedItem( getElementAt( 0 ) );
         }
-      fireContentsChanged( this,
-                           0,
-                           Integer.MAX_VALUE );
     }
+
     private static final long serialVersionUID = -8939982052355500812L;
   }
 
+  private int changeDepth;
+  private boolean isRefreshing;
+  private String[] restore; // algorithm, mode, padding, key size
   private Color fgIV;
   private Color fgSK;
   private String ttIV;
   private String ttSK;
   private JFileChooser keyFileChooser;
+  private JFileChooser rsaFileChooser;
+  private PrivateKey privateKey;
+  private KeyDigests keyDigests;
+  private volatile Parameters parameters = Parameters.NONE;
   //
   private final JComboBox<String> algorithmNames;
   private final JComboBox<String> modeNames;
   private final JComboBox<String> paddingNames;
   private final JComboBox<Integer> keySizes;
+  private final JComboBox<String> digestTypes;
+  private final JCheckBox forceFixedInitVector;
   private final JTextField fixedInitVector;
+  private final JButton randomInitVector;
   private final JTextField secretKey;
+  private final List<PublicKey> recipients = new ArrayList<>();
+  private final JLabel rsaSummary = new JLabel();
   private final Set<ActionListener> actionListeners = new HashSet<>();
+  private final Set<String> pendingChanges = new LinkedHashSet<>();
+  private final AtomicBoolean isRefreshPending = new AtomicBoolean();
+  private final TitledBorder algorithmTitle;
+  private final Config config;
+  private static final String KEY_RING_SUFFIX = ".keyring";
+  private static final long PBKDF2_TARGET_MILLIS = 250;
+  private static final String ALGORITHM_TITLE = "Cryptographic Algorithm & Parameters";
+  private static final String FORCE_IV_TIP = "<html>"
+                                             + "<b>Do not enable this option, except for demonstration purposes!</b><br>"
+                                             + "<br>"
+                                             + "Initialization vectors must be unique for each encryption operation<br>"
+                                             + "that uses the same key, otherwise the secret key can be discovered<br>"
+                                             + "and compromised through cryptanalysis!";
   private static final long serialVersionUID = 2914728362631572790L;
 }
@@ -4,30 +4,46 @@ import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.ShortBufferException;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
 
 import com.ringlord.Transformations;
 import com.ringlord.mime.Base64;
+import com.ringlord.swing.Documents;
 
 
 public class CipherTextOutput
@@ -44,19 +60,26 @@ public class CipherTextOutput
 
     logger = Logger.getLogger( java.util.logging.Logger.GLOBAL_LOGGER_NAME );
 
-    algorithm = cipherParameters.getChosenAlgorithm();
-    iv = cipherParameters.getChosenInitVector();
-    key = cipherParameters.getChosenSecretKey();
-
     cipherParameters.addActionListener( new ActionListener()
     {
       @Override
       public void actionPerformed( final ActionEvent e )
       {
-        switch( e.getActionCommand() )
+        // Several changes may be reported at once, but result in only one
+        // image render and one encryption
+        final ParameterChangeEvent change = (ParameterChangeEvent)e;
+        final Parameters parameters = cipherParameters.getParameters();
+        if( change.contains( CipherParameterPane.ACTION_ALGORITHM_CHANGED ) ||
+            change.contains( CipherParameterPane.ACTION_SECRET_KEY_CHANGED ) ||
+            change.contains( CipherParameterPane.ACTION_INITVECTOR_CHANGED ) )
+          {
+            // A new one is computed for the new parameters, if they allow it
+            Keystream.invalidate();
+          }
+
+        if( change.contains( CipherParameterPane.ACTION_ALGORITHM_CHANGED ) )
           {
-          case CipherParameterPane.ACTION_ALGORITHM_CHANGED:
-            algorithm = cipherParameters.getChosenAlgorithm();
+            final Algorithm algorithm = parameters.algorithm();
             if( algorithm == null )
               {
                 logger.info( "Algorithm cleared (this shouldn't happen!)" );
@@ -65,11 +88,11 @@ public class CipherTextOutput
               {
                 logger.info( "Algorithm selected: " + algorithm.spec() );
               }
-            break;
+          }
 
-          case CipherParameterPane.ACTION_INITVECTOR_CHANGED:
-            iv = cipherParameters.getChosenInitVector();
-            if( iv == null )
+        if( change.contains( CipherParameterPane.ACTION_INITVECTOR_CHANGED ) )
+          {
+            if( parameters.initVector() == null )
               {
                 logger.info( "Initialization Vector cleared (good, let the cipher create new ones each time)" );
               }
@@ -77,11 +100,11 @@ public class CipherTextOutput
               {
                 logger.info( "Initialization Vector fixed (bad, this will help cryptanalysts reverse the secret key)" );
               }
-            break;
+          }
 
-          case CipherParameterPane.ACTION_SECRET_KEY_CHANGED:
-            key = cipherParameters.getChosenSecretKey();
-            if( key == null )
+        if( change.contains( CipherParameterPane.ACTION_SECRET_KEY_CHANGED ) )
+          {
+            if( parameters.key() == null )
               {
                 logger.info( "Secret key cleared" );
               }
@@ -89,14 +112,17 @@ public class CipherTextOutput
               {
                 logger.info( "Secret Key generated" );
               }
-            break;
+          }
 
-          default:
+        if( change.contains( CipherParameterPane.ACTION_RECIPIENTS_CHANGED ) )
+          {
+            logger.info( "Recipients: " + parameters.recipients().size() );
           }
+
         updateImage( cipherParameters,
                      inputPictureLabel,
                      outputPictureLabel );
-        modified( plainTextInput.getText(),
+        modified( plainTextInput.getDocument(),
                   cipherParameters );
       }
     } );
@@ -112,7 +138,11 @@ public class CipherTextOutput
       @Override
       public void insertUpdate( final DocumentEvent e )
       {
-        modified( plainTextInput.getText(),
+        // The text encodes to at least one byte per character, but the one
+        // before the edit may have been the first half of a surrogate pair
+        treeDigest.invalidate( e.getOffset() - 1 );
+        plainTextEdits.incrementAndGet();
+        modified( e.getDocument(),
                   cipherParameters );
       }
 
@@ -120,7 +150,9 @@ public class CipherTextOutput
       @Override
       public void removeUpdate( final DocumentEvent e )
       {
-        modified( plainTextInput.getText(),
+        treeDigest.invalidate( e.getOffset() - 1 );
+        plainTextEdits.incrementAndGet();
+        modified( e.getDocument(),
                   cipherParameters );
       }
     } );
@@ -128,30 +160,85 @@ public class CipherTextOutput
     setToolTipText( "<html>"
                     + "The first two items (cipher text and initialization vector, if not empty)<br>"
                     + "are required. The third item serves to verify that the original plaintext<br>"
-                    + "was recovered intact; in many cases it may be unnecessary. Items<br>"
+                    + "was recovered intact; in many cases it may be unnecessary, but for the<br>"
+                    + "authenticated modes (GCM, Poly1305) it is the required tag. If the<br>"
+                    + "digest is not SHA-256, its name follows it; with HMAC-SHA-256, the<br>"
+                    + "third item authenticates the cipher text rather than the plain text. Items<br>"
                     + "can be separated from each other with whitespace, comma (,),<br>"
                     + "semicolon (;), or a pipe (|).<br>"
                     + "<br>"
                     + "Try modifying this to see what happens during decryption!<br>"
                     + "<br>"
+                    + "With recipients, the session key wrapped for each of them follows.<br>"
+                    + "<br>"
                     + "Nothing shows here unless you have a secret key defined above." );
   }
 
 
-  private void modified( final String plainTextInput,
+  /**
+   * Encrypts the plain text in the background. The text is never copied as a
+   * whole, so that even a very large input costs little more memory than the
+   * cipher text it produces. With recipients, the text is enciphered with the
+   * {@link Hybrid} session key instead of the secret key, and the session key
+   * wrapped for each recipient is added to the envelope.
+   */
+  private void modified( final Document plainTextInput,
                          final CipherParameterPane cipherParameters )
   {
-    if( (algorithm != null) && (key != null) )
+    final long edits = plainTextEdits.get();
+    final Parameters parameters = cipherParameters.getParameters();
+    final Algorithm algorithm = parameters.algorithm();
+    final List<PublicKey> recipients = parameters.recipients();
+    final int keySizeBits = cipherParameters.getChosenSecretKeySize();
+    if( (algorithm != null) && (recipients.isEmpty()
+        ? (parameters.key() != null)
+        : (keySizeBits > 0)) )
       {
         new SwingWorker<Void,Void>()
         {
           @Override
           public Void doInBackground()
           {
+            final Key key;
+            final List<String> wrappedKeys;
+            if( recipients.isEmpty() )
+              {
+                key = parameters.key();
+                wrappedKeys = Collections.emptyList();
+              }
+            else
+              {
+                try
+                  {
+                    key = hybrid.sessionKey( algorithm.name(),
+                                             keySizeBits );
+                    wrappedKeys = hybrid.wrapFor( recipients );
+                  }
+                catch( final GeneralSecurityException x )
+                  {
+                    logger.log( Level.WARNING,
+                                "Cannot wrap the session key",
+                                x );
+                    JOptionPane.showMessageDialog( CipherTextOutput.this,
+                                                   "<html>" +
+                                                       "The session key cannot be wrapped for the recipients:<br>" +
+                                                       x.getMessage(),
+                                                   "Public Keys",
+                                                   JOptionPane.ERROR_MESSAGE );
+                    return null;
+                  }
+              }
             try
               {
                 final Cipher c = Cipher.getInstance( algorithm.spec() );
-                byte[] iv = cipherParameters.getChosenInitVector();
+                // A fixed nonce is never reused with an authenticated mode
+                final byte[] fixedIV = (algorithm.isAuthenticated()
+                    ? null
+                    : parameters.initVector());
+                byte[] iv = (fixedIV == null
+                    ? RandomPool.initVectorFor( algorithm,
+                                                c )
+                    : fixedIV);
                 if( iv == null )
                   {
                     c.init( Cipher.ENCRYPT_MODE,
@@ -159,42 +246,154 @@ public class CipherTextOutput
                   }
                 else
                   {
-                    final IvParameterSpec ivSpec = new IvParameterSpec( iv );
                     c.init( Cipher.ENCRYPT_MODE,
                             key,
-                            ivSpec );
+                            algorithm.parameterSpec( iv ) );
                   }
-                final byte[] plainText = plainTextInput.getBytes( UTF8 );
-                final byte[] cipherText = c.doFinal( plainText );
-                logger.info( "Cipher Text = " + Transformations.toString( cipherText ) );
-                if( iv == null )
+                // An authenticated mode needs no separate digest: its tag
+                // covers the text in the same pass
+                final MessageDigest md;
+                final EncryptThenMac mac;
+                if( algorithm.isAuthenticated() )
+                  {
+                    associate( c,
+                               algorithm,
+                               wrappedKeys );
+                    md = null;
+                    mac = null;
+                  }
+                else if( EncryptThenMac.NAME.equals( parameters.digestType() ) )
+                  {
+                    md = null;
+                    mac = new EncryptThenMac( key,
+                                              algorithm,
+                                              c.getIV() );
+                  }
+                else
+                  {
+                    md = (TreeDigest.NAME.equals( parameters.digestType() )
+                        ? treeDigest.start()
+                        : MessageDigest.getInstance( "SHA-256" ));
+                    mac = null;
+                  }
+                // With a fixed init vector, the keystream of OFB and CTR is the
+                // same for every edit, and is computed only once
+                final Keystream keystream = ((fixedIV != null) && Keystream.isApplicable( algorithm )
+                    ? Keystream.of( algorithm,
+                                    key,
+                                    fixedIV )
+                    : null);
+                byte[] cipherText = encrypt( plainTextInput,
+                                             edits,
+                                             c,
+                                             keystream,
+                                             md,
+                                             mac );
+                if( (cipherText == null) || (cipherParameters.getParameters().version() != parameters.version()) )
+                  {
+                    // The text or the parameters have since been changed, and
+                    // the text is being encrypted anew
+                    return null;
+                  }
+                logger.log( Level.INFO,
+                            "Cipher Text = {0}",
+                            Transformations.lazyString( cipherText ) );
+                if( fixedIV == null )
                   {
                     iv = c.getIV();
-                    logger.info( "Randomly generated InitVector = " + Transformations.toString( iv ) );
+                    logger.log( Level.INFO,
+                                "Randomly generated InitVector = {0}",
+                                Transformations.lazyString( iv ) );
                   }
                 else
                   {
                     iv = c.getIV();
-                    logger.info( "Fixed InitVector (bad idea!) = " + Transformations.toString( iv ) );
+                    logger.log( Level.INFO,
+                                "Fixed InitVector (bad idea!) = {0}",
+                                Transformations.lazyString( iv ) );
                   }
 
-                final MessageDigest md = MessageDigest.getInstance( "SHA-256" );
-                final byte[] digest = md.digest( plainText );
-                logger.info( "Optional SHA-256 digest of plain text = " + Transformations.toString( digest ) );
+                final byte[] digest;
+                final String digestType;
+                if( mac != null )
+                  {
+                    // The MAC has been catching up with the encryption all along
+                    digest = mac.doFinal();
+                    digestType = EncryptThenMac.NAME;
+                    logger.log( Level.INFO,
+                                "MAC of cipher text = {0}",
+                                Transformations.lazyString( digest ) );
+                  }
+                else if( md == null )
+                  {
+                    // The Cipher appends the tag, which takes the place of the
+                    // digest in the envelope
+                    final int textLength = cipherText.length - algorithm.tagLength();
+                    digest = Arrays.copyOfRange( cipherText,
+                                                 textLength,
+                                                 cipherText.length );
+                    cipherText = Arrays.copyOf( cipherText,
+                                                textLength );
+                    digestType = null;
+                    logger.log( Level.INFO,
+                                "Authentication tag = {0}",
+                                Transformations.lazyString( digest ) );
+                  }
+                else
+                  {
+                    digest = md.digest();
+                    digestType = md.getAlgorithm();
+                    logger.log( Level.INFO,
+                                "Optional {0} digest of plain text = {1}",
+                                new Object[]{md.getAlgorithm(),Transformations.lazyString( digest )} );
+                  }
 
-                synchronized( CipherTextOutput.this )
+                final long version;
+                synchronized( envelope )
                   {
-                    setText( new String( Base64.encode( cipherText ) ) + "\n" + (iv == null
-                        ? ""
-                        : new String( Base64.encode( iv ) )) + "\n" + new String( Base64.encode( digest ) ) );
+                    envelope.setLength( 0 );
+                    Base64.appendTo( envelope,
+                                     cipherText,
+                                     0,
+                                     cipherText.length ).append( '\n' );
+                    if( iv != null )
+                      {
+                        Base64.appendTo( envelope,
+                                         iv,
+                                         0,
+                                         iv.length );
+                      }
+                    envelope.append( '\n' );
+                    Base64.appendTo( envelope,
+                                     digest,
+                                     0,
+                                     digest.length );
+                    if( (digestType != null) && !Parameters.DEFAULT_DIGEST.equals( digestType ) )
+                      {
+                        // Without it, the digest is taken to be SHA-256
+                        envelope.append( '\n' ).append( digestType );
+                      }
+                    for( final String wrappedKey : wrappedKeys )
+                      {
+                        envelope.append( '\n' ).append( wrappedKey );
+                      }
+                    version = ++envelopeVersion;
                   }
+                SwingUtilities.invokeLater( new Runnable()
+                {
+                  @Override
+                  public void run()
+                  {
+                    showEnvelope( version );
+                  }
+                } );
               }
             catch( final NoSuchAlgorithmException x )
               {
                 JOptionPane.showMessageDialog( CipherTextOutput.this,
                                                "<html>" +
                                                    "The algorithm '" +
-                                                   cipherParameters.getChosenAlgorithm().name() +
+                                                   algorithm.name() +
                                                    "' is unavailable!",
                                                "No Such Algorithm",
                                                JOptionPane.ERROR_MESSAGE );
@@ -205,7 +404,7 @@ public class CipherTextOutput
                 JOptionPane.showMessageDialog( CipherTextOutput.this,
                                                "<html>" +
                                                    "The padding '" +
-                                                   cipherParameters.getChosenAlgorithm().padding() +
+                                                   algorithm.padding() +
                                                    "' is unavailable!",
                                                "No Such Padding",
                                                JOptionPane.ERROR_MESSAGE );
@@ -262,7 +461,7 @@ public class CipherTextOutput
               }
             catch( final BadPaddingException x )
               {
-                final String padding = cipherParameters.getChosenAlgorithm().padding();
+                final String padding = algorithm.padding();
                 if( "NoPadding".equalsIgnoreCase( padding ) )
                   {
                     JOptionPane.showMessageDialog( CipherTextOutput.this,
@@ -292,21 +491,323 @@ public class CipherTextOutput
   }
 
 
+  /**
+   * Feeds the text of the Document, encoded as UTF-8, through the Cipher and
+   * the MessageDigest. The Document is read a chunk at a time, each under its
+   * read lock, so that the event dispatch thread is never held up for long.
+   *
+   * @param document
+   *          The plain text.
+   * @param edits
+   *          The number of {@link #plainTextEdits edits} at the time the
+   *          encryption was requested.
+   * @param c
+   *          An initialized Cipher.
+   * @param keystream
+   *          The precomputed keystream of the Cipher, which is then used in its
+   *          place, or null.
+   * @param md
+   *          Receives the plain text bytes, or null.
+   * @param mac
+   *          Receives the cipher text bytes as they are produced, or null.
+   * @return The cipher text, or null if the Document was edited meanwhile.
+   */
+  private byte[] encrypt( final Document document,
+                          final long edits,
+                          final Cipher c,
+                          final Keystream keystream,
+                          final MessageDigest md,
+                          final EncryptThenMac mac )
+    throws IllegalBlockSizeException,
+      BadPaddingException
+  {
+    final Chunks chunks = CHUNKS.get();
+    ByteBuffer out = ByteBuffer.allocate( keystream == null
+        ? c.getOutputSize( document.getLength() )
+        : keystream.outputSize( document.getLength() ) );
+    long position = 0;
+    int macPosition = 0;
+    try
+      {
+        chunks.encoder.reset();
+        chunks.offset = 0;
+        chunks.isLast = false;
+        while( !chunks.isLast )
+          {
+            chunks.isStale = false;
+            document.render( new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                chunks.read( document,
+                             plainTextEdits,
+                             edits );
+              }
+            } );
+            if( chunks.isStale )
+              {
+                return null;
+              }
+
+            if( md != null )
+              {
+                md.update( chunks.bytes.duplicate() );
+              }
+            if( keystream == null )
+              {
+                out = ensureRemaining( out,
+                                       c.getOutputSize( chunks.bytes.remaining() ) );
+                c.update( chunks.bytes,
+                          out );
+              }
+            else
+              {
+                out = ensureRemaining( out,
+                                       chunks.bytes.remaining() );
+                position = keystream.xor( chunks.bytes,
+                                          out,
+                                          position );
+              }
+            if( mac != null )
+              {
+                // What has been written to the buffer is never changed (even
+                // if the buffer is replaced by a larger one)
+                mac.update( out.array(),
+                            macPosition,
+                            out.position() - macPosition );
+                macPosition = out.position();
+              }
+          }
+        if( keystream == null )
+          {
+            out = ensureRemaining( out,
+                                   c.getOutputSize( 0 ) );
+            c.doFinal( ByteBuffer.allocate( 0 ),
+                       out );
+          }
+        else
+          {
+            out = ensureRemaining( out,
+                                   keystream.outputSize( 0 ) );
+            keystream.pad( out,
+                           position );
+          }
+        if( mac != null )
+          {
+            mac.update( out.array(),
+                        macPosition,
+                        out.position() - macPosition );
+          }
+      }
+    catch( final ShortBufferException x )
+      {
+        // Can't happen, the output always has room for what the Cipher needs
+        throw new IllegalStateException( x );
+      }
+    return Arrays.copyOf( out.array(),
+                          out.position() );
+  }
+
+
+  /**
+   * Feeds the associated data of an {@link Algorithm#isAuthenticated()
+   * authenticated} mode into the Cipher, one piece at a time: the algorithm,
+   * and the wrapped session keys (if any). These are not enciphered, but the
+   * tag no longer verifies if any of them is changed. Must be called after
+   * initializing the Cipher, and before the text is fed to it.
+   *
+   * @param c
+   *          An initialized Cipher, for either mode.
+   * @param algorithm
+   *          The algorithm of the Cipher.
+   * @param wrappedKeys
+   *          The {@link Hybrid} tokens, in the order of the envelope.
+   */
+  static void associate( final Cipher c,
+                         final Algorithm algorithm,
+                         final List<String> wrappedKeys )
+  {
+    c.updateAAD( UTF8.encode( algorithm.spec() ) );
+    for( final String wrappedKey : wrappedKeys )
+      {
+        c.updateAAD( UTF8.encode( "\n" + wrappedKey ) );
+      }
+  }
+
+
+  private static ByteBuffer ensureRemaining( final ByteBuffer buffer,
+                                             final int needed )
+  {
+    if( buffer.remaining() >= needed )
+      {
+        return buffer;
+      }
+    final int capacity = Math.max( buffer.position() + needed,
+                                   buffer.capacity() + (buffer.capacity() >> 1) );
+    final ByteBuffer result = ByteBuffer.allocate( capacity );
+    buffer.flip();
+    result.put( buffer );
+    return result;
+  }
+
+
+  /**
+   * The per-thread state for reading and encoding a Document in chunks; the
+   * buffers are kept from one encryption to the next.
+   */
+  private static final class Chunks
+  {
+    Chunks()
+    {
+      segment.setPartialReturn( true );
+    }
+
+
+    /**
+     * Encodes the next chunk of the Document into {@link #bytes}. Runs under
+     * the Document's read lock.
+     */
+    void read( final Document document,
+               final AtomicLong currentEdits,
+               final long edits )
+    {
+      if( currentEdits.get() != edits )
+        {
+          isStale = true;
+          return;
+        }
+      final int length = document.getLength();
+      final int count = Math.min( CHUNK_SIZE,
+                                  length - offset );
+      try
+        {
+          document.getText( offset,
+                            count,
+                            segment );
+          if( (segment.count < 2) && (offset + segment.count < length) )
+            {
+              // The gap of the Document's content follows right after this
+              // character; should it be a high surrogate, the encoder would
+              // keep it back and nothing would be read, so the pair is read
+              // as a copy instead
+              segment.setPartialReturn( false );
+              try
+                {
+                  document.getText( offset,
+                                    Math.min( 2,
+                                              length - offset ),
+                                    segment );
+                }
+              finally
+                {
+                  segment.setPartialReturn( true );
+                }
+            }
+        }
+      catch( final BadLocationException x )
+        {
+          isStale = true;
+          return;
+        }
+      isLast = (offset + segment.count >= length);
+
+      final CharBuffer chars = CharBuffer.wrap( segment.array,
+                                                segment.offset,
+                                                segment.count );
+      bytes.clear();
+      encoder.encode( chars,
+                      bytes,
+                      isLast );
+      if( isLast )
+        {
+          encoder.flush( bytes );
+        }
+      // A high surrogate at the very end is left for the next chunk
+      offset += segment.count - chars.remaining();
+      bytes.flip();
+    }
+
+    int offset;
+    boolean isLast;
+    boolean isStale;
+    final Segment segment = new Segment();
+    final CharsetEncoder encoder = UTF8.newEncoder()
+                                       .onMalformedInput( CodingErrorAction.REPLACE )
+                                       .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    final ByteBuffer bytes = ByteBuffer.allocate( (int)Math.ceil( CHUNK_SIZE * encoder.maxBytesPerChar() ) );
+  }
+
+
+  /**
+   * Moves the most recently built envelope into the Document, unless it is
+   * already showing. Runs on the event dispatch thread.
+   */
+  private void showEnvelope( final long version )
+  {
+    synchronized( envelope )
+      {
+        if( version < envelopeVersion || version == shownVersion )
+          {
+            // A newer envelope has replaced this one and will show itself
+            return;
+          }
+        Documents.setText( this,
+                           envelope );
+        shownVersion = version;
+      }
+  }
+
+
   private void updateImage( final CipherParameterPane cipherParameters,
                             final JLabel inputPictureLabel,
                             final JLabel outputPictureLabel )
   {
-    if( (algorithm != null) && (key != null) )
+    final Parameters parameters = cipherParameters.getParameters();
+    final Algorithm algorithm = parameters.algorithm();
+    final boolean isHybrid = !parameters.recipients().isEmpty();
+    final int keySizeBits = cipherParameters.getChosenSecretKeySize();
+    // The picture is loaded in the background, and may not be there yet
+    if( (algorithm != null) && (isHybrid
+        ? (keySizeBits > 0)
+        : (parameters.key() != null)) && (inputPictureLabel.getIcon() instanceof ImageIcon) )
       {
         new SwingWorker<Void,Void>()
         {
           @Override
           public Void doInBackground()
           {
+            final Key key;
+            if( isHybrid )
+              {
+                try
+                  {
+                    key = hybrid.sessionKey( algorithm.name(),
+                                             keySizeBits );
+                  }
+                catch( final NoSuchAlgorithmException x )
+                  {
+                    logger.log( Level.WARNING,
+                                "Cannot generate a session key",
+                                x );
+                    return null;
+                  }
+              }
+            else
+              {
+                key = parameters.key();
+              }
             try
               {
                 final Cipher c = Cipher.getInstance( algorithm.spec() );
-                final byte[] iv = cipherParameters.getChosenInitVector();
+                // A fixed nonce is never reused with an authenticated mode
+                final byte[] fixedIV = (algorithm.isAuthenticated()
+                    ? null
+                    : parameters.initVector());
+                final byte[] iv = (fixedIV == null
+                    ? RandomPool.initVectorFor( algorithm,
+                                                c )
+                    : fixedIV);
 
                 final BufferedImage img = (BufferedImage)((ImageIcon)inputPictureLabel.getIcon()).getImage();
                 final int wide = img.getWidth( null );
@@ -333,11 +834,11 @@ public class CipherTextOutput
                   }
                 else
                   {
-                    final IvParameterSpec ivSpec = new IvParameterSpec( iv );
                     c.init( Cipher.ENCRYPT_MODE,
                             key,
-                            ivSpec );
+                            algorithm.parameterSpec( iv ) );
                   }
+                // The tag (of an authenticated mode) at the end is not shown
                 final byte[] cRGBA = c.doFinal( rgba );
 
                 final BufferedImage buf = new BufferedImage( wide,
@@ -362,7 +863,7 @@ public class CipherTextOutput
                 JOptionPane.showMessageDialog( CipherTextOutput.this,
                                                "<html>" +
                                                    "The algorithm '" +
-                                                   cipherParameters.getChosenAlgorithm().name() +
+                                                   algorithm.name() +
                                                    "' is unavailable!",
                                                "No Such Algorithm",
                                                JOptionPane.ERROR_MESSAGE );
@@ -373,7 +874,7 @@ public class CipherTextOutput
                 JOptionPane.showMessageDialog( CipherTextOutput.this,
                                                "<html>" +
                                                    "The padding '" +
-                                                   cipherParameters.getChosenAlgorithm().padding() +
+                                                   algorithm.padding() +
                                                    "' is unavailable!",
                                                "No Such Padding",
                                                JOptionPane.ERROR_MESSAGE );
@@ -430,7 +931,7 @@ public class CipherTextOutput
               }
             catch( final BadPaddingException x )
               {
-                final String padding = cipherParameters.getChosenAlgorithm().padding();
+                final String padding = algorithm.padding();
                 if( "NoPadding".equalsIgnoreCase( padding ) )
                   {
                     JOptionPane.showMessageDialog( CipherTextOutput.this,
@@ -459,10 +960,26 @@ public class CipherTextOutput
       }
   }
 
-  private Algorithm algorithm;
-  private byte[] iv;
-  private Key key;
   private final Logger logger;
+  private final Hybrid hybrid = new Hybrid();
+  private final TreeDigest treeDigest = new TreeDigest();
+  private final StringBuilder envelope = new StringBuilder();
+  /**
+   * Counts the edits made to the plain text, so that an encryption still in
+   * progress can tell that it is no longer needed.
+   */
+  private final AtomicLong plainTextEdits = new AtomicLong();
+  private long envelopeVersion;
+  private long shownVersion;
   private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final int CHUNK_SIZE = 64 * 1024; // characters
+  private static final ThreadLocal<Chunks> CHUNKS = new ThreadLocal<Chunks>()
+  {
+    @Override
+    protected Chunks initialValue()
+    {
+      return new Chunks();
+    }
+  };
   private static final long serialVersionUID = -4667318381366459940L;
 }
@@ -0,0 +1,212 @@
+package com.ringlord.cryptcreature;
+
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * <p>
+ * Encrypt-then-MAC: An HMAC-SHA256 over the algorithm, the init vector, and the
+ * cipher text, so that any change to them is detected <em>before</em>
+ * deciphering, without deciphering anything. Unlike a digest of the plain text,
+ * it cannot be recomputed by whoever changed the cipher text, for they lack the
+ * key.
+ * </p>
+ *
+ * <p>
+ * The MAC key is derived from the secret key (or session key), so that the same
+ * key is never used for both purposes. While enciphering, the cipher text is
+ * {@link #update(byte[], int, int) handed} to the MAC as each chunk of it is
+ * produced, and the MAC is computed on a thread of its own, so that the two
+ * overlap: Enciphering with a MAC takes about as long as the slower of the
+ * two, rather than both.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public final class EncryptThenMac
+{
+  /**
+   * @param key
+   *          The secret key with which the text is (or was) enciphered.
+   * @param algorithm
+   *          The algorithm with which the text is (or was) enciphered.
+   * @param initVector
+   *          The init vector, or null if there is none.
+   * @throws InvalidKeyException
+   *           If the key cannot be encoded.
+   */
+  public EncryptThenMac( final Key key,
+                         final Algorithm algorithm,
+                         final byte[] initVector )
+    throws InvalidKeyException
+  {
+    super();
+    mac = start( key,
+                 algorithm,
+                 initVector );
+  }
+
+
+  /**
+   * Hands more of the cipher text to the MAC, which takes it up in the
+   * background.
+   *
+   * @param cipherText
+   *          Holds the cipher text; this part of it must not be changed
+   *          afterwards.
+   * @param offset
+   *          The position of the part.
+   * @param length
+   *          The length of the part.
+   */
+  public void update( final byte[] cipherText,
+                      final int offset,
+                      final int length )
+  {
+    if( length > 0 )
+      {
+        computer.execute( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            mac.update( cipherText,
+                        offset,
+                        length );
+          }
+        } );
+      }
+  }
+
+
+  /**
+   * @return The MAC, once all of the cipher text handed to it has been taken
+   *         up.
+   */
+  public byte[] doFinal()
+  {
+    try
+      {
+        return computer.submit( new Callable<byte[]>()
+        {
+          @Override
+          public byte[] call()
+          {
+            return mac.doFinal();
+          }
+        } ).get();
+      }
+    catch( final InterruptedException |
+                 ExecutionException x )
+      {
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  /**
+   * @param key
+   *          The secret key with which the text was enciphered.
+   * @param algorithm
+   *          The algorithm with which the text was enciphered.
+   * @param initVector
+   *          The init vector, or null if there is none.
+   * @param cipherText
+   *          The cipher text.
+   * @param expected
+   *          The MAC that came with the cipher text.
+   * @return true if the MAC is as expected; the comparison takes the same time
+   *         however many of its bytes match.
+   * @throws InvalidKeyException
+   *           If the key cannot be encoded.
+   */
+  public static boolean verify( final Key key,
+                                final Algorithm algorithm,
+                                final byte[] initVector,
+                                final byte[] cipherText,
+                                final byte[] expected )
+    throws InvalidKeyException
+  {
+    final Mac mac = start( key,
+                           algorithm,
+                           initVector );
+    return MessageDigest.isEqual( mac.doFinal( cipherText ),
+                                  expected );
+  }
+
+
+  /**
+   * @return A Mac with the derived key, which has already taken up the
+   *         algorithm and init vector.
+   */
+  private static Mac start( final Key key,
+                            final Algorithm algorithm,
+                            final byte[] initVector )
+    throws InvalidKeyException
+  {
+    final byte[] encoded = key.getEncoded();
+    if( (encoded == null) || (encoded.length == 0) )
+      {
+        throw new InvalidKeyException( "The key cannot be encoded" );
+      }
+    try
+      {
+        // The MAC key is the HMAC of a fixed label under the secret key
+        final Mac derive = Mac.getInstance( HMAC );
+        derive.init( new SecretKeySpec( encoded,
+                                        HMAC ) );
+        final Mac mac = Mac.getInstance( HMAC );
+        mac.init( new SecretKeySpec( derive.doFinal( MAC_KEY_LABEL ),
+                                     HMAC ) );
+        final byte[] spec = algorithm.spec().getBytes( UTF8 );
+        final byte[] iv = (initVector == null
+            ? new byte[0]
+            : initVector);
+        // The lengths keep the algorithm and init vector from running into
+        // the cipher text
+        mac.update( (byte)spec.length );
+        mac.update( spec );
+        mac.update( (byte)iv.length );
+        mac.update( iv );
+        return mac;
+      }
+    catch( final NoSuchAlgorithmException x )
+      {
+        // Every Java platform is required to support HmacSHA256
+        throw new IllegalStateException( x );
+      }
+  }
+
+  private final Mac mac;
+  //
+  /**
+   * The name of the MAC, as it is given in the envelope.
+   */
+  public static final String NAME = "HMAC-SHA-256";
+  private static final String HMAC = "HmacSHA256";
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final byte[] MAC_KEY_LABEL = "CryptCreature encrypt-then-MAC key".getBytes( UTF8 );
+  private static final ExecutorService computer = Executors.newSingleThreadExecutor( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+                                   "MAC computer" );
+      t.setDaemon( true );
+      return t;
+    }
+  } );
+}
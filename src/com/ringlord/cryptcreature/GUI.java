@@ -2,12 +2,11 @@ package com.ringlord.cryptcreature;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Cursor;
 import java.awt.GridLayout;
-import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
-import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
@@ -17,10 +16,11 @@ import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +41,9 @@ import javax.swing.text.JTextComponent;
 
 import com.ringlord.Config;
 import com.ringlord.CryptCreature;
+import com.ringlord.logging.LogThrottle;
 import com.ringlord.swing.Images;
+import com.ringlord.swing.TextTransferable;
 
 
 public class GUI
@@ -73,6 +75,17 @@ public class GUI
 
     this.config = new Config( new File( CryptCreature.storage(),
                                         "cryptcreature.conf" ) );
+    for( final Handler handler : Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).getHandlers() )
+      {
+        if( handler.getFilter() instanceof LogThrottle )
+          {
+            ((LogThrottle)handler.getFilter()).configure( config );
+          }
+      }
+    RandomPool.setDepth( config.get( "random-pool-depth",
+                                     8 ) );
+    RandomPool.setRefillThreshold( config.get( "random-pool-refill-threshold",
+                                               2 ) );
 
     setDefaultCloseOperation( DO_NOTHING_ON_CLOSE );
     addWindowListener( new WindowAdapter()
@@ -88,12 +101,18 @@ public class GUI
                   .setDismissDelay( ToolTipManager.sharedInstance()
                                                   .getDismissDelay() * 2 );
 
-    final List<Image> imageIcons = new ArrayList<>();
-    imageIcons.add( Images.getImage( "/img/logo-64.png" ) );
-    imageIcons.add( Images.getImage( "/img/logo-32.png" ) );
-    imageIcons.add( Images.getImage( "/img/logo-24.png" ) );
-    imageIcons.add( Images.getImage( "/img/logo-16.png" ) );
-    setIconImages( imageIcons );
+    // The images are decoded in the background and put in place when ready,
+    // so that the window need not wait for them
+    Images.preload( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        Images.setWindowIcons( GUI.this,
+                               LOGOS );
+      }
+    },
+                    LOGOS );
 
     // PARAMETERS
     final CipherParameterPane cipherParameters = new CipherParameterPane( config );
@@ -103,26 +122,39 @@ public class GUI
                                                                  4,
                                                                  12 ) );
 
-    final Icon tuxIcon = Images.getIcon( "/img/tux.png" );
-    final BufferedImage img = (BufferedImage)((ImageIcon)tuxIcon).getImage();
-    final int wide = img.getWidth( null );
-    final int high = img.getHeight( null );
-    final BufferedImage buf = new BufferedImage( wide,
-                                                 high,
-                                                 img.getType() );
-    final int i = 0;
-    for( int w = 0; w < wide; w++ )
+    final JLabel inputPicture = new JLabel();
+    final JLabel outputPicture = new JLabel();
+    Images.preload( new Runnable()
+    {
+      @Override
+      public void run()
       {
-        for( int h = 0; h < high; h++ )
+        final Icon tuxIcon = Images.getIcon( TUX );
+        if( tuxIcon == null )
           {
-            buf.setRGB( w,
-                        h,
-                        0xffffffff );
+            return;
           }
+        final BufferedImage img = (BufferedImage)((ImageIcon)tuxIcon).getImage();
+        final int wide = img.getWidth( null );
+        final int high = img.getHeight( null );
+        final BufferedImage buf = new BufferedImage( wide,
+                                                     high,
+                                                     img.getType() );
+        for( int w = 0; w < wide; w++ )
+          {
+            for( int h = 0; h < high; h++ )
+              {
+                buf.setRGB( w,
+                            h,
+                            0xffffffff );
+              }
+          }
+        inputPicture.setIcon( tuxIcon );
+        outputPicture.setIcon( new ImageIcon( buf ) );
+        revalidate();
       }
-
-    final JLabel inputPicture = new JLabel( tuxIcon );
-    final JLabel outputPicture = new JLabel( new ImageIcon( buf ) );
+    },
+                    TUX );
 
     inputPicture.setBorder( BorderFactory.createLineBorder( Color.black,
                                                             1 ) );
@@ -255,6 +287,19 @@ public class GUI
                                                        12,
                                                        6,
                                                        12 ) );
+    status.setToolTipText( "Click to view, filter, and search the log" );
+    status.setCursor( Cursor.getPredefinedCursor( Cursor.HAND_CURSOR ) );
+    status.addMouseListener( new MouseAdapter()
+    {
+      @Override
+      public void mouseClicked( final MouseEvent e )
+      {
+        final LogViewer viewer = new LogViewer( CryptCreature.storage(),
+                                                "cryptcreature" );
+        viewer.setLocationRelativeTo( GUI.this );
+        viewer.setVisible( true );
+      }
+    } );
 
     final JPanel layout = new JPanel( new BorderLayout() );
     layout.add( BorderLayout.NORTH,
@@ -289,27 +334,16 @@ public class GUI
       @Override
       public void actionPerformed( final ActionEvent e )
       {
-        String sel = cipherTextOutput.getSelectedText();
-        if( sel == null )
-          {
-            sel = cipherTextOutput.getText();
-          }
-        try
+        final TextTransferable.Source text = source( cipherTextOutput );
+        copy( new TextTransferable( new TextTransferable.Source()
+        {
+          @Override
+          public Reader open()
+            throws IOException
           {
-            sel = sel.replaceAll( "\\s+",
-                                  "," );
-            sel = URLEncoder.encode( sel,
-                                     "UTF-8" );
-            final StringSelection selection = new StringSelection( sel );
-            final Clipboard clipboard = Toolkit.getDefaultToolkit()
-                                               .getSystemClipboard();
-            clipboard.setContents( selection,
-                                   selection );
-          }
-        catch( final UnsupportedEncodingException x )
-          {
-            x.printStackTrace();
+            return new URLEncodingReader( text.open() );
           }
+        } ) );
       }
     } );
     copySelectionAsIs.addActionListener( new ActionListener()
@@ -317,16 +351,7 @@ public class GUI
       @Override
       public void actionPerformed( final ActionEvent e )
       {
-        String sel = cipherTextOutput.getSelectedText();
-        if( sel == null )
-          {
-            sel = cipherTextOutput.getText();
-          }
-        final StringSelection selection = new StringSelection( sel );
-        final Clipboard clipboard = Toolkit.getDefaultToolkit()
-                                           .getSystemClipboard();
-        clipboard.setContents( selection,
-                               selection );
+        copy( new TextTransferable( source( cipherTextOutput ) ) );
       }
     } );
     popup.add( copySelectionEncoded );
@@ -337,6 +362,170 @@ public class GUI
   }
 
 
+  /**
+   * The selected text if there is a selection, otherwise the entire text, as
+   * it is at the time of copying: The Document goes on changing while the text
+   * sits on the clipboard, so it is not read from there when the receiving
+   * side asks for it.
+   */
+  private static TextTransferable.Source source( final JTextComponent component )
+  {
+    final String selection = component.getSelectedText();
+    final String text = (selection != null
+        ? selection
+        : component.getText());
+    return new TextTransferable.Source()
+    {
+      @Override
+      public Reader open()
+      {
+        return new StringReader( text );
+      }
+    };
+  }
+
+
+  private static void copy( final TextTransferable transferable )
+  {
+    final Clipboard clipboard = Toolkit.getDefaultToolkit()
+                                       .getSystemClipboard();
+    clipboard.setContents( transferable,
+                           transferable );
+  }
+
+
+  /**
+   * Replaces each run of whitespace with a single comma and URL encodes the
+   * result, a buffer at a time.
+   */
+  private static class URLEncodingReader
+    extends Reader
+  {
+    URLEncodingReader( final Reader reader )
+    {
+      super();
+      this.reader = reader;
+    }
+
+
+    @Override
+    public int read( final char[] cbuf,
+                     final int off,
+                     final int len )
+      throws IOException
+    {
+      if( len == 0 )
+        {
+          return 0;
+        }
+      while( position >= encoded.length() )
+        {
+          if( !fill() )
+            {
+              return -1;
+            }
+        }
+      final int count = Math.min( len,
+                                  encoded.length() - position );
+      encoded.getChars( position,
+                        position + count,
+                        cbuf,
+                        off );
+      position += count;
+      return count;
+    }
+
+
+    private boolean fill()
+      throws IOException
+    {
+      final int count = reader.read( buffer );
+      if( count < 0 )
+        {
+          if( pending.length() == 0 )
+            {
+              return false;
+            }
+          encode();
+          return true;
+        }
+      for( int i = 0; i < count; i++ )
+        {
+          final char ch = buffer[i];
+          if( isWhitespace( ch ) )
+            {
+              if( !inWhitespace )
+                {
+                  pending.append( ',' );
+                  inWhitespace = true;
+                }
+            }
+          else
+            {
+              pending.append( ch );
+              inWhitespace = false;
+            }
+        }
+
+      // Don't separate the halves of a surrogate pair across two encodings
+      final int last = pending.length() - 1;
+      if( (last >= 0) && Character.isHighSurrogate( pending.charAt( last ) ) )
+        {
+          final char high = pending.charAt( last );
+          pending.setLength( last );
+          encode();
+          pending.append( high );
+        }
+      else
+        {
+          encode();
+        }
+      return true;
+    }
+
+
+    private void encode()
+    {
+      try
+        {
+          encoded = URLEncoder.encode( pending.toString(),
+                                       "UTF-8" );
+        }
+      catch( final UnsupportedEncodingException x )
+        {
+          // UTF-8 is always supported
+          throw new IllegalStateException( x );
+        }
+      pending.setLength( 0 );
+      position = 0;
+    }
+
+
+    /**
+     * The characters matched by the regular expression \s
+     */
+    private static boolean isWhitespace( final char ch )
+    {
+      return (ch == ' ') || (ch == '\t') || (ch == '\n') || (ch == '\u000B') || (ch == '\f') || (ch == '\r');
+    }
+
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      reader.close();
+    }
+
+    private boolean inWhitespace;
+    private int position;
+    private String encoded = "";
+    private final Reader reader;
+    private final char[] buffer = new char[8 * 1024];
+    private final StringBuilder pending = new StringBuilder();
+  }
+
+
   private void shutdown()
   {
     setVisible( false );
@@ -355,8 +544,16 @@ public class GUI
                     x );
       }
     dispose();
+
+    // Drain whatever log records are still queued for writing
+    for( final Handler handler : Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).getHandlers() )
+      {
+        handler.flush();
+      }
   }
 
   private final Config config;
+  private static final String[] LOGOS = {"/img/logo-64.png","/img/logo-32.png","/img/logo-24.png","/img/logo-16.png"};
+  private static final String TUX = "/img/tux.png";
   private static final long serialVersionUID = 6617907165125822034L;
 }
@@ -0,0 +1,285 @@
+package com.ringlord.cryptcreature;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import com.ringlord.mime.Base64;
+
+
+/**
+ * <p>
+ * Hybrid encryption: The message is enciphered with a symmetric session key,
+ * and only that (short) session key is enciphered &mdash; wrapped &mdash; with
+ * the RSA public key of each recipient (using OAEP padding). Each recipient
+ * unwraps the session key with their private key, and then deciphers the
+ * message with it. RSA on its own can encipher no more than one modulus worth
+ * of data, and is far slower per byte besides.
+ * </p>
+ *
+ * <p>
+ * A Hybrid keeps using the same session key until the algorithm or key size
+ * changes, or until it is {@link #rotate() rotated}, and remembers the session
+ * key wrapped for each recipient, so that enciphering the message again does
+ * not repeat the RSA operations. Likewise, a session key once unwrapped is
+ * remembered. A fresh init vector must of course be used each time.
+ * </p>
+ *
+ * <p>
+ * The wrapped session keys travel with the cipher text as tokens of the form
+ * <code>rsa:<i>fingerprint</i>:<i>wrapped key</i></code> (both Base64), where
+ * the fingerprint is the SHA-256 digest of the recipient's public key. All
+ * methods may be called from any thread.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public class Hybrid
+{
+  /**
+   * @param keySizeBits
+   *          The size of the RSA modulus, such as 2048 or 4096.
+   * @return A new RSA key pair.
+   */
+  public static KeyPair generateKeyPair( final int keySizeBits )
+  {
+    try
+      {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance( RSA );
+        generator.initialize( keySizeBits,
+                              RandomPool.random() );
+        return generator.generateKeyPair();
+      }
+    catch( final NoSuchAlgorithmException x )
+      {
+        // Every Java platform is required to support RSA
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  /**
+   * @param encoded
+   *          An RSA public key in its X.509 encoding (as by
+   *          {@link PublicKey#getEncoded()}).
+   * @return The public key.
+   * @throws GeneralSecurityException
+   *           If it is not an RSA public key.
+   */
+  public static PublicKey readPublicKey( final byte[] encoded )
+    throws GeneralSecurityException
+  {
+    return KeyFactory.getInstance( RSA ).generatePublic( new X509EncodedKeySpec( encoded ) );
+  }
+
+
+  /**
+   * @param encoded
+   *          An RSA private key in its PKCS #8 encoding (as by
+   *          {@link PrivateKey#getEncoded()}).
+   * @return The private key.
+   * @throws GeneralSecurityException
+   *           If it is not an RSA private key.
+   */
+  public static PrivateKey readPrivateKey( final byte[] encoded )
+    throws GeneralSecurityException
+  {
+    return KeyFactory.getInstance( RSA ).generatePrivate( new PKCS8EncodedKeySpec( encoded ) );
+  }
+
+
+  /**
+   * @param privateKey
+   *          An RSA private key.
+   * @return The matching public key.
+   * @throws GeneralSecurityException
+   *           If the private key does not carry its public exponent.
+   */
+  public static PublicKey publicKeyOf( final PrivateKey privateKey )
+    throws GeneralSecurityException
+  {
+    if( !(privateKey instanceof RSAPrivateCrtKey) )
+      {
+        throw new GeneralSecurityException( "The public key cannot be found from this private key" );
+      }
+    final RSAPrivateCrtKey crt = (RSAPrivateCrtKey)privateKey;
+    final BigInteger modulus = crt.getModulus();
+    return KeyFactory.getInstance( RSA ).generatePublic( new RSAPublicKeySpec( modulus,
+                                                                               crt.getPublicExponent() ) );
+  }
+
+
+  /**
+   * @param publicKey
+   *          A public key.
+   * @return The (Base64 encoded) SHA-256 digest of the public key.
+   */
+  public static String fingerprint( final PublicKey publicKey )
+  {
+    try
+      {
+        final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( publicKey.getEncoded() );
+        return new String( Base64.encodeToChars( digest ) );
+      }
+    catch( final NoSuchAlgorithmException x )
+      {
+        // Every Java platform is required to support SHA-256
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  /**
+   * @param token
+   *          One token of an envelope.
+   * @return true if the token is a wrapped session key.
+   */
+  public static boolean isWrappedKey( final String token )
+  {
+    return token.startsWith( TOKEN_PREFIX );
+  }
+
+
+  /**
+   * @param algorithm
+   *          The name of the symmetric algorithm (such as "AES").
+   * @param keySizeBits
+   *          The size of the session key.
+   * @return The current session key, which is replaced by a new one if the
+   *         algorithm or key size is different from last time.
+   * @throws NoSuchAlgorithmException
+   *           If no keys can be generated for the algorithm.
+   */
+  public synchronized SecretKey sessionKey( final String algorithm,
+                                            final int keySizeBits )
+    throws NoSuchAlgorithmException
+  {
+    if( (sessionKey == null) || !sessionKey.getAlgorithm().equals( algorithm ) || (sessionKeySize != keySizeBits) )
+      {
+        sessionKey = RandomPool.key( algorithm,
+                                     keySizeBits );
+        sessionKeySize = keySizeBits;
+        wrapped.clear();
+      }
+    return sessionKey;
+  }
+
+
+  /**
+   * Forgets the session key (and its wrappings), so that the next
+   * {@link #sessionKey(String, int)} is a new one.
+   */
+  public synchronized void rotate()
+  {
+    sessionKey = null;
+    wrapped.clear();
+  }
+
+
+  /**
+   * @param recipients
+   *          The public keys of the recipients.
+   * @return The current session key wrapped for each of the recipients, as
+   *         envelope tokens, in the order of the recipients.
+   * @throws GeneralSecurityException
+   *           If the session key cannot be wrapped (such as because a modulus
+   *           is too small for the OAEP padding).
+   */
+  public synchronized List<String> wrapFor( final List<PublicKey> recipients )
+    throws GeneralSecurityException
+  {
+    if( sessionKey == null )
+      {
+        throw new IllegalStateException( "No session key" );
+      }
+    final List<String> tokens = new ArrayList<>( recipients.size() );
+    for( final PublicKey recipient : recipients )
+      {
+        final String fingerprint = fingerprint( recipient );
+        String token = wrapped.get( fingerprint );
+        if( token == null )
+          {
+            final Cipher c = Cipher.getInstance( WRAP );
+            c.init( Cipher.WRAP_MODE,
+                    recipient,
+                    RandomPool.random() );
+            token = TOKEN_PREFIX + fingerprint + ":" + new String( Base64.encodeToChars( c.wrap( sessionKey ) ) );
+            wrapped.put( fingerprint,
+                         token );
+          }
+        tokens.add( token );
+      }
+    return tokens;
+  }
+
+
+  /**
+   * @param tokens
+   *          The tokens of an envelope.
+   * @param privateKey
+   *          The private key of a recipient.
+   * @param algorithm
+   *          The name of the symmetric algorithm (such as "AES").
+   * @return The session key wrapped (among the tokens) for the recipient, or
+   *         null if there is none for them.
+   * @throws GeneralSecurityException
+   *           If the session key cannot be unwrapped.
+   */
+  public synchronized SecretKey unwrap( final List<String> tokens,
+                                        final PrivateKey privateKey,
+                                        final String algorithm )
+    throws GeneralSecurityException
+  {
+    final String prefix = TOKEN_PREFIX + fingerprint( publicKeyOf( privateKey ) ) + ":";
+    for( final String token : tokens )
+      {
+        if( token.startsWith( prefix ) )
+          {
+            final String cacheKey = algorithm + ":" + token;
+            SecretKey key = unwrapped.get( cacheKey );
+            if( key == null )
+              {
+                final Cipher c = Cipher.getInstance( WRAP );
+                c.init( Cipher.UNWRAP_MODE,
+                        privateKey );
+                final byte[] wrappedKey = Base64.decode( token.substring( prefix.length() ).getBytes() );
+                final Key k = c.unwrap( wrappedKey,
+                                        algorithm,
+                                        Cipher.SECRET_KEY );
+                key = (SecretKey)k;
+                unwrapped.put( cacheKey,
+                               key );
+              }
+            return key;
+          }
+      }
+    return null;
+  }
+
+  private SecretKey sessionKey;
+  private int sessionKeySize;
+  private final Map<String,String> wrapped = new HashMap<>(); // by recipient fingerprint
+  private final Map<String,SecretKey> unwrapped = new HashMap<>(); // by algorithm and token
+  //
+  private static final String RSA = "RSA";
+  private static final String WRAP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+  private static final String TOKEN_PREFIX = "rsa:";
+}
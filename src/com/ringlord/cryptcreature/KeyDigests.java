@@ -0,0 +1,102 @@
+package com.ringlord.cryptcreature;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ringlord.mime.Base64;
+
+
+/**
+ * The (Base64 encoded) digests of one secret key, by each of the
+ * {@link #ALGORITHMS}. They are computed together, in a single pass over the
+ * key, so that choosing a different digest afterwards is merely a lookup.
+ *
+ * @author K. Udo Schuermann
+ */
+final class KeyDigests
+{
+  /**
+   * Computes the digests; this may take a while for a large key, and should
+   * not be done on the event dispatch thread.
+   *
+   * @param keyBytes
+   *          The secret key.
+   * @param keyVersion
+   *          The {@link Parameters#keyVersion()} of the key.
+   */
+  KeyDigests( final byte[] keyBytes,
+              final long keyVersion )
+  {
+    super();
+    this.keyVersion = keyVersion;
+
+    final Map<String,MessageDigest> digests = new LinkedHashMap<>();
+    for( final String algorithm : ALGORITHMS )
+      {
+        try
+          {
+            digests.put( algorithm,
+                         MessageDigest.getInstance( algorithm ) );
+          }
+        catch( final NoSuchAlgorithmException x )
+          {
+            Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).log( Level.WARNING,
+                                                               "Digest unavailable: " + algorithm,
+                                                               x );
+          }
+      }
+
+    // Each chunk of the key is fed to all digests while it is still in cache
+    for( int offset = 0; offset < keyBytes.length; offset += CHUNK_SIZE )
+      {
+        final int length = Math.min( CHUNK_SIZE,
+                                     keyBytes.length - offset );
+        for( final MessageDigest md : digests.values() )
+          {
+            md.update( keyBytes,
+                       offset,
+                       length );
+          }
+      }
+
+    final Map<String,String> encoded = new LinkedHashMap<>();
+    for( final Map.Entry<String,MessageDigest> e : digests.entrySet() )
+      {
+        encoded.put( e.getKey(),
+                     new String( Base64.encodeToChars( e.getValue().digest() ) ) );
+      }
+    this.digests = Collections.unmodifiableMap( encoded );
+  }
+
+
+  /**
+   * @param algorithm
+   *          One of the {@link #ALGORITHMS}.
+   * @return The Base64 encoded digest, or an empty String if the digest
+   *         algorithm is unavailable.
+   */
+  String get( final String algorithm )
+  {
+    final String digest = digests.get( algorithm );
+    return (digest == null
+        ? ""
+        : digest);
+  }
+
+
+  long keyVersion()
+  {
+    return keyVersion;
+  }
+
+  private final long keyVersion;
+  private final Map<String,String> digests;
+  //
+  static final String[] ALGORITHMS = {"SHA-256","SHA-1","MD5"};
+  private static final int CHUNK_SIZE = 16 * 1024;
+}
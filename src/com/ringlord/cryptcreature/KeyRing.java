@@ -0,0 +1,803 @@
+package com.ringlord.cryptcreature;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * <p>
+ * A file holding many secret keys, each with its label, algorithm, key size,
+ * time of creation, and SHA-256 fingerprint. The file is memory-mapped for
+ * reading, and keys are only ever appended to it, so adding a key never
+ * rewrites what is already there.
+ * </p>
+ *
+ * <p>
+ * When opened, the file is scanned once to build an index from fingerprint
+ * and from label to the position of each key; after that, finding a key by
+ * either costs a hash lookup and the decoding of that one entry. If several
+ * keys share a label, the label finds the most recently added of them. A key
+ * whose fingerprint is already present is not added again.
+ * </p>
+ *
+ * <p>
+ * The file begins with the magic number "CCKR" and a format version (int),
+ * followed by one record per key:
+ * </p>
+ *
+ * <ol>
+ * <li>the length of the rest of the record (int)</li>
+ * <li>the time of creation (long, milliseconds since the epoch)</li>
+ * <li>the key size in bits (int)</li>
+ * <li>the SHA-256 fingerprint of the key (32 bytes)</li>
+ * <li>the algorithm name, the label, and the key itself, each as a length
+ * (int) followed by that many bytes (the strings encoded as UTF-8)</li>
+ * </ol>
+ *
+ * <p>
+ * A record cut short (by a crash while appending) is discarded when the file is
+ * next opened for writing. A KeyRing that is only looked into can be
+ * {@link #openForReading(File) opened for reading}, which never changes the
+ * file. All methods may be called from any thread.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public class KeyRing
+  implements
+    Closeable
+{
+  /**
+   * One key of the KeyRing, with its metadata.
+   */
+  public static final class Entry
+  {
+    private Entry( final String label,
+                   final String algorithm,
+                   final int keySizeBits,
+                   final long created,
+                   final byte[] fingerprint,
+                   final byte[] key )
+    {
+      super();
+      this.label = label;
+      this.algorithm = algorithm;
+      this.keySizeBits = keySizeBits;
+      this.created = created;
+      this.fingerprint = fingerprint;
+      this.key = key;
+    }
+
+
+    public String label()
+    {
+      return label;
+    }
+
+
+    public String algorithm()
+    {
+      return algorithm;
+    }
+
+
+    public int keySizeBits()
+    {
+      return keySizeBits;
+    }
+
+
+    /**
+     * @return The time of creation (milliseconds since the epoch).
+     */
+    public long created()
+    {
+      return created;
+    }
+
+
+    /**
+     * @return A copy of the SHA-256 digest of the key.
+     */
+    public byte[] fingerprint()
+    {
+      return fingerprint.clone();
+    }
+
+
+    /**
+     * @return The key, or null if the entry was {@link KeyRing#list() listed}
+     *         without it.
+     */
+    public SecretKey key()
+    {
+      return (key == null
+          ? null
+          : new SecretKeySpec( key,
+                               algorithm ));
+    }
+
+
+    @Override
+    public String toString()
+    {
+      return label + " (" + algorithm + ", " + keySizeBits + " bits)";
+    }
+
+    private final String label;
+    private final String algorithm;
+    private final int keySizeBits;
+    private final long created;
+    private final byte[] fingerprint;
+    private final byte[] key;
+  }
+
+
+  /**
+   * Opens a KeyRing, creating the file if it does not exist.
+   *
+   * @param file
+   *          The KeyRing file.
+   * @return The KeyRing, which must be {@link #close() closed} when no longer
+   *         needed.
+   * @throws IOException
+   *           If the file cannot be read or created, or is not a KeyRing.
+   */
+  public static KeyRing open( final File file )
+    throws IOException
+  {
+    return open( file,
+                 false );
+  }
+
+
+  /**
+   * Opens an existing KeyRing for finding keys; no keys can be added, and the
+   * file is never changed.
+   *
+   * @param file
+   *          The KeyRing file.
+   * @return The KeyRing, which must be {@link #close() closed} when no longer
+   *         needed.
+   * @throws IOException
+   *           If the file cannot be read, or is not a KeyRing.
+   */
+  public static KeyRing openForReading( final File file )
+    throws IOException
+  {
+    return open( file,
+                 true );
+  }
+
+
+  private static KeyRing open( final File file,
+                               final boolean isReadOnly )
+    throws IOException
+  {
+    final FileChannel channel = (isReadOnly
+        ? FileChannel.open( file.toPath(),
+                            StandardOpenOption.READ )
+        : FileChannel.open( file.toPath(),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE ));
+    try
+      {
+        final KeyRing ring = new KeyRing( file,
+                                          channel,
+                                          isReadOnly );
+        ring.scan();
+        return ring;
+      }
+    catch( final IOException | RuntimeException x )
+      {
+        channel.close();
+        throw x;
+      }
+  }
+
+
+  /**
+   * @param file
+   *          A file.
+   * @return true if the file exists and begins like a KeyRing.
+   */
+  public static boolean isKeyRing( final File file )
+  {
+    if( !file.isFile() )
+      {
+        return false;
+      }
+    try( final FileChannel channel = FileChannel.open( file.toPath(),
+                                                       StandardOpenOption.READ ) )
+      {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        while( header.hasRemaining() && (channel.read( header ) > -1) )
+          {
+            // Keep reading
+          }
+        header.flip();
+        return (header.remaining() == HEADER_SIZE) && (header.getInt() == MAGIC);
+      }
+    catch( final IOException x )
+      {
+        return false;
+      }
+  }
+
+
+  public File file()
+  {
+    return file;
+  }
+
+
+  /**
+   * @return The number of keys.
+   */
+  public synchronized int size()
+  {
+    return positions.size();
+  }
+
+
+  /**
+   * @return All keys, in the order in which they were added.
+   * @throws IOException
+   */
+  public synchronized List<Entry> entries()
+    throws IOException
+  {
+    final List<Entry> result = new ArrayList<>( positions.size() );
+    for( final long position : positions )
+      {
+        result.add( read( position,
+                          true ) );
+      }
+    return result;
+  }
+
+
+  /**
+   * @return All keys, in the order in which they were added, but without the
+   *         keys themselves: Only their labels and metadata are read, so that
+   *         they can be shown, and the chosen key can then be
+   *         {@link #findByFingerprint(byte[]) found}.
+   * @throws IOException
+   */
+  public synchronized List<Entry> list()
+    throws IOException
+  {
+    final List<Entry> result = new ArrayList<>( positions.size() );
+    for( final long position : positions )
+      {
+        result.add( read( position,
+                          false ) );
+      }
+    return result;
+  }
+
+
+  /**
+   * @param fingerprint
+   *          The SHA-256 digest of a key.
+   * @return The key with that fingerprint, or null if there is none.
+   * @throws IOException
+   */
+  public synchronized Entry findByFingerprint( final byte[] fingerprint )
+    throws IOException
+  {
+    final Long position = byFingerprint.get( ByteBuffer.wrap( fingerprint ) );
+    return (position == null
+        ? null
+        : read( position,
+                true ));
+  }
+
+
+  /**
+   * @param label
+   *          The label of a key.
+   * @return The key most recently added with that label, or null if there is
+   *         none.
+   * @throws IOException
+   */
+  public synchronized Entry findByLabel( final String label )
+    throws IOException
+  {
+    final Long position = byLabel.get( label );
+    return (position == null
+        ? null
+        : read( position,
+                true ));
+  }
+
+
+  /**
+   * Appends a key, unless a key with the same fingerprint is already present.
+   *
+   * @param label
+   *          The label of the key.
+   * @param key
+   *          The key.
+   * @return The entry of the key (the existing one, if the key was present
+   *         already).
+   * @throws IOException
+   */
+  public Entry add( final String label,
+                    final SecretKey key )
+    throws IOException
+  {
+    return addAll( Collections.singletonList( label ),
+                   Collections.singletonList( key ) ).get( 0 );
+  }
+
+
+  /**
+   * Appends a key of the given nominal size, unless a key with the same
+   * fingerprint is already present.
+   *
+   * @param label
+   *          The label of the key.
+   * @param key
+   *          The key.
+   * @param keySizeBits
+   *          The size of the key, which may be less than its encoded length
+   *          (such as 56 bits for a DES key of 8 bytes).
+   * @return The entry of the key (the existing one, if the key was present
+   *         already).
+   * @throws IOException
+   */
+  public Entry add( final String label,
+                    final SecretKey key,
+                    final int keySizeBits )
+    throws IOException
+  {
+    return addAll( Collections.singletonList( label ),
+                   Collections.singletonList( key ),
+                   keySizeBits ).get( 0 );
+  }
+
+
+  /**
+   * Appends several keys with a single write to the file.
+   *
+   * @param labels
+   *          The label of each key.
+   * @param keys
+   *          The keys.
+   * @return The entry of each key (the existing one, for a key that was
+   *         present already).
+   * @throws IOException
+   */
+  public List<Entry> addAll( final List<String> labels,
+                             final List<? extends SecretKey> keys )
+    throws IOException
+  {
+    return addAll( labels,
+                   keys,
+                   0 );
+  }
+
+
+  /**
+   * @param keySizeBits
+   *          The size of every key, or 0 to take it from each key's encoded
+   *          length.
+   */
+  private synchronized List<Entry> addAll( final List<String> labels,
+                                           final List<? extends SecretKey> keys,
+                                           final int keySizeBits )
+    throws IOException
+  {
+    if( isReadOnly )
+      {
+        throw new IOException( file + " is open for reading only" );
+      }
+    if( labels.size() != keys.size() )
+      {
+        throw new IllegalArgumentException( labels.size() + " labels for " + keys.size() + " keys" );
+      }
+
+    final long now = System.currentTimeMillis();
+    final List<Entry> result = new ArrayList<>( keys.size() );
+    final List<byte[]> records = new ArrayList<>();
+    final Map<ByteBuffer,Entry> added = new HashMap<>();
+    int total = 0;
+    for( int i = 0; i < keys.size(); i++ )
+      {
+        final SecretKey key = keys.get( i );
+        final byte[] keyBytes = key.getEncoded();
+        final byte[] fingerprint = fingerprint( keyBytes );
+        final ByteBuffer fingerprintKey = ByteBuffer.wrap( fingerprint );
+        final Long existing = byFingerprint.get( fingerprintKey );
+        if( existing != null )
+          {
+            result.add( read( existing,
+                              true ) );
+            continue;
+          }
+        if( added.containsKey( fingerprintKey ) )
+          {
+            result.add( added.get( fingerprintKey ) );
+            continue;
+          }
+        final Entry e = new Entry( labels.get( i ),
+                                   key.getAlgorithm(),
+                                   (keySizeBits > 0
+                                       ? keySizeBits
+                                       : keyBytes.length * 8),
+                                   now,
+                                   fingerprint,
+                                   keyBytes );
+        final byte[] record = encode( e );
+        records.add( record );
+        total += record.length;
+        added.put( fingerprintKey,
+                   e );
+        result.add( e );
+      }
+
+    if( total > 0 )
+      {
+        final ByteBuffer buffer = ByteBuffer.allocate( total );
+        for( final byte[] record : records )
+          {
+            buffer.put( record );
+          }
+        buffer.flip();
+        long position = end;
+        while( buffer.hasRemaining() )
+          {
+            position += channel.write( buffer,
+                                       position );
+          }
+        channel.force( false );
+
+        // Only now that the records are safely written, index them
+        long recordPosition = end;
+        for( final byte[] record : records )
+          {
+            index( recordPosition,
+                   ByteBuffer.wrap( record ) );
+            recordPosition += record.length;
+          }
+        end = position;
+      }
+    return result;
+  }
+
+
+  /**
+   * Generates keys and adds them, labeled with the prefix followed by a
+   * number. The keys are generated on all processors at once.
+   *
+   * @param algorithm
+   *          The name of the algorithm (such as "AES").
+   * @param keySizeBits
+   *          The size of each key.
+   * @param count
+   *          The number of keys.
+   * @param labelPrefix
+   *          The beginning of each key's label.
+   * @return The entries of the new keys.
+   * @throws NoSuchAlgorithmException
+   *           If no keys can be generated for the algorithm.
+   * @throws IOException
+   */
+  public List<Entry> generate( final String algorithm,
+                               final int keySizeBits,
+                               final int count,
+                               final String labelPrefix )
+    throws NoSuchAlgorithmException,
+      IOException
+  {
+    // Fail early (and on the calling thread) for an unknown algorithm
+    KeyGenerator.getInstance( algorithm );
+
+    final int threads = Math.min( Math.max( 1,
+                                            count ),
+                                  Runtime.getRuntime().availableProcessors() );
+    final ExecutorService pool = Executors.newFixedThreadPool( threads );
+    try
+      {
+        final List<Future<List<SecretKey>>> parts = new ArrayList<>( threads );
+        for( int t = 0; t < threads; t++ )
+          {
+            final int share = (count / threads) + ((t < (count % threads))
+                ? 1
+                : 0);
+            parts.add( pool.submit( new Callable<List<SecretKey>>()
+            {
+              @Override
+              public List<SecretKey> call()
+                throws NoSuchAlgorithmException
+              {
+                final KeyGenerator keyGenerator = KeyGenerator.getInstance( algorithm );
+                keyGenerator.init( keySizeBits,
+                                   RandomPool.random() );
+                final List<SecretKey> keys = new ArrayList<>( share );
+                for( int i = 0; i < share; i++ )
+                  {
+                    keys.add( keyGenerator.generateKey() );
+                  }
+                return keys;
+              }
+            } ) );
+          }
+
+        final List<SecretKey> keys = new ArrayList<>( count );
+        for( final Future<List<SecretKey>> part : parts )
+          {
+            keys.addAll( part.get() );
+          }
+        final List<String> labels = new ArrayList<>( count );
+        final int first;
+        synchronized( this )
+          {
+            first = positions.size();
+          }
+        for( int i = 0; i < count; i++ )
+          {
+            labels.add( labelPrefix + (first + i + 1) );
+          }
+        return addAll( labels,
+                       keys,
+                       keySizeBits );
+      }
+    catch( final InterruptedException x )
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException( "Interrupted while generating keys",
+                               x );
+      }
+    catch( final ExecutionException x )
+      {
+        if( x.getCause() instanceof NoSuchAlgorithmException )
+          {
+            throw (NoSuchAlgorithmException)x.getCause();
+          }
+        throw new IOException( "Cannot generate keys",
+                               x.getCause() );
+      }
+    finally
+      {
+        pool.shutdown();
+      }
+  }
+
+
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    mapped = null;
+    channel.close();
+  }
+
+
+  private KeyRing( final File file,
+                   final FileChannel channel,
+                   final boolean isReadOnly )
+  {
+    super();
+    this.file = file;
+    this.channel = channel;
+    this.isReadOnly = isReadOnly;
+  }
+
+
+  /**
+   * Writes the header of a new file, or indexes the records of an existing
+   * one, discarding a trailing record that was cut short (unless the file is
+   * open for reading only, when that is merely ignored).
+   */
+  private void scan()
+    throws IOException
+  {
+    final long size = channel.size();
+    if( (size == 0) && !isReadOnly )
+      {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC ).putInt( VERSION ).flip();
+        while( header.hasRemaining() )
+          {
+            channel.write( header,
+                           HEADER_SIZE - header.remaining() );
+          }
+        end = HEADER_SIZE;
+        return;
+      }
+
+    final MappedByteBuffer b = map( size );
+    if( (size < HEADER_SIZE) || (b.getInt( 0 ) != MAGIC) )
+      {
+        throw new IOException( file + " is not a key ring" );
+      }
+    if( b.getInt( 4 ) != VERSION )
+      {
+        throw new IOException( file + " is a key ring of an unsupported version (" + b.getInt( 4 ) + ")" );
+      }
+
+    long position = HEADER_SIZE;
+    while( position + 4 <= size )
+      {
+        final int length = b.getInt( (int)position );
+        if( (length < MIN_RECORD_SIZE) || (position + 4 + length > size) )
+          {
+            break;
+          }
+        final ByteBuffer record = b.duplicate();
+        record.position( (int)position ).limit( (int)(position + 4 + length) );
+        index( position,
+               record.slice() );
+        position += 4 + length;
+      }
+    end = position;
+    if( (end < size) && !isReadOnly )
+      {
+        Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).log( Level.WARNING,
+                                                           "Discarding {0} bytes of an incomplete key at the end of {1}",
+                                                           new Object[]{size - end,file} );
+        channel.truncate( end );
+        mapped = null;
+      }
+  }
+
+
+  private void index( final long position,
+                      final ByteBuffer record )
+  {
+    final byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+    record.position( 4 + 8 + 4 );
+    record.get( fingerprint );
+    skip( record ); // algorithm
+    final String label = string( record );
+
+    positions.add( position );
+    byFingerprint.put( ByteBuffer.wrap( fingerprint ),
+                       position );
+    byLabel.put( label,
+                 position );
+  }
+
+
+  private Entry read( final long position,
+                      final boolean withKey )
+    throws IOException
+  {
+    final MappedByteBuffer b = map( end );
+    final ByteBuffer record = b.duplicate();
+    record.position( (int)position );
+    record.getInt(); // length
+    final long created = record.getLong();
+    final int keySizeBits = record.getInt();
+    final byte[] fingerprint = new byte[FINGERPRINT_SIZE];
+    record.get( fingerprint );
+    final String algorithm = string( record );
+    final String label = string( record );
+    final byte[] key = (withKey
+        ? new byte[record.getInt()]
+        : null);
+    if( key != null )
+      {
+        record.get( key );
+      }
+    return new Entry( label,
+                      algorithm,
+                      keySizeBits,
+                      created,
+                      fingerprint,
+                      key );
+  }
+
+
+  /**
+   * @return The file mapped into memory, up to at least the given size; the
+   *         mapping is renewed only when the file has grown beyond it.
+   */
+  private MappedByteBuffer map( final long size )
+    throws IOException
+  {
+    if( (mapped == null) || (mapped.capacity() < size) )
+      {
+        if( size > Integer.MAX_VALUE )
+          {
+            throw new IOException( file + " is too large" );
+          }
+        mapped = channel.map( FileChannel.MapMode.READ_ONLY,
+                              0,
+                              size );
+      }
+    return mapped;
+  }
+
+
+  private static byte[] encode( final Entry e )
+  {
+    final byte[] algorithm = e.algorithm.getBytes( UTF8 );
+    final byte[] label = e.label.getBytes( UTF8 );
+    final int length = 8 + 4 + FINGERPRINT_SIZE + 4 + algorithm.length + 4 + label.length + 4 + e.key.length;
+    final ByteBuffer b = ByteBuffer.allocate( 4 + length );
+    b.putInt( length );
+    b.putLong( e.created );
+    b.putInt( e.keySizeBits );
+    b.put( e.fingerprint );
+    b.putInt( algorithm.length ).put( algorithm );
+    b.putInt( label.length ).put( label );
+    b.putInt( e.key.length ).put( e.key );
+    return b.array();
+  }
+
+
+  private static String string( final ByteBuffer b )
+  {
+    final byte[] bytes = new byte[b.getInt()];
+    b.get( bytes );
+    return new String( bytes,
+                       UTF8 );
+  }
+
+
+  private static void skip( final ByteBuffer b )
+  {
+    final int length = b.getInt();
+    b.position( b.position() + length );
+  }
+
+
+  private static byte[] fingerprint( final byte[] keyBytes )
+  {
+    try
+      {
+        return MessageDigest.getInstance( "SHA-256" ).digest( keyBytes );
+      }
+    catch( final NoSuchAlgorithmException x )
+      {
+        // Every Java platform is required to support SHA-256
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  private long end;
+  private MappedByteBuffer mapped;
+  //
+  private final File file;
+  private final FileChannel channel;
+  private final boolean isReadOnly;
+  private final List<Long> positions = new ArrayList<>();
+  private final Map<ByteBuffer,Long> byFingerprint = new HashMap<>();
+  private final Map<String,Long> byLabel = new HashMap<>();
+  //
+  private static final int MAGIC = 0x43434b52; // "CCKR"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int FINGERPRINT_SIZE = 32;
+  private static final int MIN_RECORD_SIZE = 8 + 4 + FINGERPRINT_SIZE + 4 + 4 + 4;
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+}
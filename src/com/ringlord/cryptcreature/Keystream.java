@@ -0,0 +1,422 @@
+package com.ringlord.cryptcreature;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+
+
+/**
+ * <p>
+ * The keystream of an OFB or CTR mode cipher, computed ahead of time. In these
+ * modes the keystream depends only on the key and init vector, never on the
+ * text: enciphering (and deciphering) is the text XOR the keystream. With a
+ * fixed init vector, the same keystream serves every edit of the text, so it is
+ * computed once, in the background, and each encryption is then no more than
+ * an XOR, however slow the cipher.
+ * </p>
+ *
+ * <p>
+ * A Keystream exists per algorithm, key, and init vector; the few most
+ * recently used are kept until they are {@link #invalidate() invalidated}. The
+ * keystream is kept in a buffer that grows as longer texts are enciphered, and
+ * is computed some way beyond what has been asked for so far. A padding of
+ * PKCS5Padding is applied here, as the Cipher would have. All methods may be
+ * called from any thread.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public final class Keystream
+{
+  /**
+   * @param algorithm
+   *          An algorithm.
+   * @return true if the algorithm's keystream can be computed ahead.
+   */
+  public static boolean isApplicable( final Algorithm algorithm )
+  {
+    return ("OFB".equals( algorithm.mode() ) || "CTR".equals( algorithm.mode() )) &&
+           ("NoPadding".equals( algorithm.padding() ) || PKCS5.equals( algorithm.padding() ));
+  }
+
+
+  /**
+   * @param algorithm
+   *          An {@link #isApplicable(Algorithm) applicable} algorithm.
+   * @param key
+   *          The secret key.
+   * @param initVector
+   *          The init vector.
+   * @return The Keystream for the algorithm, key, and init vector, which is
+   *         created (and starts being computed) if it does not exist yet.
+   * @throws NoSuchAlgorithmException
+   *           If the algorithm is unavailable.
+   * @throws NoSuchPaddingException
+   *           If the padding is unavailable.
+   * @throws InvalidKeyException
+   *           If the key cannot be used with the algorithm.
+   * @throws InvalidAlgorithmParameterException
+   *           If the init vector cannot be used with the algorithm.
+   */
+  public static Keystream of( final Algorithm algorithm,
+                              final Key key,
+                              final byte[] initVector )
+    throws NoSuchAlgorithmException,
+      NoSuchPaddingException,
+      InvalidKeyException,
+      InvalidAlgorithmParameterException
+  {
+    final ByteBuffer id = id( algorithm,
+                              key,
+                              initVector );
+    synchronized( cache )
+      {
+        Keystream keystream = cache.get( id );
+        if( keystream == null )
+          {
+            keystream = new Keystream( algorithm,
+                                       key,
+                                       initVector );
+            cache.put( id,
+                       keystream );
+            keystream.prefetch( AHEAD );
+          }
+        return keystream;
+      }
+  }
+
+
+  /**
+   * @param algorithm
+   *          An algorithm.
+   * @param key
+   *          The secret key.
+   * @param initVector
+   *          The init vector.
+   * @return The Keystream for the algorithm, key, and init vector, or null if
+   *         there is none; unlike {@link #of(Algorithm, Key, byte[])}, none is
+   *         created.
+   */
+  public static Keystream cached( final Algorithm algorithm,
+                                  final Key key,
+                                  final byte[] initVector )
+  {
+    synchronized( cache )
+      {
+        return cache.get( id( algorithm,
+                              key,
+                              initVector ) );
+      }
+  }
+
+
+  /**
+   * Discards all Keystreams (and stops computing them), such as when the
+   * parameters have changed and they are unlikely to be used again.
+   */
+  public static void invalidate()
+  {
+    synchronized( cache )
+      {
+        for( final Keystream keystream : cache.values() )
+          {
+            keystream.discard();
+          }
+        cache.clear();
+      }
+  }
+
+
+  /**
+   * @param inputLength
+   *          The length of a plain text.
+   * @return The length of its cipher text.
+   */
+  public int outputSize( final long inputLength )
+  {
+    return (int)(isPadded
+        ? (inputLength / blockSize + 1) * blockSize
+        : inputLength);
+  }
+
+
+  /**
+   * XORs the text with the keystream, as from the given position.
+   *
+   * @param in
+   *          The text, which is consumed.
+   * @param out
+   *          Receives the result; must have room for all of the text.
+   * @param position
+   *          The position within the whole text of the first byte.
+   * @return The position following the last byte.
+   */
+  public long xor( final ByteBuffer in,
+                   final ByteBuffer out,
+                   final long position )
+  {
+    final int length = in.remaining();
+    final long end = position + length;
+    final byte[] stream;
+    synchronized( this )
+      {
+        // Rarely is there anything left to compute here
+        compute( end );
+        stream = buffer;
+      }
+    for( int i = 0; i < length; i++ )
+      {
+        out.put( (byte)(in.get() ^ stream[(int)(position + i)]) );
+      }
+    if( computed < end + (AHEAD >> 1) )
+      {
+        prefetch( end + AHEAD );
+      }
+    return end;
+  }
+
+
+  /**
+   * Ends the text, applying the padding (if any) to it, as the Cipher would
+   * have.
+   *
+   * @param out
+   *          Receives the padding; must have room for one block.
+   * @param position
+   *          The length of the text.
+   */
+  public void pad( final ByteBuffer out,
+                   final long position )
+  {
+    if( isPadded )
+      {
+        final int count = blockSize - (int)(position % blockSize);
+        final byte[] padding = new byte[count];
+        Arrays.fill( padding,
+                     (byte)count );
+        xor( ByteBuffer.wrap( padding ),
+             out,
+             position );
+      }
+  }
+
+
+  /**
+   * @param cipherText
+   *          A whole cipher text.
+   * @return The plain text.
+   * @throws BadPaddingException
+   *           If the padding turns out to be invalid.
+   */
+  public byte[] decipher( final byte[] cipherText )
+    throws BadPaddingException
+  {
+    final ByteBuffer out = ByteBuffer.allocate( cipherText.length );
+    xor( ByteBuffer.wrap( cipherText ),
+         out,
+         0 );
+    final byte[] plainText = out.array();
+    if( !isPadded )
+      {
+        return plainText;
+      }
+    final int count = (plainText.length == 0
+        ? 0
+        : plainText[plainText.length - 1] & 0xff);
+    if( (plainText.length % blockSize != 0) || (count == 0) || (count > blockSize) )
+      {
+        throw new BadPaddingException( "Given final block not properly padded" );
+      }
+    for( int i = plainText.length - count; i < plainText.length; i++ )
+      {
+        if( plainText[i] != (byte)count )
+          {
+            throw new BadPaddingException( "Given final block not properly padded" );
+          }
+      }
+    return Arrays.copyOf( plainText,
+                          plainText.length - count );
+  }
+
+
+  /**
+   * Starts computing the keystream up to the given length in the background,
+   * unless that has already been done (or started).
+   */
+  private void prefetch( final long length )
+  {
+    synchronized( this )
+      {
+        if( isDiscarded || (length <= target) )
+          {
+            return;
+          }
+        target = Math.min( length,
+                           MAX_LENGTH );
+      }
+    computer.execute( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        // A chunk at a time, so that a waiting xor() is never held up long
+        while( true )
+          {
+            synchronized( Keystream.this )
+              {
+                if( isDiscarded || (computed >= target) )
+                  {
+                    return;
+                  }
+                compute( Math.min( target,
+                                   computed + CHUNK ) );
+              }
+          }
+      }
+    } );
+  }
+
+
+  /**
+   * Computes the keystream up to (at least) the given length, growing the
+   * buffer as needed. The caller holds the lock.
+   */
+  private void compute( final long length )
+  {
+    if( length <= computed )
+      {
+        return;
+      }
+    if( length > MAX_LENGTH )
+      {
+        throw new IllegalArgumentException( "Text too long for the keystream: " + length );
+      }
+    // Whole blocks only, so that the Cipher never holds back a partial one
+    final int wanted = (int)(((length + blockSize - 1) / blockSize) * blockSize);
+    if( wanted > buffer.length )
+      {
+        buffer = Arrays.copyOf( buffer,
+                                (int)Math.min( MAX_LENGTH,
+                                               Math.max( wanted,
+                                                         2L * buffer.length ) ) );
+      }
+    try
+      {
+        final int count = wanted - computed;
+        final int produced = cipher.update( new byte[count],
+                                            0,
+                                            count,
+                                            buffer,
+                                            computed );
+        computed += produced;
+      }
+    catch( final ShortBufferException x )
+      {
+        // Can't happen, the buffer was grown to hold the keystream
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  private synchronized void discard()
+  {
+    isDiscarded = true;
+  }
+
+
+  private static ByteBuffer id( final Algorithm algorithm,
+                                final Key key,
+                                final byte[] initVector )
+  {
+    final byte[] spec = algorithm.spec().getBytes();
+    final byte[] keyBytes = key.getEncoded();
+    final ByteBuffer id = ByteBuffer.allocate( spec.length + 1 + keyBytes.length + initVector.length );
+    id.put( spec ).put( (byte)0 ).put( keyBytes ).put( initVector );
+    id.flip();
+    return id;
+  }
+
+
+  private Keystream( final Algorithm algorithm,
+                     final Key key,
+                     final byte[] initVector )
+    throws NoSuchAlgorithmException,
+      NoSuchPaddingException,
+      InvalidKeyException,
+      InvalidAlgorithmParameterException
+  {
+    super();
+    // The keystream is the encryption of zeros, without any padding
+    cipher = Cipher.getInstance( algorithm.name() + "/" + algorithm.mode() + "/NoPadding" );
+    cipher.init( Cipher.ENCRYPT_MODE,
+                 key,
+                 algorithm.parameterSpec( initVector ) );
+    blockSize = Math.max( 1,
+                          cipher.getBlockSize() );
+    isPadded = PKCS5.equals( algorithm.padding() );
+    buffer = new byte[(int)Math.min( AHEAD,
+                                     MAX_LENGTH )];
+    Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).log( Level.FINE,
+                                                       "Keystream for {0}",
+                                                       algorithm.spec() );
+  }
+
+  private final Cipher cipher;
+  private final int blockSize;
+  private final boolean isPadded;
+  private byte[] buffer;
+  private volatile int computed;
+  private long target;
+  private boolean isDiscarded;
+  //
+  private static final int CACHE_SIZE = 4;
+  private static final Map<ByteBuffer,Keystream> cache = new LinkedHashMap<ByteBuffer,Keystream>( CACHE_SIZE,
+                                                                                                  0.75f,
+                                                                                                  true )
+  {
+    @Override
+    protected boolean removeEldestEntry( final Map.Entry<ByteBuffer,Keystream> eldest )
+    {
+      if( size() > CACHE_SIZE )
+        {
+          eldest.getValue().discard();
+          return true;
+        }
+      return false;
+    }
+
+
+    private static final long serialVersionUID = 1L;
+  };
+  private static final String PKCS5 = "PKCS5Padding";
+  private static final int CHUNK = 64 * 1024; // bytes computed at a time
+  private static final long AHEAD = 256 * 1024; // bytes computed beyond need
+  private static final long MAX_LENGTH = Integer.MAX_VALUE - 64;
+  private static final ExecutorService computer = Executors.newSingleThreadExecutor( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+                                   "Keystream computer" );
+      t.setDaemon( true );
+      t.setPriority( Thread.MIN_PRIORITY );
+      return t;
+    }
+  } );
+}
@@ -0,0 +1,600 @@
+package com.ringlord.cryptcreature;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.AbstractListModel;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTextArea;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+
+import com.ringlord.logging.LogIndex;
+
+
+/**
+ * A window for browsing the application's log files: records can be filtered
+ * by (minimum) level, a time range, and a substring, and new records are
+ * followed as they are written. The logs are indexed in the background by a
+ * {@link LogIndex}, and only the visible lines are ever turned into text.
+ *
+ * @author K. Udo Schuermann
+ */
+public class LogViewer
+  extends JFrame
+{
+  public LogViewer( final File directory,
+                    final String name )
+  {
+    super( "CryptCreature Log \u2014 " + directory );
+
+    logger = Logger.getLogger( java.util.logging.Logger.GLOBAL_LOGGER_NAME );
+
+    minimumLevel = new JComboBox<>( new Level[]{Level.ALL,
+                                                Level.FINEST,
+                                                Level.FINER,
+                                                Level.FINE,
+                                                Level.CONFIG,
+                                                Level.INFO,
+                                                Level.WARNING,
+                                                Level.SEVERE} );
+    minimumLevel.setToolTipText( "Show only records of this level and above" );
+    from = new JTextField( 14 );
+    from.setToolTipText( "<html>"
+                         + "Show only records from this time on,<br>"
+                         + "as <i>yyyy-MM-dd HH:mm:ss</i> (or a prefix<br>"
+                         + "of that, such as <i>yyyy-MM-dd</i>)" );
+    to = new JTextField( 14 );
+    to.setToolTipText( "<html>"
+                       + "Show only records up to this time,<br>"
+                       + "as <i>yyyy-MM-dd HH:mm:ss</i> (or a prefix<br>"
+                       + "of that, such as <i>yyyy-MM-dd</i>)" );
+    search = new JTextField( 18 );
+    search.setToolTipText( "Show only records containing this text" );
+    matchCase = new JCheckBox( "Match case" );
+    follow = new JCheckBox( "Follow",
+                            true );
+    follow.setToolTipText( "Add new records as they are logged" );
+
+    final JPanel filters = new JPanel( new FlowLayout( FlowLayout.LEFT,
+                                                       6,
+                                                       2 ) );
+    filters.add( new JLabel( "Level:" ) );
+    filters.add( minimumLevel );
+    filters.add( new JLabel( "From:" ) );
+    filters.add( from );
+    filters.add( new JLabel( "To:" ) );
+    filters.add( to );
+    filters.add( new JLabel( "Find:" ) );
+    filters.add( search );
+    filters.add( matchCase );
+    filters.add( follow );
+
+    records = new JList<>( matches );
+    records.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
+    records.setFont( new Font( Font.MONOSPACED,
+                               Font.PLAIN,
+                               records.getFont().getSize() ) );
+    // Fixed cell sizes keep the list from measuring every record
+    records.setFixedCellHeight( records.getFontMetrics( records.getFont() ).getHeight() + 2 );
+    records.setFixedCellWidth( 1600 );
+    records.setCellRenderer( new DefaultListCellRenderer()
+    {
+      @Override
+      public Component getListCellRendererComponent( final JList<?> list,
+                                                     final Object value,
+                                                     final int i,
+                                                     final boolean isSelected,
+                                                     final boolean cellHasFocus )
+      {
+        return super.getListCellRendererComponent( list,
+                                                   index.line( (Integer)value ),
+                                                   i,
+                                                   isSelected,
+                                                   cellHasFocus );
+      }
+
+      private static final long serialVersionUID = 2148398329211637460L;
+    } );
+
+    final JTextArea detail = new JTextArea();
+    detail.setEditable( false );
+    detail.setFont( records.getFont() );
+    records.addListSelectionListener( new ListSelectionListener()
+    {
+      @Override
+      public void valueChanged( final ListSelectionEvent e )
+      {
+        final Integer record = records.getSelectedValue();
+        detail.setText( (record == null)
+            ? ""
+            : index.text( record ) );
+        detail.setCaretPosition( 0 );
+      }
+    } );
+
+    final JSplitPane split = new JSplitPane( JSplitPane.VERTICAL_SPLIT,
+                                             new JScrollPane( records ),
+                                             new JScrollPane( detail ) );
+    split.setResizeWeight( 0.8 );
+
+    status = new JLabel( "Indexing log files \u2026" );
+    status.setBorder( BorderFactory.createEmptyBorder( 4,
+                                                       8,
+                                                       4,
+                                                       8 ) );
+
+    final JPanel layout = new JPanel( new BorderLayout() );
+    layout.add( BorderLayout.NORTH,
+                filters );
+    layout.add( BorderLayout.CENTER,
+                split );
+    layout.add( BorderLayout.SOUTH,
+                status );
+    setContentPane( layout );
+    setPreferredSize( new Dimension( 1000,
+                                     640 ) );
+    pack();
+
+    // Typing in the text fields is given a moment to settle
+    final Timer refilter = new Timer( 300,
+                                      new ActionListener()
+                                      {
+                                        @Override
+                                        public void actionPerformed( final ActionEvent e )
+                                        {
+                                          applyFilter();
+                                        }
+                                      } );
+    refilter.setRepeats( false );
+    final DocumentListener textChanged = new DocumentListener()
+    {
+      @Override
+      public void changedUpdate( final DocumentEvent e )
+      {
+      }
+
+
+      @Override
+      public void insertUpdate( final DocumentEvent e )
+      {
+        refilter.restart();
+      }
+
+
+      @Override
+      public void removeUpdate( final DocumentEvent e )
+      {
+        refilter.restart();
+      }
+    };
+    from.getDocument().addDocumentListener( textChanged );
+    to.getDocument().addDocumentListener( textChanged );
+    search.getDocument().addDocumentListener( textChanged );
+    final ActionListener choiceChanged = new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        applyFilter();
+      }
+    };
+    minimumLevel.addActionListener( choiceChanged );
+    matchCase.addActionListener( choiceChanged );
+
+    tail = new Timer( 1000,
+                      new ActionListener()
+                      {
+                        @Override
+                        public void actionPerformed( final ActionEvent e )
+                        {
+                          if( follow.isSelected() && (index != null) )
+                            {
+                              followTail();
+                            }
+                        }
+                      } );
+
+    addWindowListener( new WindowAdapter()
+    {
+      @Override
+      public void windowClosed( final WindowEvent e )
+      {
+        tail.stop();
+        if( index != null )
+          {
+            index.close();
+          }
+      }
+    } );
+    setDefaultCloseOperation( DISPOSE_ON_CLOSE );
+
+    new SwingWorker<LogIndex,Void>()
+    {
+      @Override
+      protected LogIndex doInBackground()
+        throws Exception
+      {
+        return LogIndex.open( directory,
+                              name );
+      }
+
+
+      @Override
+      protected void done()
+      {
+        try
+          {
+            index = get();
+            applyFilter();
+            tail.start();
+          }
+        catch( final Exception x )
+          {
+            logger.log( Level.WARNING,
+                        "Cannot index the logs in " + directory,
+                        x );
+            status.setText( "Cannot index the logs: " + x.getMessage() );
+          }
+      }
+    }.execute();
+  }
+
+
+  /**
+   * (Re-)computes the matching records in the background.
+   */
+  private void applyFilter()
+  {
+    if( index == null )
+      {
+        return;
+      }
+    final Filter filter;
+    try
+      {
+        filter = new Filter();
+      }
+    catch( final DateTimeParseException x )
+      {
+        status.setText( "Times must look like " + TIME_PATTERN );
+        return;
+      }
+    final long generation = ++filterGeneration;
+    // No following until the new filter is in place, lest records be added
+    // with the old one, or added here and then overwritten with its result
+    currentFilter = null;
+    status.setText( "Filtering \u2026" );
+    new SwingWorker<int[],Void>()
+    {
+      @Override
+      protected int[] doInBackground()
+      {
+        end = index.size();
+        return filter.apply( 0,
+                             end,
+                             generation );
+      }
+
+
+      @Override
+      protected void done()
+      {
+        if( generation != filterGeneration )
+          {
+            return; // superseded
+          }
+        try
+          {
+            matches.set( get() );
+            currentFilter = filter;
+            filteredUpTo = end;
+            showStatus();
+            if( follow.isSelected() && (matches.getSize() > 0) )
+              {
+                records.ensureIndexIsVisible( matches.getSize() - 1 );
+              }
+          }
+        catch( final Exception x )
+          {
+            logger.log( Level.WARNING,
+                        "Filtering the logs failed",
+                        x );
+          }
+      }
+
+      private int end;
+    }.execute();
+  }
+
+
+  /**
+   * Indexes records newly written to the current log, and adds those that
+   * match the current filter.
+   */
+  private void followTail()
+  {
+    if( isFollowing || (currentFilter == null) )
+      {
+        return;
+      }
+    isFollowing = true;
+    final Filter filter = currentFilter;
+    final long generation = filterGeneration;
+    // Resumes where the filter (or the previous follow) left off, which may
+    // be before records that were indexed meanwhile
+    final int start = filteredUpTo;
+    new SwingWorker<int[],Void>()
+    {
+      @Override
+      protected int[] doInBackground()
+        throws Exception
+      {
+        index.refresh();
+        end = index.size();
+        return filter.apply( start,
+                             end,
+                             generation );
+      }
+
+
+      @Override
+      protected void done()
+      {
+        isFollowing = false;
+        try
+          {
+            final int[] added = get();
+            if( (generation != filterGeneration) || (filter != currentFilter) )
+              {
+                return; // superseded by a new filter, which covers these
+              }
+            filteredUpTo = end;
+            if( added.length > 0 )
+              {
+                final boolean atEnd = records.getLastVisibleIndex() >= matches.getSize() - 1;
+                matches.append( added );
+                showStatus();
+                if( atEnd )
+                  {
+                    records.ensureIndexIsVisible( matches.getSize() - 1 );
+                  }
+              }
+          }
+        catch( final Exception x )
+          {
+            logger.log( Level.FINE,
+                        "Following the log failed",
+                        x );
+          }
+      }
+
+      private int end;
+    }.execute();
+  }
+
+
+  private void showStatus()
+  {
+    status.setText( matches.getSize() + " of " + index.size() + " records" );
+  }
+
+
+  /**
+   * The filter settings, captured on the event dispatch thread.
+   */
+  private class Filter
+  {
+    Filter()
+    {
+      this.level = ((Level)minimumLevel.getSelectedItem()).intValue();
+      this.fromMillis = parseTime( from.getText(),
+                                   Long.MIN_VALUE,
+                                   false );
+      this.toMillis = parseTime( to.getText(),
+                                 Long.MAX_VALUE,
+                                 true );
+      final String text = search.getText();
+      this.ignoreCase = !matchCase.isSelected();
+      this.needle = (text.isEmpty()
+          ? null
+          : (ignoreCase
+              ? text.toLowerCase()
+              : text).getBytes( UTF8 ));
+    }
+
+
+    int[] apply( final int start,
+                 final int end,
+                 final long generation )
+    {
+      int[] result = new int[Math.max( 16,
+                                       Math.min( end - start,
+                                                 4096 ) )];
+      int n = 0;
+      for( int i = start; i < end; i++ )
+        {
+          if( ((i & 0xffff) == 0) && (generation != filterGeneration) )
+            {
+              break; // superseded; don't waste the effort
+            }
+          if( (index.level( i ).intValue() < level) )
+            {
+              continue;
+            }
+          final long time = index.time( i );
+          if( (time < fromMillis) || (time > toMillis) )
+            {
+              continue;
+            }
+          if( (needle != null) && !index.contains( i,
+                                                   needle,
+                                                   ignoreCase ) )
+            {
+              continue;
+            }
+          if( n == result.length )
+            {
+              result = Arrays.copyOf( result,
+                                      n * 2 );
+            }
+          result[n++] = i;
+        }
+      return Arrays.copyOf( result,
+                            n );
+    }
+
+    private final int level;
+    private final long fromMillis;
+    private final long toMillis;
+    private final boolean ignoreCase;
+    private final byte[] needle;
+  }
+
+
+  /**
+   * Parses a (possibly partial) time such as "2017-04-27 13:05"; a partial time
+   * as an upper bound means the end of the period it names.
+   */
+  private static long parseTime( final String text,
+                                 final long unbounded,
+                                 final boolean isUpperBound )
+  {
+    final String t = text.trim();
+    if( t.isEmpty() )
+      {
+        return unbounded;
+      }
+    final String complete = t + (isUpperBound
+        ? "9999-12-31 23:59:59"
+        : "0000-01-01 00:00:00").substring( Math.min( t.length(),
+                                                      TIME_PATTERN.length() ) );
+    final LocalDateTime time = LocalDateTime.parse( complete,
+                                                    TIME_FORMAT );
+    return time.atZone( ZoneId.systemDefault() ).toInstant().toEpochMilli() + (isUpperBound
+        ? 999
+        : 0);
+  }
+
+
+  /**
+   * The indices of the records that match the filter.
+   */
+  private static final class Matches
+    extends AbstractListModel<Integer>
+  {
+    void set( final int[] records )
+    {
+      final int before = size;
+      this.records = records;
+      this.size = records.length;
+      if( before > 0 )
+        {
+          fireIntervalRemoved( this,
+                               0,
+                               before - 1 );
+        }
+      if( size > 0 )
+        {
+          fireIntervalAdded( this,
+                             0,
+                             size - 1 );
+        }
+    }
+
+
+    void append( final int[] more )
+    {
+      final int before = size;
+      if( size + more.length > records.length )
+        {
+          records = Arrays.copyOf( records,
+                                   Math.max( size + more.length,
+                                             records.length * 2 ) );
+        }
+      System.arraycopy( more,
+                        0,
+                        records,
+                        size,
+                        more.length );
+      size += more.length;
+      fireIntervalAdded( this,
+                         before,
+                         size - 1 );
+    }
+
+
+    @Override
+    public int getSize()
+    {
+      return size;
+    }
+
+
+    @Override
+    public Integer getElementAt( final int i )
+    {
+      return records[i];
+    }
+
+    private int[] records = new int[0];
+    private int size;
+    private static final long serialVersionUID = -2602127960286432185L;
+  }
+
+  private volatile LogIndex index;
+  private volatile long filterGeneration;
+  private Filter currentFilter;
+  /**
+   * The number of indexed records that the matches cover.
+   */
+  private int filteredUpTo;
+  private boolean isFollowing;
+  private final Matches matches = new Matches();
+  private final JList<Integer> records;
+  private final JComboBox<Level> minimumLevel;
+  private final JTextField from;
+  private final JTextField to;
+  private final JTextField search;
+  private final JCheckBox matchCase;
+  private final JCheckBox follow;
+  private final JLabel status;
+  private final Timer tail;
+  private final Logger logger;
+  //
+  private static final String TIME_PATTERN = "yyyy-MM-dd HH:mm:ss";
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern( TIME_PATTERN );
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final long serialVersionUID = -3713018957069851207L;
+}
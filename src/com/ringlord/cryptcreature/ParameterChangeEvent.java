@@ -0,0 +1,56 @@
+package com.ringlord.cryptcreature;
+
+import java.awt.event.ActionEvent;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+
+/**
+ * Reports the changes that were made to the cryptographic parameters in one
+ * go (such as by a single user gesture). The action command is the kind of
+ * change (such as {@link CipherParameterPane#ACTION_SECRET_KEY_CHANGED}) if
+ * only one kind of change was made, or
+ * {@link CipherParameterPane#ACTION_PARAMETERS_CHANGED} if several were.
+ *
+ * @author K. Udo Schuermann
+ */
+public class ParameterChangeEvent
+  extends ActionEvent
+{
+  public ParameterChangeEvent( final CipherParameterPane source,
+                               final Set<String> changes )
+  {
+    super( source,
+           ACTION_PERFORMED,
+           (changes.size() == 1
+               ? changes.iterator().next()
+               : CipherParameterPane.ACTION_PARAMETERS_CHANGED) );
+    this.changes = Collections.unmodifiableSet( new LinkedHashSet<>( changes ) );
+  }
+
+
+  /**
+   * @return The kinds of change that were made, in the order they were first
+   *         made.
+   */
+  public Set<String> getChanges()
+  {
+    return changes;
+  }
+
+
+  /**
+   * @param actionName
+   *          A kind of change, such as
+   *          {@link CipherParameterPane#ACTION_ALGORITHM_CHANGED}
+   * @return true if that kind of change was made.
+   */
+  public boolean contains( final String actionName )
+  {
+    return changes.contains( actionName );
+  }
+
+  private final Set<String> changes;
+  private static final long serialVersionUID = 3760381920481137264L;
+}
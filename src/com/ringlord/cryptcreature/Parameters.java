@@ -0,0 +1,253 @@
+package com.ringlord.cryptcreature;
+
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * <p>
+ * An immutable snapshot of the cryptographic parameters chosen in the
+ * {@link CipherParameterPane}: the {@link Algorithm}, the secret {@link Key},
+ * the (optional) fixed init vector, the type of digest, and for
+ * {@link Hybrid} encryption the public keys of the recipients and the private
+ * key of the user.
+ * </p>
+ *
+ * <p>
+ * The key and init vector are decoded once, when their text changes, rather
+ * than each time they are used. Being immutable, a snapshot can be handed to a
+ * background thread, which then needs no access to any Swing component. Each
+ * change produces a new snapshot with a higher {@link #version()}, so that work
+ * based on an outdated snapshot can be recognized as such.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public final class Parameters
+{
+  /**
+   * @return The chosen algorithm, or null if none has been chosen (yet).
+   */
+  public Algorithm algorithm()
+  {
+    return algorithm;
+  }
+
+
+  /**
+   * @return The secret key, or null if none has been chosen (yet).
+   *         <em>A Key must be available for encryption to work</em>
+   */
+  public Key key()
+  {
+    return key;
+  }
+
+
+  /**
+   * @return A copy of the fixed init vector, or null if a random init vector is
+   *         to be used.
+   */
+  public byte[] initVector()
+  {
+    return (initVector == null
+        ? null
+        : initVector.clone());
+  }
+
+
+  /**
+   * @return The public keys of the recipients (unmodifiable, possibly empty);
+   *         if there are any, the message is enciphered with a session key
+   *         that is wrapped for each of them, instead of with the
+   *         {@link #key()}.
+   */
+  public List<PublicKey> recipients()
+  {
+    return recipients;
+  }
+
+
+  /**
+   * @return The private key with which to unwrap a session key, or null.
+   */
+  public PrivateKey privateKey()
+  {
+    return privateKey;
+  }
+
+
+  /**
+   * @return The name of the digest of the plain text: "SHA-256", or
+   *         {@link TreeDigest#NAME}; or {@link EncryptThenMac#NAME} for a MAC
+   *         of the cipher text instead. It is not used by authenticated modes,
+   *         whose tag takes its place.
+   */
+  public String digestType()
+  {
+    return digestType;
+  }
+
+
+  /**
+   * @return A number that is higher for each newer snapshot.
+   */
+  public long version()
+  {
+    return version;
+  }
+
+
+  /**
+   * @return A number that is higher for each newer snapshot whose secret key
+   *         was changed; snapshots that share a key version share the key.
+   */
+  public long keyVersion()
+  {
+    return keyVersion;
+  }
+
+
+  Parameters withAlgorithm( final Algorithm algorithm )
+  {
+    return new Parameters( algorithm,
+                           keyBytes,
+                           initVector,
+                           recipients,
+                           privateKey,
+                           digestType,
+                           version + 1,
+                           keyVersion );
+  }
+
+
+  /**
+   * @param keyBytes
+   *          The decoded secret key (not copied), or null.
+   */
+  Parameters withKey( final byte[] keyBytes )
+  {
+    return new Parameters( algorithm,
+                           keyBytes,
+                           initVector,
+                           recipients,
+                           privateKey,
+                           digestType,
+                           version + 1,
+                           version + 1 );
+  }
+
+
+  /**
+   * @param initVector
+   *          The decoded init vector (not copied), or null.
+   */
+  Parameters withInitVector( final byte[] initVector )
+  {
+    return new Parameters( algorithm,
+                           keyBytes,
+                           initVector,
+                           recipients,
+                           privateKey,
+                           digestType,
+                           version + 1,
+                           keyVersion );
+  }
+
+
+  /**
+   * @param recipients
+   *          The public keys of the recipients (copied).
+   */
+  Parameters withRecipients( final List<PublicKey> recipients )
+  {
+    return new Parameters( algorithm,
+                           keyBytes,
+                           initVector,
+                           Collections.unmodifiableList( new ArrayList<>( recipients ) ),
+                           privateKey,
+                           digestType,
+                           version + 1,
+                           keyVersion );
+  }
+
+
+  Parameters withPrivateKey( final PrivateKey privateKey )
+  {
+    return new Parameters( algorithm,
+                           keyBytes,
+                           initVector,
+                           recipients,
+                           privateKey,
+                           digestType,
+                           version + 1,
+                           keyVersion );
+  }
+
+
+  Parameters withDigestType( final String digestType )
+  {
+    return new Parameters( algorithm,
+                           keyBytes,
+                           initVector,
+                           recipients,
+                           privateKey,
+                           digestType,
+                           version + 1,
+                           keyVersion );
+  }
+
+
+  private Parameters( final Algorithm algorithm,
+                      final byte[] keyBytes,
+                      final byte[] initVector,
+                      final List<PublicKey> recipients,
+                      final PrivateKey privateKey,
+                      final String digestType,
+                      final long version,
+                      final long keyVersion )
+  {
+    super();
+    this.algorithm = algorithm;
+    this.keyBytes = keyBytes;
+    this.initVector = initVector;
+    this.recipients = recipients;
+    this.privateKey = privateKey;
+    this.digestType = digestType;
+    this.version = version;
+    this.keyVersion = keyVersion;
+    // A SecretKeySpec names the algorithm that it is meant for
+    this.key = ((keyBytes == null) || (keyBytes.length == 0)
+        ? null
+        : new SecretKeySpec( keyBytes,
+                             (algorithm == null
+                                 ? ""
+                                 : algorithm.name()) ));
+  }
+
+  private final Algorithm algorithm;
+  private final Key key;
+  private final byte[] keyBytes;
+  private final byte[] initVector;
+  private final List<PublicKey> recipients;
+  private final PrivateKey privateKey;
+  private final String digestType;
+  private final long version;
+  private final long keyVersion;
+  //
+  static final String DEFAULT_DIGEST = "SHA-256";
+  static final Parameters NONE = new Parameters( null,
+                                                 null,
+                                                 null,
+                                                 Collections.<PublicKey>emptyList(),
+                                                 null,
+                                                 DEFAULT_DIGEST,
+                                                 0,
+                                                 0 );
+}
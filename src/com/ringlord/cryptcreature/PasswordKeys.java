@@ -0,0 +1,351 @@
+package com.ringlord.cryptcreature;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.ringlord.mime.Base64;
+
+
+/**
+ * <p>
+ * Derives secret keys from passwords, with PBKDF2 (PKCS #5) using
+ * HMAC-SHA256. The work is done here rather than by a
+ * {@link javax.crypto.SecretKeyFactory}, so that its {@link Progress} can be
+ * reported.
+ * </p>
+ *
+ * <p>
+ * The right number of iterations depends on the machine: enough to make
+ * guessing passwords expensive, but not so many that deriving a key keeps the
+ * user waiting. {@link #calibrate(long)} measures this machine and picks the
+ * count that takes about the given time.
+ * </p>
+ *
+ * <p>
+ * Derived keys are remembered for the rest of the session, identified by the
+ * SHA-256 digest of the password together with the salt and the other
+ * parameters, so that deriving the same key again costs nothing. Neither
+ * method should be called on the event dispatch thread.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public final class PasswordKeys
+{
+  /**
+   * Learns how the derivation of a key is progressing.
+   */
+  public interface Progress
+  {
+    /**
+     * @param done
+     *          The number of iterations done so far.
+     * @param total
+     *          The number of iterations in all.
+     * @return false to abandon the derivation.
+     */
+    boolean progressed( long done,
+                        long total );
+  }
+
+
+  /**
+   * @param targetMillis
+   *          The time that deriving a key should take.
+   * @return The number of iterations that takes about that long on this
+   *         machine, but at least {@link #MIN_ITERATIONS}.
+   */
+  public static int calibrate( final long targetMillis )
+  {
+    final Integer known = calibrations.get( targetMillis );
+    if( known != null )
+      {
+        return known;
+      }
+
+    final Mac mac = hmac( "calibration".toCharArray() );
+    final byte[] salt = new byte[16];
+    final byte[] block = new byte[mac.getMacLength()];
+
+    // A first, short run lets the JIT compiler warm up
+    iterate( mac,
+             salt,
+             1,
+             CALIBRATION_ITERATIONS / 10,
+             block,
+             null,
+             0,
+             0 );
+    final long start = System.nanoTime();
+    iterate( mac,
+             salt,
+             1,
+             CALIBRATION_ITERATIONS,
+             block,
+             null,
+             0,
+             0 );
+    final long elapsed = Math.max( 1,
+                                   System.nanoTime() - start );
+
+    final long iterations = (CALIBRATION_ITERATIONS * targetMillis * 1000000L) / elapsed;
+    final int rounded = (int)Math.min( Integer.MAX_VALUE,
+                                       Math.max( MIN_ITERATIONS,
+                                                 (iterations / 1000) * 1000 ) );
+    calibrations.put( targetMillis,
+                      rounded );
+    return rounded;
+  }
+
+
+  /**
+   * @param password
+   *          The password; it is not retained.
+   * @param salt
+   *          The salt.
+   * @param iterations
+   *          The number of iterations.
+   * @param algorithm
+   *          The name of the algorithm that the key is meant for (such as
+   *          "AES").
+   * @param keySizeBits
+   *          The size of the key.
+   * @param progress
+   *          Learns about the progress, or null.
+   * @return The key, or null if the derivation was abandoned.
+   */
+  public static SecretKey derive( final char[] password,
+                                  final byte[] salt,
+                                  final int iterations,
+                                  final String algorithm,
+                                  final int keySizeBits,
+                                  final Progress progress )
+  {
+    final String cacheKey = cacheKey( password,
+                                      salt,
+                                      iterations,
+                                      algorithm,
+                                      keySizeBits );
+    final SecretKey cached = derived.get( cacheKey );
+    if( cached != null )
+      {
+        return cached;
+      }
+
+    final Mac mac = hmac( password );
+    final int macLength = mac.getMacLength();
+    final int keyLength = encodedLength( algorithm,
+                                         keySizeBits );
+    final int blocks = (keyLength + macLength - 1) / macLength;
+    final byte[] keyBytes = new byte[blocks * macLength];
+    final byte[] block = new byte[macLength];
+    final long total = (long)blocks * iterations;
+    for( int i = 1; i <= blocks; i++ )
+      {
+        if( !iterate( mac,
+                      salt,
+                      i,
+                      iterations,
+                      block,
+                      progress,
+                      (long)(i - 1) * iterations,
+                      total ) )
+          {
+            return null;
+          }
+        System.arraycopy( block,
+                          0,
+                          keyBytes,
+                          (i - 1) * macLength,
+                          macLength );
+      }
+
+    final SecretKey key = new SecretKeySpec( Arrays.copyOf( keyBytes,
+                                                            keyLength ),
+                                             algorithm );
+    Arrays.fill( keyBytes,
+                 (byte)0 );
+    derived.put( cacheKey,
+                 key );
+    return key;
+  }
+
+
+  /**
+   * Computes one block of PBKDF2 (the function F of RFC 2898) into the given
+   * array, reusing it and the Mac for every iteration.
+   *
+   * @return false if the progress asked to abandon the derivation.
+   */
+  private static boolean iterate( final Mac mac,
+                                  final byte[] salt,
+                                  final int blockIndex,
+                                  final int iterations,
+                                  final byte[] block,
+                                  final Progress progress,
+                                  final long doneBefore,
+                                  final long total )
+  {
+    try
+      {
+        final byte[] u = new byte[block.length];
+        mac.update( salt );
+        mac.update( (byte)(blockIndex >>> 24) );
+        mac.update( (byte)(blockIndex >>> 16) );
+        mac.update( (byte)(blockIndex >>> 8) );
+        mac.update( (byte)blockIndex );
+        mac.doFinal( u,
+                     0 );
+        System.arraycopy( u,
+                          0,
+                          block,
+                          0,
+                          u.length );
+        for( int j = 1; j < iterations; j++ )
+          {
+            mac.update( u );
+            mac.doFinal( u,
+                         0 );
+            for( int k = 0; k < u.length; k++ )
+              {
+                block[k] ^= u[k];
+              }
+            if( (progress != null) && ((j % PROGRESS_INTERVAL) == 0) )
+              {
+                if( !progress.progressed( doneBefore + j,
+                                          total ) )
+                  {
+                    return false;
+                  }
+              }
+          }
+        if( progress != null )
+          {
+            return progress.progressed( doneBefore + iterations,
+                                        total );
+          }
+        return true;
+      }
+    catch( final ShortBufferException x )
+      {
+        // The buffer is always exactly the length of the Mac
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  /**
+   * @return The number of bytes in an encoded key of the given algorithm and
+   *         size. This is more than the size suggests for some: a DES key of
+   *         56 bits is encoded as 8 bytes, and a DESede key of 112 or 168 bits
+   *         as 24, with a parity bit in each byte.
+   */
+  private static int encodedLength( final String algorithm,
+                                    final int keySizeBits )
+  {
+    try
+      {
+        final KeyGenerator keyGenerator = KeyGenerator.getInstance( algorithm );
+        keyGenerator.init( keySizeBits );
+        return keyGenerator.generateKey().getEncoded().length;
+      }
+    catch( final NoSuchAlgorithmException | InvalidParameterException x )
+      {
+        return (keySizeBits + 7) / 8;
+      }
+  }
+
+
+  private static Mac hmac( final char[] password )
+  {
+    final ByteBuffer encoded = UTF8.encode( CharBuffer.wrap( password ) );
+    final byte[] passwordBytes = new byte[encoded.remaining()];
+    encoded.get( passwordBytes );
+    Arrays.fill( encoded.array(),
+                 (byte)0 );
+    try
+      {
+        final Mac mac = Mac.getInstance( HMAC );
+        // An empty password is allowed by PBKDF2, but not by SecretKeySpec;
+        // HMAC pads its key with zeros, so a single zero byte is the same
+        mac.init( new SecretKeySpec( (passwordBytes.length == 0
+            ? new byte[1]
+            : passwordBytes),
+                                     HMAC ) );
+        return mac;
+      }
+    catch( final NoSuchAlgorithmException | InvalidKeyException x )
+      {
+        // Every Java platform is required to support HmacSHA256
+        throw new IllegalStateException( x );
+      }
+    finally
+      {
+        Arrays.fill( passwordBytes,
+                     (byte)0 );
+      }
+  }
+
+
+  private static String cacheKey( final char[] password,
+                                  final byte[] salt,
+                                  final int iterations,
+                                  final String algorithm,
+                                  final int keySizeBits )
+  {
+    try
+      {
+        final MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+        final ByteBuffer encoded = UTF8.encode( CharBuffer.wrap( password ) );
+        md.update( encoded.duplicate() );
+        Arrays.fill( encoded.array(),
+                     (byte)0 );
+        return new String( Base64.encodeToChars( md.digest() ) ) +
+               "/" +
+               new String( Base64.encodeToChars( salt ) ) +
+               "/" +
+               iterations +
+               "/" +
+               algorithm +
+               "/" +
+               keySizeBits;
+      }
+    catch( final NoSuchAlgorithmException x )
+      {
+        // Every Java platform is required to support SHA-256
+        throw new IllegalStateException( x );
+      }
+  }
+
+
+  private PasswordKeys()
+  {
+  }
+
+  private static final Map<Long,Integer> calibrations = new ConcurrentHashMap<>();
+  private static final Map<String,SecretKey> derived = new ConcurrentHashMap<>();
+  //
+  /**
+   * The fewest iterations that {@link #calibrate(long)} will pick, however
+   * slow the machine.
+   */
+  public static final int MIN_ITERATIONS = 10000;
+  private static final int CALIBRATION_ITERATIONS = 20000;
+  private static final int PROGRESS_INTERVAL = 4096;
+  private static final String HMAC = "HmacSHA256";
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+}
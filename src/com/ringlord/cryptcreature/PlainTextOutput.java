@@ -2,37 +2,50 @@ package com.ringlord.cryptcreature;
 
 import java.awt.Color;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.SecretKey;
 import javax.swing.JOptionPane;
-import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
+import com.ringlord.Transformations;
 import com.ringlord.mime.Base64;
+import com.ringlord.swing.ByteView;
 
 
+/**
+ * Shows the plain text deciphered from the {@link CipherTextOutput}. The
+ * deciphered bytes are kept as they are, and only the visible part of them is
+ * ever rendered as text. If the envelope carries a session key wrapped for the
+ * user's private key, the session key is used instead of the secret key.
+ */
 public class PlainTextOutput
-  extends JTextArea
+  extends ByteView
 {
   public PlainTextOutput( final CipherParameterPane cipherParameters,
                           final CipherTextOutput cipherTextOutput )
   {
     super();
-    setEditable( false );
     this.normalColor = getForeground();
 
     logger = Logger.getLogger( java.util.logging.Logger.GLOBAL_LOGGER_NAME );
@@ -48,32 +61,62 @@ public class PlainTextOutput
       @Override
       public void insertUpdate( final DocumentEvent e )
       {
-        modified( cipherTextOutput.getText().trim(),
-                  cipherParameters );
+        scheduleModified( cipherTextOutput,
+                          cipherParameters );
       }
 
 
       @Override
       public void removeUpdate( final DocumentEvent e )
       {
-        modified( cipherTextOutput.getText().trim(),
-                  cipherParameters );
+        scheduleModified( cipherTextOutput,
+                          cipherParameters );
       }
     } );
   }
 
 
+  /**
+   * The cipher text may arrive as a removal followed by several chunked
+   * insertions; rather than decipher after each of them, defer the work until
+   * the current burst of Document events is over.
+   */
+  private void scheduleModified( final CipherTextOutput cipherTextOutput,
+                                 final CipherParameterPane cipherParameters )
+  {
+    if( !isModifiedPending )
+      {
+        isModifiedPending = true;
+        SwingUtilities.invokeLater( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            isModifiedPending = false;
+            modified( cipherTextOutput.getText().trim(),
+                      cipherParameters );
+          }
+        } );
+      }
+  }
+
+
   private void modified( final String text,
                          final CipherParameterPane cipherParameters )
   {
-    final Key key = cipherParameters.getChosenSecretKey();
-    if( key == null )
+    final Parameters parameters = cipherParameters.getParameters();
+    final Algorithm algorithm = parameters.algorithm();
+    final Key key = parameters.key();
+    final PrivateKey privateKey = parameters.privateKey();
+    if( (algorithm == null) || ((key == null) && (privateKey == null)) )
       {
         return;
       }
     if( text.length() > 0 )
       {
-        logger.finer( "Deciphering:\n" + text );
+        logger.log( Level.FINER,
+                    "Deciphering:\n{0}",
+                    text );
         new SwingWorker<Void,Void>()
         {
           @Override
@@ -82,6 +125,8 @@ public class PlainTextOutput
             byte[] cipherText = null;
             byte[] initVector = null;
             byte[] plainTextHash = null;
+            String digestType = Parameters.DEFAULT_DIGEST;
+            final List<String> wrappedKeys = new ArrayList<>();
 
             int itemIndex = 0;
             final StringTokenizer t = new StringTokenizer( text,
@@ -90,7 +135,18 @@ public class PlainTextOutput
               {
                 while( t.hasMoreTokens() )
                   {
-                    final byte[] bytes = Base64.decode( t.nextToken().getBytes() );
+                    final String token = t.nextToken();
+                    if( Hybrid.isWrappedKey( token ) )
+                      {
+                        wrappedKeys.add( token );
+                        continue;
+                      }
+                    if( TreeDigest.NAME.equals( token ) || EncryptThenMac.NAME.equals( token ) )
+                      {
+                        digestType = token;
+                        continue;
+                      }
+                    final byte[] bytes = Base64.decode( token.getBytes() );
                     switch( itemIndex++ )
                       {
                       case 0:
@@ -117,48 +173,141 @@ public class PlainTextOutput
               }
             catch( final Exception x )
               {
-                setText( "" );
+                setBytes( null );
                 logger.log( Level.SEVERE,
                             "Failed to parse encrypted spec:\n" + text,
                             x );
                 return null;
               }
 
-            if( (cipherText != null) && (initVector != null) )
+            Key cipherKey = key;
+            if( !wrappedKeys.isEmpty() && (privateKey != null) )
               {
-                Algorithm algorithm = null;
                 try
                   {
-                    algorithm = cipherParameters.getChosenAlgorithm();
+                    final SecretKey sessionKey = hybrid.unwrap( wrappedKeys,
+                                                                privateKey,
+                                                                algorithm.name() );
+                    if( sessionKey != null )
+                      {
+                        cipherKey = sessionKey;
+                      }
+                  }
+                catch( final GeneralSecurityException x )
+                  {
+                    logger.log( Level.WARNING,
+                                "Failed to unwrap the session key",
+                                x );
+                    setBytes( null );
+                    setToolTipText( "The session key cannot be unwrapped with this private key" );
+                    return null;
+                  }
+              }
+            if( cipherKey == null )
+              {
+                setBytes( null );
+                setToolTipText( "No session key for this private key, and no secret key" );
+                return null;
+              }
 
+            if( (cipherText != null) && (initVector != null) )
+              {
+                // Whether a MAC is required is decided here, not by the
+                // envelope: Otherwise, removing its MAC token would pass a
+                // changed cipher text off as one with a (keyless) digest
+                final boolean isMacRequired = EncryptThenMac.NAME.equals( parameters.digestType() );
+                final boolean isMac = (isMacRequired || EncryptThenMac.NAME.equals( digestType )) &&
+                                      !algorithm.isAuthenticated();
+                try
+                  {
+                    if( isMac )
+                      {
+                        // Changed (or garbage) cipher text is rejected before
+                        // anything is deciphered
+                        if( (plainTextHash == null) || !EncryptThenMac.verify( cipherKey,
+                                                                               algorithm,
+                                                                               (initVector.length == 0
+                                                                                   ? null
+                                                                                   : initVector),
+                                                                               cipherText,
+                                                                               plainTextHash ) )
+                          {
+                            setBytes( null );
+                            setForeground( Color.red );
+                            setToolTipText( "MAC mismatch: the cipher text, init vector, or MAC were modified" );
+                            return null;
+                          }
+                      }
                     final Cipher c = Cipher.getInstance( algorithm.spec() );
                     if( initVector.length == 0 )
                       {
                         c.init( Cipher.DECRYPT_MODE,
-                                key );
+                                cipherKey );
                       }
                     else
                       {
-                        final IvParameterSpec ivSpec = new IvParameterSpec( initVector );
                         c.init( Cipher.DECRYPT_MODE,
-                                key,
-                                ivSpec );
+                                cipherKey,
+                                algorithm.parameterSpec( initVector ) );
+                      }
+                    if( algorithm.isAuthenticated() )
+                      {
+                        if( plainTextHash == null )
+                          {
+                            setBytes( null );
+                            setToolTipText( "No authentication tag, cannot decipher" );
+                            return null;
+                          }
+                        // The tag takes the place of the digest; the Cipher
+                        // verifies it before giving up any plain text
+                        CipherTextOutput.associate( c,
+                                                    algorithm,
+                                                    wrappedKeys );
+                        final byte[] taggedText = Arrays.copyOf( cipherText,
+                                                                 cipherText.length + plainTextHash.length );
+                        System.arraycopy( plainTextHash,
+                                          0,
+                                          taggedText,
+                                          cipherText.length,
+                                          plainTextHash.length );
+                        final byte[] plainText = c.doFinal( taggedText );
+                        setForeground( normalColor );
+                        setToolTipText( null );
+                        setBytes( plainText );
+                        return null;
+                      }
+                    // Most likely the keystream was computed while enciphering
+                    final Keystream keystream = (Keystream.isApplicable( algorithm ) && (initVector.length > 0)
+                        ? Keystream.cached( algorithm,
+                                            cipherKey,
+                                            initVector )
+                        : null);
+                    final byte[] plainText = (keystream == null
+                        ? c.doFinal( cipherText )
+                        : keystream.decipher( cipherText ));
+                    logger.log( Level.FINE,
+                                "Deciphered: {0}",
+                                Transformations.lazyString( plainText,
+                                                            UTF8 ) );
+                    if( isMac )
+                      {
+                        // Verified before deciphering
+                        setForeground( normalColor );
+                        setToolTipText( null );
                       }
-                    final byte[] plainText = c.doFinal( cipherText );
-                    logger.fine( "Deciphered: " + new String( plainText,
-                                                              UTF8 ) );
-                    if( plainTextHash != null )
+                    else if( plainTextHash != null )
                       {
                         boolean okay = true;
-                        final MessageDigest md = MessageDigest.getInstance( "SHA-256" );
-                        final byte[] digest = md.digest( plainText );
+                        final byte[] digest = (TreeDigest.NAME.equals( digestType )
+                            ? treeDigest( plainText )
+                            : MessageDigest.getInstance( "SHA-256" ).digest( plainText ));
                         if( plainTextHash.length == digest.length )
                           {
                             for( int i = 0; i < plainTextHash.length; i++ )
                               {
                                 if( plainTextHash[i] != digest[i] )
                                   {
-                                    setText( "" );
+                                    setBytes( null );
                                     setToolTipText( "Digest mismatch" );
                                     okay = false;
                                     break;
@@ -188,19 +337,18 @@ public class PlainTextOutput
                         setToolTipText( "No digest, cannot validate" );
                       }
 
-                    setText( new String( plainText,
-                                         UTF8 ) );
+                    setBytes( plainText );
                   }
                 catch( final NoSuchAlgorithmException x )
                   {
                     logger.log( Level.SEVERE,
                                 "Failed to decipher",
                                 x );
-                    setText( "" );
+                    setBytes( null );
                     JOptionPane.showMessageDialog( PlainTextOutput.this,
                                                    "<html>" +
                                                        "The algorithm '" +
-                                                       cipherParameters.getChosenAlgorithm().name() +
+                                                       algorithm.name() +
                                                        "' is unavailable!",
                                                    "No Such Algorithm",
                                                    JOptionPane.ERROR_MESSAGE );
@@ -210,11 +358,11 @@ public class PlainTextOutput
                     logger.log( Level.SEVERE,
                                 "Failed to decipher",
                                 x );
-                    setText( "" );
+                    setBytes( null );
                     JOptionPane.showMessageDialog( PlainTextOutput.this,
                                                    "<html>" +
                                                        "The padding '" +
-                                                       cipherParameters.getChosenAlgorithm().padding() +
+                                                       algorithm.padding() +
                                                        "' is unavailable!",
                                                    "No Such Padding",
                                                    JOptionPane.ERROR_MESSAGE );
@@ -224,12 +372,12 @@ public class PlainTextOutput
                     logger.log( Level.SEVERE,
                                 "Failed to decipher",
                                 x );
-                    setText( "" );
-                    final String algorithmName = key.getAlgorithm();
+                    setBytes( null );
+                    final String algorithmName = cipherKey.getAlgorithm();
                     JOptionPane.showMessageDialog( PlainTextOutput.this,
                                                    "<html>" +
                                                        "The " +
-                                                       (8 * key.getEncoded().length) +
+                                                       (8 * cipherKey.getEncoded().length) +
                                                        "-bit SecretKey was " +
                                                        " generated<br>" +
                                                        "for the cryptographic cipher " +
@@ -246,7 +394,7 @@ public class PlainTextOutput
                     logger.log( Level.SEVERE,
                                 "Failed to decipher",
                                 x );
-                    setText( "" );
+                    setBytes( null );
                     JOptionPane.showMessageDialog( PlainTextOutput.this,
                                                    "<html>" + "Parameters (key and/or IV) are not valid",
                                                    "Invalid Algorithm Parameter",
@@ -257,18 +405,28 @@ public class PlainTextOutput
                     logger.log( Level.SEVERE,
                                 "Failed to decipher",
                                 x );
-                    setText( "" );
+                    setBytes( null );
                     JOptionPane.showMessageDialog( PlainTextOutput.this,
                                                    "<html>" + "The block size is not valid",
                                                    "Illegal Block Size",
                                                    JOptionPane.ERROR_MESSAGE );
                   }
+                catch( final AEADBadTagException x )
+                  {
+                    // Expected whenever the envelope has been tampered with
+                    logger.log( Level.FINE,
+                                "Failed to authenticate",
+                                x );
+                    setBytes( null );
+                    setForeground( Color.red );
+                    setToolTipText( "Tag mismatch: the cipher text, init vector, tag, or wrapped keys were modified" );
+                  }
                 catch( final BadPaddingException x )
                   {
                     logger.log( Level.SEVERE,
                                 "Failed to decipher",
                                 x );
-                    setText( "" );
+                    setBytes( null );
                     final String padding = algorithm.padding();
                     if( "NoPadding".equalsIgnoreCase( padding ) )
                       {
@@ -313,6 +471,37 @@ public class PlainTextOutput
       }
   }
 
+  /**
+   * @return The {@link TreeDigest} of the plain text, for which only the part
+   *         from its first difference to the previous plain text is hashed
+   *         again.
+   */
+  private byte[] treeDigest( final byte[] plainText )
+  {
+    synchronized( treeDigest )
+      {
+        int same = 0;
+        if( previousPlainText != null )
+          {
+            final int length = Math.min( plainText.length,
+                                         previousPlainText.length );
+            while( (same < length) && (plainText[same] == previousPlainText[same]) )
+              {
+                same++;
+              }
+          }
+        treeDigest.invalidate( same );
+        final MessageDigest md = treeDigest.start();
+        md.update( plainText );
+        previousPlainText = plainText;
+        return md.digest();
+      }
+  }
+
+  private boolean isModifiedPending;
+  private byte[] previousPlainText;
+  private final TreeDigest treeDigest = new TreeDigest();
+  private final Hybrid hybrid = new Hybrid();
   private final Color normalColor;
   private final Logger logger;
 
@@ -0,0 +1,363 @@
+package com.ringlord.cryptcreature;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+
+/**
+ * <p>
+ * Random secret keys and init vectors, generated ahead of time in the
+ * background, so that asking for one rarely has to wait for the system to
+ * gather entropy.
+ * </p>
+ *
+ * <p>
+ * Keys are pooled per algorithm and key size, init vectors per length. Each
+ * pool holds up to {@link #setDepth(int) depth} items, and is refilled once it
+ * has dropped to the {@link #setRefillThreshold(int) refill threshold}. A pool
+ * is created (and filled) the first time it is asked for, or when it is
+ * {@link #prefetchKeys(String, int) prefetched}; if it is empty when asked, the
+ * item is generated on the spot.
+ * </p>
+ *
+ * <p>
+ * The randomness comes from several {@link SecureRandom} instances, each
+ * thread using one of them, so that threads do not contend for the same one.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public final class RandomPool
+{
+  /**
+   * @param algorithm
+   *          The name of the algorithm (such as "AES").
+   * @param keySizeBits
+   *          The size of the key.
+   * @return A new random secret key.
+   * @throws NoSuchAlgorithmException
+   *           If no keys can be generated for the algorithm.
+   */
+  public static SecretKey key( final String algorithm,
+                               final int keySizeBits )
+    throws NoSuchAlgorithmException
+  {
+    final String name = algorithm + "/" + keySizeBits;
+    final SecretKey key = take( keys,
+                                name );
+    if( key != null )
+      {
+        return key;
+      }
+    final SecretKey generated = generateKey( algorithm,
+                                             keySizeBits );
+    refill( keys,
+            name,
+            new Generator<SecretKey>()
+            {
+              @Override
+              public SecretKey generate()
+                throws NoSuchAlgorithmException
+              {
+                return generateKey( algorithm,
+                                    keySizeBits );
+              }
+            } );
+    return generated;
+  }
+
+
+  /**
+   * @param length
+   *          The number of bytes.
+   * @return A new random init vector.
+   */
+  public static byte[] initVector( final int length )
+  {
+    final String name = String.valueOf( length );
+    final byte[] iv = take( initVectors,
+                            name );
+    if( iv != null )
+      {
+        return iv;
+      }
+    final byte[] generated = randomBytes( length );
+    refill( initVectors,
+            name,
+            new Generator<byte[]>()
+            {
+              @Override
+              public byte[] generate()
+              {
+                return randomBytes( length );
+              }
+            } );
+    return generated;
+  }
+
+
+  /**
+   * @param algorithm
+   *          The chosen algorithm.
+   * @param c
+   *          A Cipher for the algorithm.
+   * @return A new random init vector suitable for the Cipher, or null if the
+   *         algorithm's mode uses none.
+   */
+  public static byte[] initVectorFor( final Algorithm algorithm,
+                                      final Cipher c )
+  {
+    if( algorithm.initVectorLength() > 0 )
+      {
+        return initVector( algorithm.initVectorLength() );
+      }
+    final int blockSize = c.getBlockSize();
+    if( (blockSize == 0) || "ECB".equalsIgnoreCase( algorithm.mode() ) || "NONE".equalsIgnoreCase( algorithm.mode() ) )
+      {
+        return null;
+      }
+    return initVector( blockSize );
+  }
+
+
+  /**
+   * Starts filling the pool of keys for the algorithm and key size, in
+   * anticipation of their being asked for.
+   *
+   * @param algorithm
+   *          The name of the algorithm (such as "AES").
+   * @param keySizeBits
+   *          The size of the key.
+   */
+  public static void prefetchKeys( final String algorithm,
+                                   final int keySizeBits )
+  {
+    refill( keys,
+            algorithm + "/" + keySizeBits,
+            new Generator<SecretKey>()
+            {
+              @Override
+              public SecretKey generate()
+                throws NoSuchAlgorithmException
+              {
+                return generateKey( algorithm,
+                                    keySizeBits );
+              }
+            } );
+  }
+
+
+  /**
+   * Starts filling the pool of init vectors of the given length.
+   *
+   * @param length
+   *          The number of bytes.
+   */
+  public static void prefetchInitVectors( final int length )
+  {
+    refill( initVectors,
+            String.valueOf( length ),
+            new Generator<byte[]>()
+            {
+              @Override
+              public byte[] generate()
+              {
+                return randomBytes( length );
+              }
+            } );
+  }
+
+
+  /**
+   * @param depth
+   *          The number of items that each pool holds when full. The default
+   *          is 8.
+   */
+  public static void setDepth( final int depth )
+  {
+    RandomPool.depth = Math.max( 1,
+                                 depth );
+  }
+
+
+  /**
+   * @param refillThreshold
+   *          The number of items left in a pool at (or below) which it is
+   *          refilled. The default is 2.
+   */
+  public static void setRefillThreshold( final int refillThreshold )
+  {
+    RandomPool.refillThreshold = Math.max( 0,
+                                           refillThreshold );
+  }
+
+
+  /**
+   * @return The SecureRandom to be used by the current thread.
+   */
+  public static SecureRandom random()
+  {
+    return stripes[(int)Thread.currentThread().getId() & (stripes.length - 1)];
+  }
+
+
+  private static byte[] randomBytes( final int length )
+  {
+    final byte[] bytes = new byte[length];
+    random().nextBytes( bytes );
+    return bytes;
+  }
+
+
+  private static SecretKey generateKey( final String algorithm,
+                                        final int keySizeBits )
+    throws NoSuchAlgorithmException
+  {
+    final KeyGenerator keyGenerator = KeyGenerator.getInstance( algorithm );
+    keyGenerator.init( keySizeBits,
+                       random() );
+    return keyGenerator.generateKey();
+  }
+
+
+  /**
+   * @return An item from the pool, or null if it is empty; in either case a
+   *         refill is started if the pool has run low.
+   */
+  private static <T> T take( final Map<String,BlockingQueue<T>> pools,
+                             final String name )
+  {
+    final BlockingQueue<T> pool = pools.get( name );
+    if( pool == null )
+      {
+        return null;
+      }
+    final T item = pool.poll();
+    if( (item != null) && (pool.size() <= refillThreshold) )
+      {
+        schedule( pool );
+      }
+    return item;
+  }
+
+
+  private static <T> void refill( final Map<String,BlockingQueue<T>> pools,
+                                  final String name,
+                                  final Generator<T> generator )
+  {
+    BlockingQueue<T> pool = pools.get( name );
+    if( pool == null )
+      {
+        final BlockingQueue<T> created = new LinkedBlockingQueue<>();
+        pool = pools.putIfAbsent( name,
+                                  created );
+        if( pool == null )
+          {
+            pool = created;
+          }
+      }
+    generators.put( pool,
+                    generator );
+    schedule( pool );
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private static <T> void schedule( final BlockingQueue<T> pool )
+  {
+    if( !refilling.add( pool ) )
+      {
+        // Already being refilled
+        return;
+      }
+    final Generator<T> generator = (Generator<T>)generators.get( pool );
+    filler.execute( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+          {
+            while( pool.size() < depth )
+              {
+                pool.offer( generator.generate() );
+              }
+          }
+        catch( final Exception x )
+          {
+            Logger.getLogger( Logger.GLOBAL_LOGGER_NAME ).log( Level.WARNING,
+                                                               "Cannot generate random items",
+                                                               x );
+          }
+        finally
+          {
+            refilling.remove( pool );
+          }
+      }
+    } );
+  }
+
+
+  private interface Generator<T>
+  {
+    T generate()
+      throws Exception;
+  }
+
+
+  /**
+   * @return At least as many SecureRandom instances as there are processors,
+   *         and a power of two of them.
+   */
+  private static SecureRandom[] stripes()
+  {
+    final int cpus = Runtime.getRuntime().availableProcessors();
+    final SecureRandom[] result = new SecureRandom[Integer.highestOneBit( Math.max( 1,
+                                                                                    cpus - 1 ) ) << 1];
+    for( int i = 0; i < result.length; i++ )
+      {
+        result[i] = new SecureRandom();
+      }
+    return result;
+  }
+
+
+  private RandomPool()
+  {
+  }
+
+  private static volatile int depth = 8;
+  private static volatile int refillThreshold = 2;
+  //
+  private static final Map<String,BlockingQueue<SecretKey>> keys = new ConcurrentHashMap<>();
+  private static final Map<String,BlockingQueue<byte[]>> initVectors = new ConcurrentHashMap<>();
+  private static final Map<BlockingQueue<?>,Generator<?>> generators = new ConcurrentHashMap<>();
+  private static final Set<BlockingQueue<?>> refilling = ConcurrentHashMap.newKeySet();
+  private static final SecureRandom[] stripes = stripes();
+  private static final ExecutorService filler = Executors.newSingleThreadExecutor( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+                                   "Random pool filler" );
+      t.setDaemon( true );
+      t.setPriority( Thread.MIN_PRIORITY );
+      return t;
+    }
+  } );
+}
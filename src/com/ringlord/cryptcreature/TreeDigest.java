@@ -0,0 +1,317 @@
+package com.ringlord.cryptcreature;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * <p>
+ * A Merkle tree digest: The text is cut into leaves of {@link #LEAF_SIZE}
+ * bytes, each leaf is hashed with SHA-256, and pairs of hashes are hashed
+ * together, level by level, up to the single root, which is the digest. Leaves
+ * and nodes are hashed with a distinct first byte (0 and 1), so that neither
+ * can pass for the other.
+ * </p>
+ *
+ * <p>
+ * The leaves are hashed in parallel, and the tree of the previous text is
+ * kept: After an {@link #invalidate(long) edit}, the leaves before it (and the
+ * nodes above only those) are taken from the previous tree, and only the rest
+ * is hashed again. When text is typed at the end of a long document, that is
+ * the last leaf and its path to the root.
+ * </p>
+ *
+ * <p>
+ * A TreeDigest is told about edits, and {@link #start() starts} a
+ * MessageDigest for each new text. All methods may be called from any thread.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public final class TreeDigest
+{
+  /**
+   * Notes that the text has been changed, so that the tree can no longer be
+   * trusted from the given position on.
+   *
+   * @param offset
+   *          The position of the first byte that may be different; it must
+   *          not be past the actual first change.
+   */
+  public synchronized void invalidate( final long offset )
+  {
+    generation++;
+    reusableLeaves = (int)Math.min( reusableLeaves,
+                                    Math.max( 0,
+                                              offset ) / LEAF_SIZE );
+  }
+
+
+  /**
+   * @return A MessageDigest for the text as it is now, which must be fed all of
+   *         the text, from the start. Once its digest has been taken, its tree
+   *         replaces the kept one, unless there have been further edits.
+   */
+  public synchronized MessageDigest start()
+  {
+    return new Computation( generation,
+                            reusableLeaves,
+                            levels );
+  }
+
+
+  /**
+   * The digest of one text. Bytes of the leaves that can be reused are
+   * counted but not kept; each other leaf is hashed in the background as soon
+   * as it is full.
+   */
+  private final class Computation
+    extends MessageDigest
+  {
+    Computation( final long generation,
+                 final int reusableLeaves,
+                 final List<byte[][]> previous )
+    {
+      super( NAME );
+      this.generation = generation;
+      this.reusableLeaves = reusableLeaves;
+      this.previous = previous;
+    }
+
+
+    @Override
+    protected void engineUpdate( final byte input )
+    {
+      engineUpdate( new byte[]{input},
+                    0,
+                    1 );
+    }
+
+
+    @Override
+    protected void engineUpdate( final byte[] input,
+                                 int offset,
+                                 int length )
+    {
+      while( length > 0 )
+        {
+          final long leaf = position / LEAF_SIZE;
+          final int room = (int)((leaf + 1) * LEAF_SIZE - position);
+          final int count = Math.min( room,
+                                      length );
+          if( leaf >= reusableLeaves )
+            {
+              System.arraycopy( input,
+                                offset,
+                                current,
+                                (int)(position % LEAF_SIZE),
+                                count );
+            }
+          position += count;
+          offset += count;
+          length -= count;
+          if( (count == room) && (leaf >= reusableLeaves) )
+            {
+              submit( current,
+                      LEAF_SIZE );
+              current = new byte[LEAF_SIZE];
+            }
+        }
+    }
+
+
+    @Override
+    protected void engineUpdate( final ByteBuffer input )
+    {
+      if( input.hasArray() )
+        {
+          engineUpdate( input.array(),
+                        input.arrayOffset() + input.position(),
+                        input.remaining() );
+          input.position( input.limit() );
+        }
+      else
+        {
+          super.engineUpdate( input );
+        }
+    }
+
+
+    @Override
+    protected byte[] engineDigest()
+    {
+      final int partial = (int)(position % LEAF_SIZE);
+      if( (partial > 0) || (position == 0) )
+        {
+          // The last leaf is shorter (or the only one, and empty)
+          submit( current,
+                  partial );
+        }
+      final int reused = (int)Math.min( reusableLeaves,
+                                        position / LEAF_SIZE );
+      final byte[][] leaves = new byte[reused + hashes.size()][];
+      for( int i = 0; i < reused; i++ )
+        {
+          leaves[i] = previous.get( 0 )[i];
+        }
+      try
+        {
+          for( int i = 0; i < hashes.size(); i++ )
+            {
+              leaves[reused + i] = hashes.get( i ).get();
+            }
+        }
+      catch( final InterruptedException |
+                   ExecutionException x )
+        {
+          throw new IllegalStateException( x );
+        }
+
+      final List<byte[][]> tree = new ArrayList<>();
+      tree.add( leaves );
+      byte[][] level = leaves;
+      for( int height = 1; level.length > 1; height++ )
+        {
+          final byte[][] above = new byte[(level.length + 1) / 2][];
+          for( int i = 0; i < above.length; i++ )
+            {
+              if( 2 * i + 1 == level.length )
+                {
+                  // An odd one out is carried up as it is
+                  above[i] = level[2 * i];
+                }
+              else if( (((long)i + 1) << height) <= reused )
+                {
+                  // Covers only reused leaves, so it is unchanged
+                  above[i] = previous.get( height )[i];
+                }
+              else
+                {
+                  above[i] = node( level[2 * i],
+                                   level[2 * i + 1] );
+                }
+            }
+          tree.add( above );
+          level = above;
+        }
+
+      synchronized( TreeDigest.this )
+        {
+          if( TreeDigest.this.generation == generation )
+            {
+              levels = tree;
+              TreeDigest.this.reusableLeaves = (int)(position / LEAF_SIZE);
+            }
+        }
+      engineReset();
+      return level[0];
+    }
+
+
+    @Override
+    protected void engineReset()
+    {
+      position = 0;
+      current = new byte[LEAF_SIZE];
+      hashes.clear();
+    }
+
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+      return DIGEST_LENGTH;
+    }
+
+
+    private void submit( final byte[] leaf,
+                         final int length )
+    {
+      final Callable<byte[]> hash = new Callable<byte[]>()
+      {
+        @Override
+        public byte[] call()
+        {
+          final MessageDigest md = SHA256.get();
+          md.update( LEAF );
+          md.update( leaf,
+                     0,
+                     length );
+          return md.digest();
+        }
+      };
+      if( ForkJoinPool.getCommonPoolParallelism() > 1 )
+        {
+          hashes.add( ForkJoinPool.commonPool().submit( hash ) );
+        }
+      else
+        {
+          // With nothing to run in parallel, handing off only adds overhead
+          final FutureTask<byte[]> task = new FutureTask<>( hash );
+          task.run();
+          hashes.add( task );
+        }
+    }
+
+    private final long generation;
+    private final int reusableLeaves;
+    private final List<byte[][]> previous;
+    private final List<Future<byte[]>> hashes = new ArrayList<>();
+    private byte[] current = new byte[LEAF_SIZE];
+    private long position;
+  }
+
+
+  private static byte[] node( final byte[] left,
+                              final byte[] right )
+  {
+    final MessageDigest md = SHA256.get();
+    md.update( NODE );
+    md.update( left );
+    md.update( right );
+    return md.digest();
+  }
+
+  private long generation;
+  private int reusableLeaves;
+  /**
+   * The hashes of the kept tree, from the leaves up to the root.
+   */
+  private List<byte[][]> levels = new ArrayList<>();
+  //
+  /**
+   * The name of the digest, as it is given in the envelope.
+   */
+  public static final String NAME = "Merkle-SHA-256";
+  /**
+   * The number of bytes in each leaf.
+   */
+  public static final int LEAF_SIZE = 64 * 1024;
+  private static final int DIGEST_LENGTH = 32;
+  private static final byte LEAF = 0;
+  private static final byte NODE = 1;
+  private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>()
+  {
+    @Override
+    protected MessageDigest initialValue()
+    {
+      try
+        {
+          return MessageDigest.getInstance( "SHA-256" );
+        }
+      catch( final NoSuchAlgorithmException x )
+        {
+          // Every Java platform is required to support SHA-256
+          throw new IllegalStateException( x );
+        }
+    }
+  };
+}
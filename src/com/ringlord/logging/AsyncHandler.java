@@ -0,0 +1,348 @@
+package com.ringlord.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * <p>
+ * A {@link Handler} that takes {@link LogRecord}s off the logging threads as
+ * quickly as possible: records are placed into a bounded, lock-free ring
+ * buffer and handed to a target Handler (such as a {@link LogFileHandler}) by
+ * a single background thread, which formats and writes them and flushes the
+ * target once per batch rather than once per record. Example usage:
+ * </p>
+ *
+ * <pre>
+ * final Handler file = new LogFileHandler( loggingDir,
+ *                                          &quot;myapp-%u%g.log&quot;,
+ *                                          1024 * 1024,
+ *                                          10 );
+ * file.setFormatter( new LogFormatter() );
+ * logger.addHandler( new AsyncHandler( file ) );
+ * </pre>
+ *
+ * <p>
+ * What happens when the buffer is full is decided by the
+ * {@link OverflowPolicy}. Records that are dropped are counted, and the count
+ * is reported in the log once there is room again. A call to {@link #flush()}
+ * waits until everything published so far has been written, and
+ * {@link #close()} drains the buffer before closing the target.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ **/
+public class AsyncHandler
+  extends Handler
+{
+  /**
+   * What to do with a record when the ring buffer is full.
+   */
+  public enum OverflowPolicy
+  {
+    /**
+     * The logging thread waits until there is room.
+     */
+    BLOCK,
+    /**
+     * Records below the {@link AsyncHandler#setDropThreshold(Level) drop
+     * threshold} (WARNING by default) are dropped; others wait for room.
+     */
+    DROP_LOWEST_LEVEL,
+    /**
+     * Any record is dropped; only the number of dropped records is kept.
+     */
+    COUNT_DROPPED
+  }
+
+
+  /**
+   * Creates an AsyncHandler with room for 8192 records that drops records
+   * below WARNING when it is full.
+   *
+   * @param target
+   *          The Handler that formats and writes the records.
+   */
+  public AsyncHandler( final Handler target )
+  {
+    this( target,
+          8192,
+          OverflowPolicy.DROP_LOWEST_LEVEL );
+  }
+
+
+  /**
+   * @param target
+   *          The Handler that formats and writes the records.
+   * @param capacity
+   *          The number of records that can be waiting to be written; rounded
+   *          up to the next power of two.
+   * @param policy
+   *          What to do when the buffer is full.
+   */
+  public AsyncHandler( final Handler target,
+                       final int capacity,
+                       final OverflowPolicy policy )
+  {
+    super();
+    this.target = target;
+    this.queue = new RingBuffer<>( capacity );
+    this.policy = policy;
+    setLevel( Level.ALL );
+
+    writer = new Thread( "AsyncHandler-writer" )
+    {
+      @Override
+      public void run()
+      {
+        drainLoop();
+      }
+    };
+    writer.setDaemon( true );
+    writer.start();
+  }
+
+
+  public OverflowPolicy getOverflowPolicy()
+  {
+    return policy;
+  }
+
+
+  public void setOverflowPolicy( final OverflowPolicy policy )
+  {
+    this.policy = policy;
+  }
+
+
+  /**
+   * @param level
+   *          Under the {@link OverflowPolicy#DROP_LOWEST_LEVEL} policy, records
+   *          of this level and above are never dropped.
+   */
+  public void setDropThreshold( final Level level )
+  {
+    this.dropThreshold = level;
+  }
+
+
+  /**
+   * @return The total number of records dropped so far because the buffer was
+   *         full.
+   */
+  public long getDroppedCount()
+  {
+    return droppedTotal.get();
+  }
+
+
+  @Override
+  public void publish( final LogRecord record )
+  {
+    if( isClosed || !isLoggable( record ) )
+      {
+        return;
+      }
+    // The caller must be inferred on the logging thread, while it is still on
+    // the stack
+    record.getSourceClassName();
+
+    if( !queue.offer( record ) )
+      {
+        switch( policy )
+          {
+          case DROP_LOWEST_LEVEL:
+            if( (record.getLevel().intValue() < dropThreshold.intValue()) || !awaitRoom( record ) )
+              {
+                dropped();
+                return;
+              }
+            break;
+
+          case BLOCK:
+            if( !awaitRoom( record ) )
+              {
+                dropped();
+                return;
+              }
+            break;
+
+          case COUNT_DROPPED:
+          default:
+            dropped();
+            return;
+          }
+      }
+    enqueued.incrementAndGet();
+    if( isWriterIdle )
+      {
+        LockSupport.unpark( writer );
+      }
+  }
+
+
+  /**
+   * Waits until the record fits into the queue.
+   *
+   * @return false if it can't be waited for, because the handler has been
+   *         closed, or because the caller is the writer thread itself.
+   */
+  private boolean awaitRoom( final LogRecord record )
+  {
+    while( !queue.offer( record ) )
+      {
+        if( isClosed || (Thread.currentThread() == writer) )
+          {
+            return false;
+          }
+        LockSupport.unpark( writer );
+        LockSupport.parkNanos( WAIT_NANOS );
+      }
+    return true;
+  }
+
+
+  /**
+   * Waits (for a few seconds at most) until every record published so far has
+   * been written to and flushed by the target Handler.
+   */
+  @Override
+  public void flush()
+  {
+    if( Thread.currentThread() == writer )
+      {
+        return;
+      }
+    final long goal = enqueued.get();
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+    while( (written < goal) && writer.isAlive() && (System.nanoTime() < deadline) )
+      {
+        LockSupport.unpark( writer );
+        LockSupport.parkNanos( WAIT_NANOS );
+      }
+  }
+
+
+  /**
+   * Stops accepting records, writes out whatever is still buffered, and closes
+   * the target Handler.
+   */
+  @Override
+  public void close()
+    throws SecurityException
+  {
+    if( isClosed )
+      {
+        return;
+      }
+    flush();
+    isClosed = true;
+    LockSupport.unpark( writer );
+    try
+      {
+        writer.join( TimeUnit.SECONDS.toMillis( 5 ) );
+      }
+    catch( final InterruptedException x )
+      {
+        Thread.currentThread().interrupt();
+      }
+    target.close();
+  }
+
+
+  private void dropped()
+  {
+    droppedTotal.incrementAndGet();
+    droppedSinceReport.incrementAndGet();
+  }
+
+
+  private void drainLoop()
+  {
+    while( true )
+      {
+        int batch = 0;
+        LogRecord record;
+        while( (batch < MAX_BATCH) && ((record = queue.poll()) != null) )
+          {
+            write( record );
+            batch++;
+          }
+
+        final long lost = droppedSinceReport.getAndSet( 0 );
+        if( lost > 0 )
+          {
+            final LogRecord report = new LogRecord( Level.WARNING,
+                                                    "Log buffer overflowed: " + lost + " record(s) dropped" );
+            report.setSourceClassName( AsyncHandler.class.getName() );
+            report.setSourceMethodName( "publish" );
+            write( report );
+          }
+
+        if( (batch > 0) || (lost > 0) )
+          {
+            try
+              {
+                target.flush();
+              }
+            catch( final Exception x )
+              {
+                reportError( null,
+                             x,
+                             ErrorManager.FLUSH_FAILURE );
+              }
+            written += batch;
+            continue;
+          }
+
+        if( isClosed )
+          {
+            break;
+          }
+
+        isWriterIdle = true;
+        if( queue.isEmpty() )
+          {
+            LockSupport.parkNanos( this,
+                                   IDLE_NANOS );
+          }
+        isWriterIdle = false;
+      }
+  }
+
+
+  private void write( final LogRecord record )
+  {
+    try
+      {
+        target.publish( record );
+      }
+    catch( final Exception x )
+      {
+        reportError( null,
+                     x,
+                     ErrorManager.WRITE_FAILURE );
+      }
+  }
+
+  private volatile boolean isClosed;
+  private volatile boolean isWriterIdle;
+  private volatile long written;
+  private volatile OverflowPolicy policy;
+  private volatile Level dropThreshold = Level.WARNING;
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong droppedTotal = new AtomicLong();
+  private final AtomicLong droppedSinceReport = new AtomicLong();
+  private final Handler target;
+  private final RingBuffer<LogRecord> queue;
+  private final Thread writer;
+  //
+  private static final int MAX_BATCH = 256;
+  private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos( 200 );
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos( 250 );
+}
@@ -0,0 +1,453 @@
+package com.ringlord.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.StreamHandler;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * <p>
+ * A {@link Handler} that writes to a log file and, whenever that file reaches
+ * its maximum size, rotates it out and compresses it with gzip on a
+ * low-priority background thread. Rather than keeping a fixed number of
+ * generations, the compressed generations are retained up to a total size on
+ * disk, which (log text being highly compressible) covers a far longer span
+ * of time in the same footprint.
+ * </p>
+ *
+ * <p>
+ * The files in the logging directory are:
+ * </p>
+ *
+ * <ul>
+ * <li><i>name</i>.log &mdash; the log currently being written</li>
+ * <li><i>name</i>-<i>yyyyMMdd-HHmmss-SSS</i>.log &mdash; a generation that has
+ * been rotated out and is waiting to be compressed</li>
+ * <li><i>name</i>-<i>yyyyMMdd-HHmmss-SSS</i>.log.gz &mdash; a compressed
+ * generation</li>
+ * </ul>
+ *
+ * <p>
+ * If another process is already writing <i>name</i>.log, then
+ * <i>name</i>-u1.log (and so on) is used instead. A log left over from a
+ * previous run is rotated out when the handler is created.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public class CompressingLogFileHandler
+  extends StreamHandler
+{
+  /**
+   * @param path
+   *          The directory where the log files are to be created.
+   * @param name
+   *          The base name of the log files, such as "myapp".
+   * @param maxSize
+   *          The size at which the current log is rotated out.
+   * @param maxArchiveSize
+   *          The total size of compressed generations to retain; the oldest
+   *          are deleted once this is exceeded.
+   * @throws IOException
+   */
+  public CompressingLogFileHandler( final File path,
+                                    final String name,
+                                    final int maxSize,
+                                    final long maxArchiveSize )
+    throws IOException
+  {
+    super();
+    this.directory = path;
+    this.maxSize = maxSize;
+    this.maxArchiveSize = maxArchiveSize;
+
+    path.mkdirs();
+    String baseName = name;
+    FileLock lock = null;
+    for( int unique = 1; lock == null; unique++ )
+      {
+        final File lockFile = new File( path,
+                                        baseName + ".log.lck" );
+        final FileChannel channel = FileChannel.open( lockFile.toPath(),
+                                                      StandardOpenOption.CREATE,
+                                                      StandardOpenOption.WRITE );
+        lock = channel.tryLock();
+        if( lock == null )
+          {
+            channel.close();
+            if( unique > 100 )
+              {
+                throw new IOException( "Cannot lock any log file in " + path );
+              }
+            baseName = name + "-u" + unique;
+          }
+      }
+    this.lock = lock;
+    this.name = baseName;
+    this.current = new File( path,
+                             baseName + ".log" );
+
+    if( current.length() > 0 )
+      {
+        archive();
+      }
+    // Finish what an earlier run may have left undone
+    for( final File leftover : listGenerations( ".log" ) )
+      {
+        compress( leftover );
+      }
+    open();
+  }
+
+
+  /**
+   * @return The file currently being written.
+   */
+  public File getFile()
+  {
+    return current;
+  }
+
+
+  /**
+   * @return The compressed (or still being compressed) generations, oldest
+   *         first.
+   */
+  public File[] getGenerations()
+  {
+    final File[] pending = listGenerations( ".log" );
+    final File[] compressed = listGenerations( ".log.gz" );
+    final File[] all = Arrays.copyOf( compressed,
+                                      compressed.length + pending.length );
+    System.arraycopy( pending,
+                      0,
+                      all,
+                      compressed.length,
+                      pending.length );
+    Arrays.sort( all );
+    return all;
+  }
+
+
+  public long getMaxArchiveSize()
+  {
+    return maxArchiveSize;
+  }
+
+
+  /**
+   * @param maxArchiveSize
+   *          The total size of compressed generations to retain; takes effect
+   *          the next time a generation has been compressed.
+   */
+  public void setMaxArchiveSize( final long maxArchiveSize )
+  {
+    this.maxArchiveSize = maxArchiveSize;
+  }
+
+
+  @Override
+  public synchronized void publish( final LogRecord record )
+  {
+    if( (meter == null) && !isClosed )
+      {
+        // A failed rotation could not open the log again; try once more
+        reopen();
+      }
+    super.publish( record );
+    if( (meter != null) && (meter.written >= maxSize) )
+      {
+        rotate();
+      }
+  }
+
+
+  @Override
+  public synchronized void close()
+    throws SecurityException
+  {
+    super.close();
+    meter = null;
+    isClosed = true;
+    try
+      {
+        lock.release();
+        lock.channel().close();
+      }
+    catch( final IOException x )
+      {
+        // The lock goes away with the process, anyway
+      }
+    archiver.shutdown();
+  }
+
+
+  private void rotate()
+  {
+    // Close the current log by switching to a throwaway stream
+    setOutputStream( new DiscardingStream() );
+    meter = null;
+    try
+      {
+        archive();
+      }
+    catch( final IOException x )
+      {
+        // Such as when another process holds the file open; the current log
+        // is appended to, and rotated again once it has grown by as much
+        reportError( "Failed to rotate " + current,
+                     x,
+                     ErrorManager.OPEN_FAILURE );
+      }
+    finally
+      {
+        reopen();
+      }
+  }
+
+
+  /**
+   * Opens the current log for appending, or reports why it can't be.
+   */
+  private void reopen()
+  {
+    try
+      {
+        open();
+      }
+    catch( final IOException x )
+      {
+        // Records are dropped (rather than piling up) until it can be
+        setOutputStream( new DiscardingStream() );
+        reportError( "Failed to open " + current,
+                     x,
+                     ErrorManager.OPEN_FAILURE );
+      }
+  }
+
+
+  private void open()
+    throws IOException
+  {
+    meter = new MeteredStream( new BufferedOutputStream( new FileOutputStream( current,
+                                                                               true ) ) );
+    setOutputStream( meter );
+  }
+
+
+  /**
+   * Renames the current log to a new generation and queues it for
+   * compression.
+   */
+  private void archive()
+    throws IOException
+  {
+    final String stamp = STAMP_FORMAT.format( Instant.now() );
+    File target = new File( directory,
+                            name + "-" + stamp + ".log" );
+    for( int n = 1; target.exists() || new File( target.getPath() + ".gz" ).exists(); n++ )
+      {
+        target = new File( directory,
+                           name + "-" + stamp + "." + n + ".log" );
+      }
+    if( !current.renameTo( target ) )
+      {
+        throw new IOException( "Cannot rename " + current + " to " + target );
+      }
+    compress( target );
+  }
+
+
+  private void compress( final File log )
+  {
+    archiver.execute( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        final File gz = new File( log.getPath() + ".gz" );
+        final File tmp = new File( log.getPath() + ".gz.tmp" );
+        try( final InputStream in = new FileInputStream( log );
+             final OutputStream out = new GZIPOutputStream( new FileOutputStream( tmp ),
+                                                            64 * 1024 ) )
+          {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while( (n = in.read( buffer )) > -1 )
+              {
+                out.write( buffer,
+                           0,
+                           n );
+              }
+          }
+        catch( final IOException x )
+          {
+            tmp.delete();
+            reportError( "Failed to compress " + log,
+                         x,
+                         ErrorManager.WRITE_FAILURE );
+            return;
+          }
+        if( tmp.renameTo( gz ) )
+          {
+            log.delete();
+          }
+        prune();
+      }
+    } );
+  }
+
+
+  /**
+   * Deletes the oldest compressed generations until the rest fit into the
+   * retention limit.
+   */
+  private void prune()
+  {
+    final File[] compressed = listGenerations( ".log.gz" );
+    long total = 0;
+    for( final File f : compressed )
+      {
+        total += f.length();
+      }
+    for( int i = 0; (i < compressed.length) && (total > maxArchiveSize); i++ )
+      {
+        final long size = compressed[i].length();
+        if( compressed[i].delete() )
+          {
+            total -= size;
+          }
+      }
+  }
+
+
+  /**
+   * @return Generations (not the current log) with the given suffix, oldest
+   *         first.
+   */
+  private File[] listGenerations( final String suffix )
+  {
+    final String prefix = name + "-";
+    final File[] result = directory.listFiles( new FilenameFilter()
+    {
+      @Override
+      public boolean accept( final File dir,
+                             final String filename )
+      {
+        return filename.startsWith( prefix ) &&
+               filename.endsWith( suffix ) &&
+               Character.isDigit( filename.charAt( Math.min( prefix.length(),
+                                                             filename.length() - 1 ) ) );
+      }
+    } );
+    if( result == null )
+      {
+        return new File[0];
+      }
+    Arrays.sort( result );
+    return result;
+  }
+
+
+  /**
+   * Stands in for the current log while it is closed.
+   */
+  private static final class DiscardingStream
+    extends OutputStream
+  {
+    @Override
+    public void write( final int b )
+    {
+    }
+
+
+    @Override
+    public void write( final byte[] b,
+                       final int off,
+                       final int len )
+    {
+    }
+  }
+
+
+  /**
+   * Counts the bytes written to the current log.
+   */
+  private static final class MeteredStream
+    extends FilterOutputStream
+  {
+    MeteredStream( final OutputStream out )
+    {
+      super( out );
+    }
+
+
+    @Override
+    public void write( final int b )
+      throws IOException
+    {
+      out.write( b );
+      written++;
+    }
+
+
+    @Override
+    public void write( final byte[] b,
+                       final int off,
+                       final int len )
+      throws IOException
+    {
+      out.write( b,
+                 off,
+                 len );
+      written += len;
+    }
+
+    long written;
+  }
+
+  private MeteredStream meter;
+  private boolean isClosed;
+  private volatile long maxArchiveSize;
+  private final File directory;
+  private final String name;
+  private final File current;
+  private final int maxSize;
+  private final FileLock lock;
+  private final ExecutorService archiver = Executors.newSingleThreadExecutor( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+                                   "CompressingLogFileHandler-archiver" );
+      t.setDaemon( true );
+      t.setPriority( Thread.MIN_PRIORITY );
+      return t;
+    }
+  } );
+  //
+  private static final DateTimeFormatter STAMP_FORMAT = DateTimeFormatter.ofPattern( "yyyyMMdd-HHmmss-SSS" )
+                                                                         .withZone( ZoneId.systemDefault() );
+}
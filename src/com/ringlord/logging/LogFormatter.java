@@ -1,7 +1,11 @@
 package com.ringlord.logging;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
@@ -36,21 +40,62 @@ import java.util.logging.LogRecord;
  * cut short, in other words there will be no '...and N more'
  * </p>
  *
+ * <p>
+ * Message parameters ({0}, {1}, etc.) are substituted here, which allows the
+ * callers to defer expensive renderings until a record is actually published.
+ * </p>
+ *
+ * <p>
+ * The formatter holds no global lock: each thread formats into its own
+ * reusable buffer, and remembers the rendered date/time of the last
+ * millisecond it saw. Optionally, repetitive stack traces can be
+ * {@link #LogFormatter(boolean) collapsed}.
+ * </p>
+ *
  * @author K. Udo Schuermann
  **/
 final public class LogFormatter
   extends Formatter
 {
+  /**
+   * Creates a formatter that writes complete exception traces.
+   */
+  public LogFormatter()
+  {
+    this( false );
+  }
+
+
+  /**
+   * @param collapseRepeats
+   *          If true, runs of identical stack frames (as produced by deep
+   *          recursion) are written once, followed by a line such as
+   *          '\t... repeated 97 more times'; the frames a cause shares with
+   *          the exception it caused are summarized as '\t... 12 more'; and
+   *          a cause that has already been written is not written again. If
+   *          false, traces are written in full.
+   */
+  public LogFormatter( final boolean collapseRepeats )
+  {
+    super();
+    this.collapseRepeats = collapseRepeats;
+  }
+
+
   @Override
-  public synchronized String format( final LogRecord record )
+  public String format( final LogRecord record )
   {
-    final String message = record.getMessage();
-    final StringBuilder sb = new StringBuilder();
-    sb.append( dateFormat.format( new Date( record.getMillis() ) ) )
+    final State state = STATE.get();
+    final StringBuilder sb = state.buffer;
+    sb.setLength( 0 );
+
+    final String message = formatMessage( record );
+    sb.append( state.timestamp( record.getMillis() ) )
       .append( " [" )
       .append( record.getLevel().toString() )
       .append( "] (" )
-      .append( record.getThreadID() + ") " )
+      .append( record.getThreadID() )
+      .append( ") " )
       .append( record.getSourceClassName() )
       .append( '#' )
       .append( record.getSourceMethodName() )
@@ -61,46 +106,155 @@ final public class LogFormatter
       .append( EOLN );
 
     Throwable t = record.getThrown();
-    while( t != null )
+    if( t != null )
       {
-        final String msg = t.getMessage();
-        sb.append( t.getClass().getName() ).append( ": " ).append( (msg == null
-            ? ""
-            : msg.trim()) ).append( EOLN );
-        final StackTraceElement[] trace = t.getStackTrace();
-        for( final StackTraceElement e : trace )
+        final Set<Throwable> seen = Collections.newSetFromMap( new IdentityHashMap<Throwable,Boolean>() );
+        StackTraceElement[] enclosing = null;
+        while( t != null )
           {
-            sb.append( "\tat " ).append( e.getClassName() ).append( '#' ).append( e.getMethodName() );
-            final String filename = e.getFileName();
-            final int fileline = e.getLineNumber();
-            final boolean isNative = e.isNativeMethod();
-            if( filename != null )
+            if( !seen.add( t ) )
               {
-                sb.append( " (" ).append( filename );
-                if( fileline >= 0 )
-                  {
-                    sb.append( ":" + fileline );
-                  }
-                sb.append( ')' ).append( EOLN );
+                // A circular chain of causes
+                sb.append( "[CIRCULAR REFERENCE: " ).append( t.getClass().getName() ).append( ']' ).append( EOLN );
+                break;
               }
-            else if( isNative )
+            final String msg = t.getMessage();
+            sb.append( t.getClass().getName() ).append( ": " ).append( (msg == null
+                ? ""
+                : msg.trim()) ).append( EOLN );
+            final StackTraceElement[] trace = t.getStackTrace();
+            appendTrace( sb,
+                         trace,
+                         enclosing );
+            enclosing = trace;
+
+            t = t.getCause();
+            if( collapseRepeats && (t != null) && seen.contains( t ) )
               {
-                sb.append( " (native)" ).append( EOLN );
+                break;
               }
-            else
+            if( t != null )
               {
-                sb.append( EOLN );
+                sb.append( "Caused by " );
               }
           }
-        if( (t = t.getCause()) != null )
+      }
+
+    final String result = sb.toString();
+    if( sb.capacity() > MAX_RETAINED_CAPACITY )
+      {
+        // Don't hold on to the memory of one unusually large record forever
+        state.buffer = new StringBuilder( INITIAL_CAPACITY );
+      }
+    return result;
+  }
+
+
+  private void appendTrace( final StringBuilder sb,
+                            final StackTraceElement[] trace,
+                            final StackTraceElement[] enclosing )
+  {
+    int end = trace.length;
+    int inCommon = 0;
+    if( collapseRepeats && (enclosing != null) )
+      {
+        int m = enclosing.length - 1;
+        while( (end > 0) && (m >= 0) && trace[end - 1].equals( enclosing[m] ) )
           {
-            sb.append( "Caused by " );
+            end--;
+            m--;
           }
+        inCommon = trace.length - end;
       }
 
-    return sb.toString();
+    int i = 0;
+    while( i < end )
+      {
+        final StackTraceElement e = trace[i];
+        appendFrame( sb,
+                     e );
+        i++;
+        if( collapseRepeats )
+          {
+            int repeats = 0;
+            while( (i < end) && trace[i].equals( e ) )
+              {
+                repeats++;
+                i++;
+              }
+            if( repeats > 0 )
+              {
+                sb.append( "\t... repeated " ).append( repeats ).append( " more times" ).append( EOLN );
+              }
+          }
+      }
+    if( inCommon > 0 )
+      {
+        sb.append( "\t... " ).append( inCommon ).append( " more" ).append( EOLN );
+      }
+  }
+
+
+  private static void appendFrame( final StringBuilder sb,
+                                   final StackTraceElement e )
+  {
+    sb.append( "\tat " ).append( e.getClassName() ).append( '#' ).append( e.getMethodName() );
+    final String filename = e.getFileName();
+    final int fileline = e.getLineNumber();
+    final boolean isNative = e.isNativeMethod();
+    if( filename != null )
+      {
+        sb.append( " (" ).append( filename );
+        if( fileline >= 0 )
+          {
+            sb.append( ':' ).append( fileline );
+          }
+        sb.append( ')' ).append( EOLN );
+      }
+    else if( isNative )
+      {
+        sb.append( " (native)" ).append( EOLN );
+      }
+    else
+      {
+        sb.append( EOLN );
+      }
   }
 
-  private final static SimpleDateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS" );
+
+  /**
+   * Per-thread formatting state, so that no thread ever waits on another.
+   */
+  private static final class State
+  {
+    String timestamp( final long millis )
+    {
+      if( millis != lastMillis )
+        {
+          lastMillis = millis;
+          lastTimestamp = DATE_FORMAT.format( Instant.ofEpochMilli( millis ) );
+        }
+      return lastTimestamp;
+    }
+
+    StringBuilder buffer = new StringBuilder( INITIAL_CAPACITY );
+    private long lastMillis = Long.MIN_VALUE;
+    private String lastTimestamp;
+  }
+
+  private final boolean collapseRepeats;
+  //
+  private final static DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern( "yyyy-MM-dd HH:mm:ss.SSS" )
+                                                                        .withZone( ZoneId.systemDefault() );
+  private final static ThreadLocal<State> STATE = new ThreadLocal<State>()
+  {
+    @Override
+    protected State initialValue()
+    {
+      return new State();
+    }
+  };
+  private final static int INITIAL_CAPACITY = 256;
+  private final static int MAX_RETAINED_CAPACITY = 64 * 1024;
   private final static String EOLN = System.getProperty( "line.separator" );
 }
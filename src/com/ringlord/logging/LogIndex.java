@@ -0,0 +1,599 @@
+package com.ringlord.logging;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * <p>
+ * An index over the log files written by {@link LogFormatter}, for quickly
+ * browsing, filtering and searching them. The files are memory-mapped, so
+ * their content is never copied onto the heap; compressed generations (see
+ * {@link CompressingLogFileHandler}) are first inflated into temporary files.
+ * </p>
+ *
+ * <p>
+ * Only the first line of each record is indexed &mdash; continuation lines
+ * such as stack traces belong to the record before them &mdash; and for each
+ * record the index keeps only its offset, time stamp and level, about 13
+ * bytes in all. The log currently being written can be {@link #refresh()
+ * refreshed} to pick up new records without re-reading what was already
+ * indexed.
+ * </p>
+ *
+ * <p>
+ * Records are numbered from 0 (the oldest) in the order of the files, oldest
+ * file first. Indexing happens on the thread calling {@link #open} or
+ * {@link #refresh()}; reading the index is safe from any other thread at the
+ * same time, and sees the records indexed so far.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ */
+public class LogIndex
+{
+  /**
+   * Indexes all logs in a directory whose names begin with the given base
+   * name: files ending in ".log" (the newest of which is followed with
+   * {@link #refresh()}) and ".log.gz".
+   *
+   * @param directory
+   *          The logging directory.
+   * @param name
+   *          The base name of the log files, such as "myapp".
+   * @return The index.
+   * @throws IOException
+   */
+  public static LogIndex open( final File directory,
+                               final String name )
+    throws IOException
+  {
+    final File[] files = directory.listFiles( new FilenameFilter()
+    {
+      @Override
+      public boolean accept( final File dir,
+                             final String filename )
+      {
+        return filename.startsWith( name ) && (filename.endsWith( ".log" ) || filename.endsWith( ".log.gz" ));
+      }
+    } );
+    final String current = name + ".log";
+    final LogIndex index = new LogIndex();
+    if( files != null )
+      {
+        Arrays.sort( files,
+                     new Comparator<File>()
+                     {
+                       @Override
+                       public int compare( final File a,
+                                           final File b )
+                       {
+                         // The current log is the newest, and the only one
+                         // that grows, so it must come last
+                         final boolean isCurrentA = a.getName().equals( current );
+                         final boolean isCurrentB = b.getName().equals( current );
+                         if( isCurrentA != isCurrentB )
+                           {
+                             return isCurrentA
+                                 ? 1
+                                 : -1;
+                           }
+                         return Long.compare( a.lastModified(),
+                                              b.lastModified() );
+                       }
+                     } );
+        for( final File f : files )
+          {
+            final Segment s = index.add( f );
+            if( f.getName().equals( current ) )
+              {
+                index.live = s;
+              }
+          }
+      }
+    return index;
+  }
+
+
+  /**
+   * @return The number of records indexed so far.
+   */
+  public int size()
+  {
+    int n = 0;
+    for( final Segment s : segments )
+      {
+        n += s.count;
+      }
+    return n;
+  }
+
+
+  /**
+   * @return The time (in milliseconds since the epoch) of a record.
+   */
+  public long time( final int record )
+  {
+    final Segment s = segmentOf( record );
+    return s.times[record - s.first];
+  }
+
+
+  /**
+   * @return The level of a record.
+   */
+  public Level level( final int record )
+  {
+    final Segment s = segmentOf( record );
+    return LEVELS[s.levels[record - s.first]];
+  }
+
+
+  /**
+   * @return The first line of a record (without line terminator).
+   */
+  public String line( final int record )
+  {
+    final Segment s = segmentOf( record );
+    final ByteBuffer b = s.buffer;
+    final int start = s.offsets[record - s.first];
+    int end = start;
+    final int limit = s.end( b,
+                             record - s.first );
+    while( (end < limit) && (b.get( end ) != '\n') )
+      {
+        end++;
+      }
+    if( (end > start) && (b.get( end - 1 ) == '\r') )
+      {
+        end--;
+      }
+    return decode( b,
+                   start,
+                   end );
+  }
+
+
+  /**
+   * @return The complete text of a record, including continuation lines.
+   */
+  public String text( final int record )
+  {
+    final Segment s = segmentOf( record );
+    final ByteBuffer b = s.buffer;
+    return decode( b,
+                   s.offsets[record - s.first],
+                   s.end( b,
+                          record - s.first ) );
+  }
+
+
+  /**
+   * Searches the complete text of a record for a substring, directly in the
+   * mapped file.
+   *
+   * @param record
+   *          The record to search.
+   * @param needle
+   *          The UTF-8 bytes to find.
+   * @param ignoreCase
+   *          Whether ASCII letters should match regardless of case; if so, the
+   *          needle must be in lower case.
+   * @return true if the record contains the needle.
+   */
+  public boolean contains( final int record,
+                           final byte[] needle,
+                           final boolean ignoreCase )
+  {
+    final Segment s = segmentOf( record );
+    final ByteBuffer b = s.buffer;
+    final int start = s.offsets[record - s.first];
+    final int last = s.end( b,
+                            record - s.first ) - needle.length;
+    outer: for( int i = start; i <= last; i++ )
+      {
+        for( int j = 0; j < needle.length; j++ )
+          {
+            byte c = b.get( i + j );
+            if( ignoreCase && (c >= 'A') && (c <= 'Z') )
+              {
+                c += 'a' - 'A';
+              }
+            if( c != needle[j] )
+              {
+                continue outer;
+              }
+          }
+        return true;
+      }
+    return false;
+  }
+
+
+  /**
+   * Picks up whatever has been written to the current log since it was last
+   * indexed. If the current log has been rotated out, a new one is started.
+   *
+   * @return The number of records added.
+   * @throws IOException
+   */
+  public int refresh()
+    throws IOException
+  {
+    final Segment s = live;
+    if( s == null )
+      {
+        return 0;
+      }
+    if( !s.file.exists() || !fileKey( s.file ).equals( s.fileKey ) || (s.file.length() < s.indexed) )
+      {
+        // Rotated: what we have mapped is complete; follow the new file
+        if( !s.file.exists() )
+          {
+            return 0;
+          }
+        final int before = size();
+        live = add( s.file );
+        return size() - before;
+      }
+    final int before = s.count;
+    s.map();
+    s.index();
+    return s.count - before;
+  }
+
+
+  /**
+   * Releases the temporary files of inflated generations.
+   */
+  public void close()
+  {
+    for( final Segment s : segments )
+      {
+        if( s.isTemporary )
+          {
+            s.file.delete();
+          }
+      }
+  }
+
+
+  private LogIndex()
+  {
+    super();
+  }
+
+
+  private Segment add( final File f )
+    throws IOException
+  {
+    final Segment s;
+    if( f.getName().endsWith( ".gz" ) )
+      {
+        final File tmp = File.createTempFile( "logindex-",
+                                              ".log" );
+        tmp.deleteOnExit();
+        try( final InputStream in = new GZIPInputStream( new FileInputStream( f ),
+                                                         64 * 1024 );
+             final OutputStream out = new FileOutputStream( tmp ) )
+          {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while( (n = in.read( buffer )) > -1 )
+              {
+                out.write( buffer,
+                           0,
+                           n );
+              }
+          }
+        s = new Segment( tmp,
+                         true );
+      }
+    else
+      {
+        s = new Segment( f,
+                         false );
+      }
+    s.first = size();
+    s.map();
+    s.index();
+    segments.add( s );
+    return s;
+  }
+
+
+  private Segment segmentOf( final int record )
+  {
+    for( final Segment s : segments )
+      {
+        if( record < s.first + s.count )
+          {
+            return s;
+          }
+      }
+    throw new IndexOutOfBoundsException( "No record " + record );
+  }
+
+
+  private static Object fileKey( final File f )
+    throws IOException
+  {
+    final Object key = Files.readAttributes( f.toPath(),
+                                             BasicFileAttributes.class ).fileKey();
+    return (key == null
+        ? f.getPath()
+        : key);
+  }
+
+
+  private static String decode( final ByteBuffer b,
+                                final int start,
+                                final int end )
+  {
+    final ByteBuffer slice = b.duplicate();
+    slice.limit( end ).position( start );
+    return UTF8.decode( slice ).toString();
+  }
+
+
+  /**
+   * One mapped log file and the records in it.
+   */
+  private static final class Segment
+  {
+    Segment( final File file,
+             final boolean isTemporary )
+      throws IOException
+    {
+      this.file = file;
+      this.isTemporary = isTemporary;
+      this.fileKey = fileKey( file );
+    }
+
+
+    /**
+     * (Re-)maps the whole file; cheap, as nothing is read until needed.
+     */
+    void map()
+      throws IOException
+    {
+      try( final FileChannel channel = FileChannel.open( file.toPath(),
+                                                         StandardOpenOption.READ ) )
+        {
+          final long size = Math.min( channel.size(),
+                                      Integer.MAX_VALUE );
+          buffer = channel.map( FileChannel.MapMode.READ_ONLY,
+                                0,
+                                size );
+        }
+    }
+
+
+    /**
+     * Indexes the complete lines from where the last call left off.
+     */
+    void index()
+    {
+      final MappedByteBuffer b = buffer;
+      final int limit = b.limit();
+      int pos = indexed;
+      while( pos < limit )
+        {
+          int eol = pos;
+          while( (eol < limit) && (b.get( eol ) != '\n') )
+            {
+              eol++;
+            }
+          if( eol == limit )
+            {
+              break; // an incomplete line, still being written
+            }
+          if( isRecordHead( b,
+                            pos,
+                            eol ) )
+            {
+              append( pos,
+                      parseTime( b,
+                                 pos ),
+                      parseLevel( b,
+                                  pos + 25,
+                                  eol ) );
+            }
+          pos = eol + 1;
+        }
+      indexed = pos;
+    }
+
+
+    /**
+     * @return The offset just past the end of a record, within the given
+     *         mapping of the file (which a concurrent refresh may have
+     *         replaced with a larger one).
+     */
+    int end( final ByteBuffer b,
+             final int i )
+    {
+      return Math.min( b.limit(),
+                       (i + 1 < count)
+                           ? offsets[i + 1]
+                           : indexed );
+    }
+
+
+    private void append( final int offset,
+                         final long time,
+                         final byte level )
+    {
+      final int n = count;
+      if( n == offsets.length )
+        {
+          final int grown = Math.max( 1024,
+                                      n * 2 );
+          offsets = Arrays.copyOf( offsets,
+                                   grown );
+          times = Arrays.copyOf( times,
+                                 grown );
+          levels = Arrays.copyOf( levels,
+                                  grown );
+        }
+      offsets[n] = offset;
+      times[n] = time;
+      levels[n] = level;
+      count = n + 1; // publishes the new entry to readers
+    }
+
+
+    /**
+     * A record begins with "yyyy-MM-dd HH:mm:ss.SSS [".
+     */
+    private static boolean isRecordHead( final ByteBuffer b,
+                                         final int pos,
+                                         final int eol )
+    {
+      if( eol - pos < 26 )
+        {
+          return false;
+        }
+      for( int i = 0; i < 23; i++ )
+        {
+          final byte c = b.get( pos + i );
+          final byte expected = HEAD_TEMPLATE[i];
+          if( (expected == '9')
+              ? ((c < '0') || (c > '9'))
+              : (c != expected) )
+            {
+              return false;
+            }
+        }
+      return (b.get( pos + 23 ) == ' ') && (b.get( pos + 24 ) == '[');
+    }
+
+
+    private long parseTime( final ByteBuffer b,
+                            final int pos )
+    {
+      // Converting the date and hour is comparatively expensive, and
+      // consecutive records nearly always share them
+      final long hourKey = number( b,
+                                   pos,
+                                   4 ) * 1000000L + number( b,
+                                                            pos + 5,
+                                                            2 ) * 10000L + number( b,
+                                                                                   pos + 8,
+                                                                                   2 ) * 100L + number( b,
+                                                                                                        pos + 11,
+                                                                                                        2 );
+      if( hourKey != lastHourKey )
+        {
+          lastHourKey = hourKey;
+          lastHourMillis = LocalDateTime.of( number( b,
+                                                     pos,
+                                                     4 ),
+                                             number( b,
+                                                     pos + 5,
+                                                     2 ),
+                                             number( b,
+                                                     pos + 8,
+                                                     2 ),
+                                             number( b,
+                                                     pos + 11,
+                                                     2 ),
+                                             0 )
+                                        .atZone( ZONE )
+                                        .toInstant()
+                                        .toEpochMilli();
+        }
+      return lastHourMillis + (number( b,
+                                       pos + 14,
+                                       2 ) * 60000L) + (number( b,
+                                                               pos + 17,
+                                                               2 ) * 1000L) + number( b,
+                                                                                      pos + 20,
+                                                                                      3 );
+    }
+
+
+    private static int number( final ByteBuffer b,
+                               final int pos,
+                               final int digits )
+    {
+      int n = 0;
+      for( int i = 0; i < digits; i++ )
+        {
+          n = (n * 10) + (b.get( pos + i ) - '0');
+        }
+      return n;
+    }
+
+
+    private static byte parseLevel( final ByteBuffer b,
+                                    final int pos,
+                                    final int eol )
+    {
+      int end = pos;
+      while( (end < eol) && (b.get( end ) != ']') && (end - pos < 16) )
+        {
+          end++;
+        }
+      final String name = decode( b,
+                                  pos,
+                                  end );
+      for( byte i = 0; i < LEVELS.length; i++ )
+        {
+          if( LEVELS[i].getName().equals( name ) )
+            {
+              return i;
+            }
+        }
+      return 0;
+    }
+
+    final File file;
+    final boolean isTemporary;
+    final Object fileKey;
+    int first;
+    volatile MappedByteBuffer buffer;
+    volatile int count;
+    volatile int indexed;
+    int[] offsets = new int[0];
+    long[] times = new long[0];
+    byte[] levels = new byte[0];
+    private long lastHourKey = -1;
+    private long lastHourMillis;
+  }
+
+  private volatile Segment live;
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  //
+  private static final Level[] LEVELS = {Level.ALL,
+                                         Level.FINEST,
+                                         Level.FINER,
+                                         Level.FINE,
+                                         Level.CONFIG,
+                                         Level.INFO,
+                                         Level.WARNING,
+                                         Level.SEVERE};
+  private static final byte[] HEAD_TEMPLATE = "9999-99-99 99:99:99.999".getBytes();
+  private static final ZoneId ZONE = ZoneId.systemDefault();
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+}
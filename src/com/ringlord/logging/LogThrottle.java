@@ -0,0 +1,470 @@
+package com.ringlord.logging;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Filter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import com.ringlord.Config;
+
+
+/**
+ * <p>
+ * A {@link Filter} that keeps repetitive logging from flooding a
+ * {@link Handler}, in two ways:
+ * </p>
+ *
+ * <ol>
+ * <li>A message that is identical to one logged recently (same logger,
+ * level, message, parameters and exception) is suppressed; once the repeat window has
+ * passed, a single line reports how many times it was repeated.</li>
+ * <li>Each logger gets a token bucket that limits the rate of its records
+ * below WARNING; records over the limit are counted and the count is
+ * reported, too. WARNING and SEVERE records are never rate-limited.</li>
+ * </ol>
+ *
+ * <p>
+ * The limits can be {@link #configure(Config) taken from a Config}, using the
+ * following keys (and following later changes to them):
+ * </p>
+ *
+ * <ul>
+ * <li>log-repeat-window &mdash; milliseconds during which identical messages
+ * are collapsed (0 to disable)</li>
+ * <li>log-rate, log-burst &mdash; the default sustained records per second,
+ * and the burst size, for every logger (a rate of 0 disables the limit)</li>
+ * <li>log-rate.<i>logger</i>, log-burst.<i>logger</i> &mdash; the same, for
+ * the named logger (such as "global")</li>
+ * </ul>
+ *
+ * @author K. Udo Schuermann
+ */
+@SuppressWarnings("deprecation")
+public class LogThrottle
+  implements
+    Filter,
+    Observer
+{
+  /**
+   * @param handler
+   *          The Handler that this Filter is installed on; repeat counts and
+   *          rate limit reports are published to it.
+   */
+  public LogThrottle( final Handler handler )
+  {
+    super();
+    this.handler = handler;
+    sweeper.scheduleWithFixedDelay( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        sweep( System.currentTimeMillis() );
+      }
+    },
+                                    1,
+                                    1,
+                                    TimeUnit.SECONDS );
+  }
+
+
+  /**
+   * Applies the limits defined in the Config, and observes it for changes.
+   */
+  public void configure( final Config config )
+  {
+    this.config = config;
+    config.addObserver( this );
+    update( config,
+            null );
+  }
+
+
+  @Override
+  public void update( final Observable o,
+                      final Object arg )
+  {
+    windowMillis = config.get( "log-repeat-window",
+                               DEFAULT_WINDOW_MILLIS );
+    defaultRate = config.get( "log-rate",
+                              DEFAULT_RATE );
+    defaultBurst = config.get( "log-burst",
+                               DEFAULT_BURST );
+    // Only the buckets whose limits have changed are recreated (on demand),
+    // so that a change to any other setting leaves the rates as they are
+    for( final Bucket bucket : buckets.values() )
+      {
+        final String name = bucket.loggerName;
+        if( !bucket.hasLimits( rateFor( name ),
+                               burstFor( name ) ) &&
+            buckets.remove( name,
+                            bucket ) )
+          {
+            bucket.report( handler );
+          }
+      }
+  }
+
+
+  @Override
+  public boolean isLoggable( final LogRecord record )
+  {
+    if( record instanceof Report )
+      {
+        return true;
+      }
+
+    final long window = windowMillis;
+    if( window > 0 )
+      {
+        final Key key = new Key( record );
+        final Repeat repeat = repeats.get( key );
+        if( (repeat != null) && (record.getMillis() - repeat.since < window) )
+          {
+            repeat.count.incrementAndGet();
+            return false;
+          }
+        if( repeats.size() < MAX_TRACKED )
+          {
+            final Repeat previous = repeats.put( key,
+                                                 new Repeat( record ) );
+            if( previous != null )
+              {
+                previous.report( handler,
+                                 window );
+              }
+          }
+      }
+
+    if( record.getLevel().intValue() >= Level.WARNING.intValue() )
+      {
+        return true;
+      }
+    return bucketFor( record.getLoggerName() ).take( record.getMillis() );
+  }
+
+
+  private Bucket bucketFor( final String loggerName )
+  {
+    final String name = (loggerName == null
+        ? ""
+        : loggerName);
+    Bucket bucket = buckets.get( name );
+    if( bucket == null )
+      {
+        bucket = new Bucket( name,
+                             rateFor( name ),
+                             burstFor( name ) );
+        final Bucket existing = buckets.putIfAbsent( name,
+                                                     bucket );
+        if( existing != null )
+          {
+            bucket = existing;
+          }
+      }
+    return bucket;
+  }
+
+
+  private double rateFor( final String name )
+  {
+    final Config config = this.config;
+    return (config == null
+        ? defaultRate
+        : config.get( "log-rate." + name,
+                      defaultRate ));
+  }
+
+
+  private int burstFor( final String name )
+  {
+    final Config config = this.config;
+    return (config == null
+        ? defaultBurst
+        : config.get( "log-burst." + name,
+                      defaultBurst ));
+  }
+
+
+  /**
+   * Reports (and forgets) repeats whose window has passed, and any records
+   * dropped by the rate limits.
+   */
+  private void sweep( final long now )
+  {
+    final long window = windowMillis;
+    for( final Map.Entry<Key,Repeat> e : repeats.entrySet() )
+      {
+        final Repeat repeat = e.getValue();
+        if( now - repeat.since >= window )
+          {
+            if( repeats.remove( e.getKey(),
+                                repeat ) )
+              {
+                repeat.report( handler,
+                               window );
+              }
+          }
+      }
+    for( final Bucket bucket : buckets.values() )
+      {
+        bucket.report( handler );
+      }
+  }
+
+
+  /**
+   * Identifies identical messages.
+   */
+  private static final class Key
+  {
+    Key( final LogRecord record )
+    {
+      this.loggerName = record.getLoggerName();
+      this.level = record.getLevel();
+      this.message = record.getMessage();
+      final Object[] parameters = record.getParameters();
+      this.parameters = (parameters == null
+          ? null
+          : Arrays.asList( parameters ));
+      // Records with different exceptions (or none) are not the same message
+      final Throwable thrown = record.getThrown();
+      this.thrown = (thrown == null
+          ? null
+          : Arrays.asList( thrown.getClass().getName(),
+                           thrown.getMessage() ));
+      this.hash = Arrays.hashCode( new Object[]{loggerName,level,message,this.parameters,this.thrown} );
+    }
+
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+
+    @Override
+    public boolean equals( final Object o )
+    {
+      if( !(o instanceof Key) )
+        {
+          return false;
+        }
+      final Key other = (Key)o;
+      return (hash == other.hash) &&
+             (level == other.level) &&
+             equal( loggerName,
+                    other.loggerName ) &&
+             equal( message,
+                    other.message ) &&
+             equal( parameters,
+                    other.parameters ) &&
+             equal( thrown,
+                    other.thrown );
+    }
+
+
+    private static boolean equal( final Object a,
+                                  final Object b )
+    {
+      return (a == null)
+          ? (b == null)
+          : a.equals( b );
+    }
+
+    private final String loggerName;
+    private final Level level;
+    private final String message;
+    private final List<Object> parameters;
+    private final List<String> thrown;
+    private final int hash;
+  }
+
+
+  /**
+   * A message seen recently, and how often it was repeated since.
+   */
+  private static final class Repeat
+  {
+    Repeat( final LogRecord first )
+    {
+      this.first = first;
+      this.since = first.getMillis();
+    }
+
+
+    void report( final Handler handler,
+                 final long window )
+    {
+      final int n = count.getAndSet( 0 );
+      if( n > 0 )
+        {
+          final Report report = new Report( first.getLevel(),
+                                            "(previous message repeated " +
+                                                n +
+                                                " more time" +
+                                                (n == 1
+                                                    ? ""
+                                                    : "s") +
+                                                " within " +
+                                                window +
+                                                "ms) " +
+                                                first.getMessage(),
+                                            first );
+          report.setParameters( first.getParameters() );
+          handler.publish( report );
+        }
+    }
+
+    final LogRecord first;
+    final long since;
+    final AtomicInteger count = new AtomicInteger();
+  }
+
+
+  /**
+   * A token bucket for one logger.
+   */
+  private static final class Bucket
+  {
+    Bucket( final String loggerName,
+            final double rate,
+            final int burst )
+    {
+      this.loggerName = loggerName;
+      this.rate = rate;
+      this.burst = Math.max( 1,
+                             burst );
+      this.tokens = this.burst;
+    }
+
+
+    boolean hasLimits( final double rate,
+                       final int burst )
+    {
+      return (this.rate == rate) && (this.burst == Math.max( 1,
+                                                             burst ));
+    }
+
+
+    synchronized boolean take( final long now )
+    {
+      if( rate <= 0 )
+        {
+          return true;
+        }
+      if( now > lastRefill )
+        {
+          tokens = Math.min( burst,
+                             tokens + (((now - lastRefill) * rate) / 1000.0) );
+          lastRefill = now;
+        }
+      if( tokens >= 1 )
+        {
+          tokens -= 1;
+          return true;
+        }
+      rejected++;
+      return false;
+    }
+
+
+    void report( final Handler handler )
+    {
+      final int n;
+      synchronized( this )
+        {
+          n = rejected;
+          rejected = 0;
+        }
+      if( n > 0 )
+        {
+          final Report report = new Report( Level.WARNING,
+                                            "Rate limit (" +
+                                                rate +
+                                                "/s, burst " +
+                                                burst +
+                                                ") suppressed " +
+                                                n +
+                                                " record(s) of logger '" +
+                                                loggerName +
+                                                "'",
+                                            null );
+          report.setLoggerName( loggerName );
+          handler.publish( report );
+        }
+    }
+
+    private final String loggerName;
+    private final double rate;
+    private final int burst;
+    private double tokens;
+    private long lastRefill = System.currentTimeMillis();
+    private int rejected;
+  }
+
+
+  /**
+   * A record produced by this Filter itself, which is always let through.
+   */
+  private static final class Report
+    extends LogRecord
+  {
+    Report( final Level level,
+            final String message,
+            final LogRecord about )
+    {
+      super( level,
+             message );
+      if( about == null )
+        {
+          setSourceClassName( LogThrottle.class.getName() );
+          setSourceMethodName( "isLoggable" );
+        }
+      else
+        {
+          setLoggerName( about.getLoggerName() );
+          setSourceClassName( about.getSourceClassName() );
+          setSourceMethodName( about.getSourceMethodName() );
+        }
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private volatile Config config;
+  private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+  private volatile double defaultRate = DEFAULT_RATE;
+  private volatile int defaultBurst = DEFAULT_BURST;
+  private final Handler handler;
+  private final Map<Key,Repeat> repeats = new ConcurrentHashMap<>();
+  private final Map<String,Bucket> buckets = new ConcurrentHashMap<>();
+  //
+  private static final long DEFAULT_WINDOW_MILLIS = 5000;
+  private static final double DEFAULT_RATE = 50;
+  private static final int DEFAULT_BURST = 200;
+  private static final int MAX_TRACKED = 10000;
+  private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+                                   "LogThrottle-sweeper" );
+      t.setDaemon( true );
+      return t;
+    }
+  } );
+}
@@ -0,0 +1,117 @@
+package com.ringlord.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * <p>
+ * A bounded, lock-free queue for many producers and a single consumer. Each
+ * slot carries a sequence number that tells producers and the consumer whose
+ * turn it is to use the slot, so that neither side ever needs a lock; a full
+ * buffer is reported to the producer rather than waited upon.
+ * </p>
+ *
+ * @author K. Udo Schuermann
+ **/
+final class RingBuffer<E>
+{
+  /**
+   * @param capacity
+   *          The number of elements the buffer can hold; rounded up to the
+   *          next power of two.
+   */
+  RingBuffer( final int capacity )
+  {
+    int size = 1;
+    while( size < capacity )
+      {
+        size <<= 1;
+      }
+    this.mask = size - 1;
+    this.elements = new AtomicReferenceArray<>( size );
+    this.sequences = new AtomicLongArray( size );
+    for( int i = 0; i < size; i++ )
+      {
+        sequences.set( i,
+                       i );
+      }
+  }
+
+
+  /**
+   * Add an element, unless the buffer is full. Safe to call from any number of
+   * threads concurrently.
+   *
+   * @return false if the buffer was full and the element was not added.
+   */
+  boolean offer( final E element )
+  {
+    while( true )
+      {
+        final long pos = tail.get();
+        final int slot = (int)pos & mask;
+        final long seq = sequences.get( slot );
+        if( seq == pos )
+          {
+            if( tail.compareAndSet( pos,
+                                    pos + 1 ) )
+              {
+                elements.lazySet( slot,
+                                  element );
+                sequences.set( slot,
+                               pos + 1 );
+                return true;
+              }
+          }
+        else if( seq < pos )
+          {
+            return false;
+          }
+        // else another producer claimed this slot first; try again
+      }
+  }
+
+
+  /**
+   * Remove the oldest element. Must only be called by the single consumer.
+   *
+   * @return The oldest element, or null if the buffer is empty (or the next
+   *         element is still being written by its producer).
+   */
+  E poll()
+  {
+    final long pos = head;
+    final int slot = (int)pos & mask;
+    if( sequences.get( slot ) != pos + 1 )
+      {
+        return null;
+      }
+    final E element = elements.get( slot );
+    elements.lazySet( slot,
+                      null );
+    head = pos + 1;
+    sequences.set( slot,
+                   pos + mask + 1 );
+    return element;
+  }
+
+
+  boolean isEmpty()
+  {
+    return head == tail.get();
+  }
+
+
+  int capacity()
+  {
+    return mask + 1;
+  }
+
+  private volatile long head;
+  private final AtomicLong tail = new AtomicLong();
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+}
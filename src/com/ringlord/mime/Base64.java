@@ -1,5 +1,9 @@
 package com.ringlord.mime;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 /**
  * Provides static methods for converting binary (byte[]) data into a BASE-64
  * encoded byte[] array, and vice versa. Output generated will contain no
@@ -16,6 +20,11 @@ package com.ringlord.mime;
  * 
  * This code is based on a less sophisticated version implemented by me in TURBO
  * Pascal around 1987 or 1988 (the early dawn of Ringlord Technologies :-)
+ * <p>
+ * 
+ * Payloads too large to hold in memory are best handled with the
+ * {@link ByteBuffer} variants, or with the {@link Base64OutputStream} and
+ * {@link Base64InputStream} wrappers built on them.
  * 
  * @author Udo K. Schuermann (walrus@ringlord.com)
  * 
@@ -96,6 +105,166 @@ public final class Base64
   }
 
 
+  /**
+   * Transform original data into its BASE-64 representation as characters,
+   * ready to be handed to text components without a detour through an
+   * intermediate byte[] and the platform's default character set.
+   * 
+   * @param original
+   *          The original bytes to be transformed.
+   * 
+   * @return The BASE-64 equivalent of the input. No newlines or other
+   *         formatting data is added.
+   **/
+  public static char[] encodeToChars( byte[] original )
+  {
+    return encodeToChars( original,
+			  0,
+			  original.length );
+  }
+
+
+  /**
+   * @see #encodeToChars(byte[])
+   **/
+  public static char[] encodeToChars( byte[] original,
+				      int off,
+				      int len )
+  {
+    final char[] result = new char[encodedLength( len )];
+    int oPos = 0;
+    final int end = off + len;
+    for( int iPos = off; iPos < end; iPos += 3 )
+      {
+	oPos = encodeGroup( original,
+			    iPos,
+			    end,
+			    result,
+			    oPos );
+      }
+    return result;
+  }
+
+
+  /**
+   * Append the BASE-64 representation of some original data to a
+   * StringBuilder, growing it at most once. This lets several encoded items
+   * be assembled in one (reusable) builder without any temporary copies.
+   * 
+   * @param sb
+   *          The StringBuilder to receive the encoded data.
+   * @param original
+   *          The original bytes to be transformed.
+   * @param off
+   *          Where in 'original' to start.
+   * @param len
+   *          How many bytes of 'original' to encode.
+   * 
+   * @return The StringBuilder, for convenience.
+   **/
+  public static StringBuilder appendTo( StringBuilder sb,
+					byte[] original,
+					int off,
+					int len )
+  {
+    sb.ensureCapacity( sb.length() + encodedLength( len ) );
+    final char[] group = new char[4];
+    final int end = off + len;
+    for( int iPos = off; iPos < end; iPos += 3 )
+      {
+	encodeGroup( original,
+		     iPos,
+		     end,
+		     group,
+		     0 );
+	sb.append( group );
+      }
+    return sb;
+  }
+
+
+  /**
+   * Append the BASE-64 representation of some original data to any
+   * {@link Appendable}, such as a Writer.
+   * 
+   * @see #appendTo(StringBuilder,byte[],int,int)
+   **/
+  public static <A extends Appendable> A appendTo( A out,
+						   byte[] original,
+						   int off,
+						   int len )
+    throws IOException
+  {
+    final char[] chunk = new char[1024];
+    final int end = off + len;
+    int oPos = 0;
+    for( int iPos = off; iPos < end; iPos += 3 )
+      {
+	oPos = encodeGroup( original,
+			    iPos,
+			    end,
+			    chunk,
+			    oPos );
+	if( oPos == chunk.length )
+	  {
+	    out.append( CharBuffer.wrap( chunk ) );
+	    oPos = 0;
+	  }
+      }
+    if( oPos > 0 )
+      {
+	out.append( CharBuffer.wrap( chunk,
+				     0,
+				     oPos ) );
+      }
+    return out;
+  }
+
+
+  /**
+   * @return The number of BASE-64 symbols (including padding) that are needed
+   *         to represent the given number of original bytes.
+   **/
+  public static int encodedLength( int originalLength )
+  {
+    return ((originalLength + 2) / 3) * 4;
+  }
+
+
+  /**
+   * Encode one group of (up to) three bytes into four symbols.
+   * 
+   * @return The position in 'result' just after the symbols written.
+   **/
+  private static int encodeGroup( byte[] original,
+				  int iPos,
+				  int end,
+				  char[] result,
+				  int oPos )
+  {
+    final boolean have3 = (iPos + 1) < end;
+    final boolean have4 = (iPos + 2) < end;
+    int data = (original[iPos] & 0xff) << 16;
+    if( have3 )
+      {
+	data |= (original[iPos + 1] & 0xff) << 8;
+      }
+    if( have4 )
+      {
+	data |= original[iPos + 2] & 0xff;
+      }
+    result[oPos] = sixtyFourChars[(data >> 18) & 0x3f];
+    result[oPos + 1] = sixtyFourChars[(data >> 12) & 0x3f];
+    result[oPos + 2] = sixtyFourChars[(have3
+	? ((data >> 6) & 0x3f)
+	: 64)];
+    result[oPos + 3] = sixtyFourChars[(have4
+	? (data & 0x3f)
+	: 64)];
+    return oPos + 4;
+  }
+
+
   /**
    * Decode a BASE-64 encoded block of bytes to reproduce the original data. As
    * BASE64 data may be reformatted with new lines (but hopefully no other junk)
@@ -161,6 +330,177 @@ public final class Base64
   }
 
 
+  /**
+   * Encode as much of the given source buffer as fits into the destination
+   * buffer. Only complete groups of three source bytes are consumed unless
+   * 'endOfInput' is set, in which case a trailing group of one or two bytes is
+   * encoded with the usual '=' padding. The positions of both buffers are
+   * advanced to reflect the progress made; bytes that could not be consumed
+   * remain in the source buffer, so that a caller can {@link ByteBuffer#compact()
+   * compact} it, add more input, and call again.
+   *
+   * @param src
+   *          The original (binary) data.
+   * @param dst
+   *          Receives the BASE-64 encoded data. No newlines or other formatting
+   *          data is added.
+   * @param endOfInput
+   *          Whether the source buffer holds the last of the input.
+   *
+   * @return The number of bytes written to the destination buffer.
+   **/
+  public static int encode( ByteBuffer src,
+			    ByteBuffer dst,
+			    boolean endOfInput )
+  {
+    int produced = 0;
+    while( (src.remaining() >= 3) && (dst.remaining() >= 4) )
+      {
+	int data = ((src.get() & 0xff) << 16) | ((src.get() & 0xff) << 8) | (src.get() & 0xff);
+	dst.put( sixtyFour[(data >> 18) & 0x3f] );
+	dst.put( sixtyFour[(data >> 12) & 0x3f] );
+	dst.put( sixtyFour[(data >> 6) & 0x3f] );
+	dst.put( sixtyFour[data & 0x3f] );
+	produced += 4;
+      }
+    if( endOfInput && (src.remaining() > 0) && (src.remaining() < 3) && (dst.remaining() >= 4) )
+      {
+	final boolean have3 = (src.remaining() == 2);
+	int data = (src.get() & 0xff) << 16;
+	if( have3 )
+	  {
+	    data |= (src.get() & 0xff) << 8;
+	  }
+	dst.put( sixtyFour[(data >> 18) & 0x3f] );
+	dst.put( sixtyFour[(data >> 12) & 0x3f] );
+	dst.put( sixtyFour[(have3
+	    ? ((data >> 6) & 0x3f)
+	    : 64)] );
+	dst.put( sixtyFour[64] );
+	produced += 4;
+      }
+    return produced;
+  }
+
+
+  /**
+   * Encode all of the source buffer, treating it as the complete input.
+   *
+   * @see #encode(ByteBuffer,ByteBuffer,boolean)
+   **/
+  public static int encode( ByteBuffer src,
+			    ByteBuffer dst )
+  {
+    return encode( src,
+		   dst,
+		   true );
+  }
+
+
+  /**
+   * Decode as much of the given BASE-64 source buffer as fits into the
+   * destination buffer. As with {@link #decode(byte[])} any symbols that are not
+   * part of the BASE-64 vocabulary (whitespace, newlines, padding) are quietly
+   * discarded. Only complete groups of four symbols are consumed unless
+   * 'endOfInput' is set, in which case a trailing group of two or three symbols
+   * is decoded as well. The positions of both buffers are advanced to reflect
+   * the progress made.
+   *
+   * @param src
+   *          The BASE-64 input.
+   * @param dst
+   *          Receives the original data.
+   * @param endOfInput
+   *          Whether the source buffer holds the last of the input.
+   *
+   * @return The number of bytes written to the destination buffer.
+   **/
+  public static int decode( ByteBuffer src,
+			    ByteBuffer dst,
+			    boolean endOfInput )
+  {
+    int produced = 0;
+    while( true )
+      {
+	int start = -1, bucket = 0, count = 0;
+	while( (count < 4) && src.hasRemaining() )
+	  {
+	    final int data = binaryValue[src.get() & 0xff];
+	    if( data >= 0 )
+	      {
+		if( count == 0 )
+		  {
+		    start = src.position() - 1;
+		  }
+		bucket = (bucket << 6) | data;
+		count++;
+	      }
+	  }
+
+	if( count == 4 )
+	  {
+	    if( dst.remaining() < 3 )
+	      {
+		src.position( start );
+		break;
+	      }
+	    dst.put( (byte)(bucket >> 16) );
+	    dst.put( (byte)(bucket >> 8) );
+	    dst.put( (byte)bucket );
+	    produced += 3;
+	    continue;
+	  }
+
+	// Fewer than four symbols left: either wait for more, or finish up
+	if( count > 0 )
+	  {
+	    final int needed = (count * 6) / 8;
+	    if( !endOfInput || (dst.remaining() < needed) )
+	      {
+		src.position( start );
+		break;
+	      }
+	    bucket <<= (6 * (4 - count));
+	    if( needed > 0 )
+	      {
+		dst.put( (byte)(bucket >> 16) );
+	      }
+	    if( needed > 1 )
+	      {
+		dst.put( (byte)(bucket >> 8) );
+	      }
+	    produced += needed;
+	  }
+	break;
+      }
+    return produced;
+  }
+
+
+  /**
+   * Decode all of the source buffer, treating it as the complete input.
+   *
+   * @see #decode(ByteBuffer,ByteBuffer,boolean)
+   **/
+  public static int decode( ByteBuffer src,
+			    ByteBuffer dst )
+  {
+    return decode( src,
+		   dst,
+		   true );
+  }
+
+
+  /**
+   * @return true if the byte is one of the 64 BASE-64 symbols (the padding
+   *         symbol is not).
+   **/
+  static boolean isSymbol( byte b )
+  {
+    return binaryValue[b & 0xff] >= 0;
+  }
+
+
   private Base64()
   {
   }
@@ -169,6 +509,8 @@ public final class Base64
    * BASE-64 characters for values 0..63 plus the padding symbol '='
    **/
   private static byte[] sixtyFour = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=".getBytes();
+  private static final char[] sixtyFourChars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/="
+      .toCharArray();
 
   /**
    * Fast lookup table lookup table for converting BASE64 characters to their
@@ -0,0 +1,186 @@
+package com.ringlord.mime;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An {@link InputStream} that reads BASE-64 encoded data from an underlying
+ * stream and delivers the decoded (original) bytes. Memory use is constant
+ * regardless of how much data passes through.
+ * <p>
+ * 
+ * As with {@link Base64#decode(byte[])} any symbols in the input that are not
+ * part of the BASE-64 vocabulary, such as the line breaks of MIME formatted
+ * data, are quietly discarded.
+ * 
+ * @author K. Udo Schuermann
+ **/
+public class Base64InputStream
+  extends FilterInputStream
+{
+  public Base64InputStream( InputStream in )
+  {
+    super( in );
+    encoded.flip(); // start out empty
+    decoded.flip();
+  }
+
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    if( !fill() )
+      {
+	return -1;
+      }
+    return decoded.get() & 0xff;
+  }
+
+
+  @Override
+  public int read( byte[] b,
+		   int off,
+		   int len )
+    throws IOException
+  {
+    if( len == 0 )
+      {
+	return 0;
+      }
+    if( !fill() )
+      {
+	return -1;
+      }
+    final int n = Math.min( len,
+			    decoded.remaining() );
+    decoded.get( b,
+		 off,
+		 n );
+    return n;
+  }
+
+
+  @Override
+  public long skip( long n )
+    throws IOException
+  {
+    long skipped = 0;
+    while( (skipped < n) && fill() )
+      {
+	final int step = (int)Math.min( n - skipped,
+					decoded.remaining() );
+	decoded.position( decoded.position() + step );
+	skipped += step;
+      }
+    return skipped;
+  }
+
+
+  @Override
+  public int available()
+    throws IOException
+  {
+    return decoded.remaining();
+  }
+
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+
+  @Override
+  public synchronized void mark( int readlimit )
+  {
+  }
+
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    throw new IOException( "mark/reset not supported" );
+  }
+
+
+  /**
+   * Ensure that decoded data is available.
+   * 
+   * @return false if the end of the input has been reached and all decoded
+   *         data was delivered.
+   **/
+  private boolean fill()
+    throws IOException
+  {
+    while( !decoded.hasRemaining() )
+      {
+	if( endOfInput && !encoded.hasRemaining() )
+	  {
+	    return false;
+	  }
+	if( !endOfInput )
+	  {
+	    encoded.compact();
+	    final int n = in.read( encoded.array(),
+				   encoded.position(),
+				   encoded.remaining() );
+	    if( n < 0 )
+	      {
+		endOfInput = true;
+	      }
+	    else
+	      {
+		encoded.position( encoded.position() + n );
+	      }
+	    encoded.flip();
+	  }
+	decoded.clear();
+	Base64.decode( encoded,
+		       decoded,
+		       endOfInput );
+	decoded.flip();
+	if( endOfInput && !decoded.hasRemaining() )
+	  {
+	    // Whatever is left could not be decoded (a lone symbol, or junk)
+	    encoded.position( encoded.limit() );
+	  }
+	else if( !decoded.hasRemaining() && (encoded.position() == 0) &&
+		 (encoded.limit() == encoded.capacity()) )
+	  {
+	    // A partial group followed by a buffer full of junk leaves no room
+	    // to read the rest of the group
+	    discardJunk();
+	  }
+      }
+    return true;
+  }
+
+
+  /**
+   * Removes all but the BASE-64 symbols from the encoded data.
+   **/
+  private void discardJunk()
+  {
+    final byte[] array = encoded.array();
+    int kept = 0;
+    for( int i = encoded.position(); i < encoded.limit(); i++ )
+      {
+	if( Base64.isSymbol( array[i] ) )
+	  {
+	    array[kept++] = array[i];
+	  }
+      }
+    encoded.position( 0 );
+    encoded.limit( kept );
+  }
+
+  private boolean endOfInput;
+  private final ByteBuffer encoded = ByteBuffer.allocate( 8192 );
+  private final ByteBuffer decoded = ByteBuffer.allocate( 6144 );
+}
@@ -0,0 +1,234 @@
+package com.ringlord.mime;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * An {@link OutputStream} that BASE-64 encodes everything written to it and
+ * passes the encoded form on to an underlying stream. Memory use is constant
+ * regardless of how much data passes through, so that arbitrarily large
+ * payloads can be encoded on their way to disk or network.
+ * <p>
+ * 
+ * Output may optionally be broken into lines of a fixed length, as is common
+ * for MIME attachments; by default no extraneous whitespace is generated. The
+ * final (possibly padded) group of symbols is written only when the stream is
+ * {@link #close() closed}, or when {@link #finish()} is called explicitly.
+ * 
+ * @author K. Udo Schuermann
+ **/
+public class Base64OutputStream
+  extends FilterOutputStream
+{
+  /**
+   * The line length mandated for MIME (RFC 2045) content.
+   **/
+  public static final int MIME_LINE_LENGTH = 76;
+
+
+  /**
+   * Create an encoding stream that produces one long line of output.
+   * 
+   * @param out
+   *          The stream that receives the BASE-64 encoded data.
+   **/
+  public Base64OutputStream( OutputStream out )
+  {
+    this( out,
+	  0 );
+  }
+
+
+  /**
+   * Create an encoding stream that breaks its output into lines.
+   * 
+   * @param out
+   *          The stream that receives the BASE-64 encoded data.
+   * @param lineLength
+   *          The maximum number of symbols per line (rounded down to a multiple
+   *          of 4), or 0 to produce no line breaks at all. Lines are terminated
+   *          with CR LF as required by MIME.
+   **/
+  public Base64OutputStream( OutputStream out,
+			     int lineLength )
+  {
+    super( out );
+    this.lineLength = (lineLength / 4) * 4;
+  }
+
+
+  @Override
+  public void write( int b )
+    throws IOException
+  {
+    write( new byte[]{(byte)b},
+	   0,
+	   1 );
+  }
+
+
+  @Override
+  public void write( byte[] b,
+		     int off,
+		     int len )
+    throws IOException
+  {
+    if( finished )
+      {
+	throw new IOException( "Base64OutputStream already finished" );
+      }
+    final ByteBuffer src = ByteBuffer.wrap( b,
+					    off,
+					    len );
+    while( src.hasRemaining() )
+      {
+	// Top up any partial group carried over from the previous write
+	if( pending.position() > 0 )
+	  {
+	    while( pending.hasRemaining() && src.hasRemaining() )
+	      {
+		pending.put( src.get() );
+	      }
+	    if( pending.hasRemaining() )
+	      {
+		break;
+	      }
+	    pending.flip();
+	    encode( pending,
+		    false );
+	    pending.clear();
+	    continue;
+	  }
+
+	encode( src,
+		false );
+	// Less than one group is left; keep it for next time
+	while( src.hasRemaining() )
+	  {
+	    pending.put( src.get() );
+	  }
+      }
+  }
+
+
+  /**
+   * Write out the final group of symbols (with '=' padding, if required) and
+   * the final line break, without closing the underlying stream. Nothing more
+   * may be written afterwards.
+   * 
+   * @throws IOException
+   **/
+  public void finish()
+    throws IOException
+  {
+    if( !finished )
+      {
+	finished = true;
+	pending.flip();
+	encode( pending,
+		true );
+	pending.clear();
+	drain();
+	if( (lineLength > 0) && (column > 0) )
+	  {
+	    out.write( CRLF );
+	    column = 0;
+	  }
+      }
+  }
+
+
+  /**
+   * Flushes all completely encoded groups to the underlying stream. Up to two
+   * bytes of input may be held back until more data arrives, or the stream is
+   * finished.
+   **/
+  @Override
+  public void flush()
+    throws IOException
+  {
+    drain();
+    out.flush();
+  }
+
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    try
+      {
+	finish();
+      }
+    finally
+      {
+	super.close();
+      }
+  }
+
+
+  private void encode( ByteBuffer src,
+		       boolean endOfInput )
+    throws IOException
+  {
+    while( true )
+      {
+	Base64.encode( src,
+		       encoded,
+		       endOfInput );
+	if( !src.hasRemaining() || (src.remaining() < 3 && !endOfInput) )
+	  {
+	    break;
+	  }
+	drain();
+      }
+    if( encoded.remaining() < 4 )
+      {
+	drain();
+      }
+  }
+
+
+  private void drain()
+    throws IOException
+  {
+    encoded.flip();
+    if( lineLength == 0 )
+      {
+	out.write( encoded.array(),
+		   0,
+		   encoded.limit() );
+      }
+    else
+      {
+	int pos = 0;
+	while( pos < encoded.limit() )
+	  {
+	    final int n = Math.min( lineLength - column,
+				    encoded.limit() - pos );
+	    out.write( encoded.array(),
+		       pos,
+		       n );
+	    pos += n;
+	    column += n;
+	    if( column == lineLength )
+	      {
+		out.write( CRLF );
+		column = 0;
+	      }
+	  }
+      }
+    encoded.clear();
+  }
+
+  private boolean finished;
+  private int column;
+  private final int lineLength;
+  private final ByteBuffer pending = ByteBuffer.allocate( 3 );
+  private final ByteBuffer encoded = ByteBuffer.allocate( 4096 );
+  //
+  private static final byte[] CRLF = {'\r','\n'};
+}
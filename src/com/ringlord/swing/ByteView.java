@@ -0,0 +1,727 @@
+package com.ringlord.swing;
+
+import java.awt.BorderLayout;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.AbstractAction;
+import javax.swing.BorderFactory;
+import javax.swing.ButtonGroup;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JMenuItem;
+import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.KeyStroke;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.UIManager;
+
+import com.ringlord.Transformations;
+import com.ringlord.mime.Base64;
+
+
+/**
+ * <p>
+ * A read-only view of a (possibly very large) array of bytes, which can be
+ * {@link Rendering rendered} as hex, Base64, or UTF-8 text. Only the lines that
+ * are actually visible are ever turned into text, so the cost of showing the
+ * bytes does not depend on how many there are.
+ * </p>
+ *
+ * <p>
+ * When placed in a {@link JScrollPane}, the view installs a header that
+ * summarizes the bytes (their number and SHA-256 digest) and offers a choice of
+ * rendering. Copying (Ctrl+C or the popup menu) exports the entire rendering,
+ * which is produced as the receiving side reads it.
+ * </p>
+ *
+ * @author K Udo Schuermann
+ */
+public class ByteView
+  extends JComponent
+  implements
+    Scrollable
+{
+  public enum Rendering
+  {
+    HEX( "Hex" ),
+    BASE64( "Base64" ),
+    UTF8( "UTF-8" );
+
+    private Rendering( final String label )
+    {
+      this.label = label;
+    }
+
+
+    @Override
+    public String toString()
+    {
+      return label;
+    }
+
+    private final String label;
+  }
+
+
+  public ByteView()
+  {
+    this( Rendering.UTF8 );
+  }
+
+
+  public ByteView( final Rendering rendering )
+  {
+    super();
+    this.rendering = rendering;
+    setFont( new Font( Font.MONOSPACED,
+                       Font.PLAIN,
+                       UIManager.getFont( "TextArea.font" ) == null
+                           ? 12
+                           : UIManager.getFont( "TextArea.font" ).getSize() ) );
+    setForeground( UIManager.getColor( "TextArea.foreground" ) );
+    setBackground( UIManager.getColor( "TextArea.background" ) );
+    setOpaque( true );
+    setFocusable( true );
+
+    renderingChoice = new JComboBox<>( Rendering.values() );
+    renderingChoice.setSelectedItem( rendering );
+    renderingChoice.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        setRendering( (Rendering)renderingChoice.getSelectedItem() );
+      }
+    } );
+    summary.setBorder( BorderFactory.createEmptyBorder( 0,
+                                                        4,
+                                                        0,
+                                                        4 ) );
+    header.add( BorderLayout.CENTER,
+                summary );
+    header.add( BorderLayout.EAST,
+                renderingChoice );
+    updateSummary();
+
+    getInputMap().put( KeyStroke.getKeyStroke( KeyEvent.VK_C,
+                                               Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx() ),
+                       "copy" );
+    getInputMap().put( KeyStroke.getKeyStroke( KeyEvent.VK_INSERT,
+                                               InputEvent.CTRL_DOWN_MASK ),
+                       "copy" );
+    getActionMap().put( "copy",
+                        new AbstractAction()
+                        {
+                          @Override
+                          public void actionPerformed( final ActionEvent e )
+                          {
+                            copy();
+                          }
+
+                          private static final long serialVersionUID = 4925318067415262389L;
+                        } );
+
+    addMouseListener( new MouseAdapter()
+    {
+      @Override
+      public void mousePressed( final MouseEvent e )
+      {
+        requestFocusInWindow();
+        if( e.isPopupTrigger() )
+          {
+            popup( e );
+          }
+      }
+
+
+      @Override
+      public void mouseReleased( final MouseEvent e )
+      {
+        if( e.isPopupTrigger() )
+          {
+            popup( e );
+          }
+      }
+    } );
+  }
+
+
+  /**
+   * Replaces the bytes on view. The array is not copied, so the caller must not
+   * modify it afterwards. May be called from any thread.
+   *
+   * @param bytes
+   *          The new bytes (null is the same as none).
+   */
+  public void setBytes( final byte[] bytes )
+  {
+    final byte[] b = (bytes == null
+        ? NO_BYTES
+        : bytes);
+    if( !SwingUtilities.isEventDispatchThread() )
+      {
+        SwingUtilities.invokeLater( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            setBytes( b );
+          }
+        } );
+        return;
+      }
+
+    this.bytes = b;
+    this.digest = null;
+    this.lineStarts = null;
+    updateSummary();
+    revalidate();
+    repaint();
+
+    final long version = ++bytesVersion;
+    new SwingWorker<byte[],Void>()
+    {
+      @Override
+      protected byte[] doInBackground()
+        throws NoSuchAlgorithmException
+      {
+        return MessageDigest.getInstance( "SHA-256" ).digest( b );
+      }
+
+
+      @Override
+      protected void done()
+      {
+        if( version == bytesVersion )
+          {
+            try
+              {
+                digest = get();
+              }
+            catch( InterruptedException | ExecutionException x )
+              {
+                digest = null;
+              }
+            updateSummary();
+          }
+      }
+    }.execute();
+  }
+
+
+  /**
+   * @return The bytes on view; the caller must not modify them.
+   */
+  public byte[] getBytes()
+  {
+    return bytes;
+  }
+
+
+  public Rendering getRendering()
+  {
+    return rendering;
+  }
+
+
+  public void setRendering( final Rendering rendering )
+  {
+    if( this.rendering != rendering )
+      {
+        this.rendering = rendering;
+        renderingChoice.setSelectedItem( rendering );
+        revalidate();
+        repaint();
+      }
+  }
+
+
+  /**
+   * Copies the entire rendering of the bytes to the system clipboard.
+   */
+  public void copy()
+  {
+    final TextTransferable t = createTransferable();
+    final Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+    clipboard.setContents( t,
+                           t );
+  }
+
+
+  /**
+   * @return A Transferable that streams the current rendering of the current
+   *         bytes.
+   */
+  public TextTransferable createTransferable()
+  {
+    final byte[] b = bytes;
+    final Rendering r = rendering;
+    final int[] starts = lineStarts( b,
+                                     r );
+    return new TextTransferable( new TextTransferable.Source()
+    {
+      @Override
+      public Reader open()
+      {
+        return new Reader()
+        {
+          @Override
+          public int read( final char[] cbuf,
+                           final int off,
+                           final int len )
+          {
+            while( position >= pending.length() )
+              {
+                if( line >= lineCount( b,
+                                       r,
+                                       starts ) )
+                  {
+                    return -1;
+                  }
+                pending.setLength( 0 );
+                position = 0;
+                if( line > 0 )
+                  {
+                    pending.append( '\n' );
+                  }
+                appendLine( pending,
+                            b,
+                            r,
+                            starts,
+                            line++ );
+              }
+            final int count = Math.min( len,
+                                        pending.length() - position );
+            pending.getChars( position,
+                              position + count,
+                              cbuf,
+                              off );
+            position += count;
+            return count;
+          }
+
+
+          @Override
+          public void close()
+          {
+            // Nothing to release
+          }
+
+          private int line;
+          private int position;
+          private final StringBuilder pending = new StringBuilder();
+        };
+      }
+    } );
+  }
+
+
+  @Override
+  public void addNotify()
+  {
+    super.addNotify();
+    // Like JTable, put the header into the enclosing scroll pane
+    final Container parent = getParent();
+    if( (parent instanceof JViewport) && (parent.getParent() instanceof JScrollPane) )
+      {
+        final JScrollPane scrollPane = (JScrollPane)parent.getParent();
+        if( scrollPane.getViewport().getView() == this )
+          {
+            scrollPane.setColumnHeaderView( header );
+          }
+      }
+  }
+
+
+  @Override
+  protected void paintComponent( final Graphics g )
+  {
+    final Rectangle clip = g.getClipBounds();
+    if( isOpaque() )
+      {
+        g.setColor( getBackground() );
+        g.fillRect( clip.x,
+                    clip.y,
+                    clip.width,
+                    clip.height );
+      }
+
+    final byte[] b = bytes;
+    final Rendering r = rendering;
+    final int[] starts = lineStarts( b,
+                                     r );
+    final FontMetrics fm = getFontMetrics( getFont() );
+    final int lineHeight = fm.getHeight();
+    final Insets insets = getInsets();
+    final int count = lineCount( b,
+                                 r,
+                                 starts );
+    final int first = Math.max( 0,
+                                (clip.y - insets.top) / lineHeight );
+    final int last = Math.min( count - 1,
+                               (clip.y + clip.height - insets.top) / lineHeight );
+
+    g.setColor( getForeground() );
+    g.setFont( getFont() );
+    final StringBuilder sb = new StringBuilder();
+    for( int line = first; line <= last; line++ )
+      {
+        sb.setLength( 0 );
+        appendLine( sb,
+                    b,
+                    r,
+                    starts,
+                    line );
+        g.drawString( sb.toString(),
+                      insets.left + MARGIN,
+                      insets.top + (line * lineHeight) + fm.getAscent() );
+      }
+  }
+
+
+  @Override
+  public Dimension getPreferredSize()
+  {
+    if( isPreferredSizeSet() )
+      {
+        return super.getPreferredSize();
+      }
+    final byte[] b = bytes;
+    final Rendering r = rendering;
+    final int[] starts = lineStarts( b,
+                                     r );
+    final FontMetrics fm = getFontMetrics( getFont() );
+    final Insets insets = getInsets();
+    final int columns;
+    switch( r )
+      {
+      case HEX:
+        columns = HEX_COLUMNS;
+        break;
+
+      case BASE64:
+        columns = Base64.encodedLength( Math.min( b.length,
+                                                  BASE64_BYTES_PER_LINE ) );
+        break;
+
+      default:
+        columns = maxLineLength;
+      }
+    return new Dimension( insets.left + insets.right + (2 * MARGIN) + (columns * fm.charWidth( 'm' )),
+                          insets.top + insets.bottom + (lineCount( b,
+                                                                 r,
+                                                                 starts ) * fm.getHeight()) );
+  }
+
+
+  @Override
+  public Dimension getPreferredScrollableViewportSize()
+  {
+    return getPreferredSize();
+  }
+
+
+  @Override
+  public int getScrollableUnitIncrement( final Rectangle visibleRect,
+                                         final int orientation,
+                                         final int direction )
+  {
+    final FontMetrics fm = getFontMetrics( getFont() );
+    return (orientation == SwingConstants.VERTICAL
+        ? fm.getHeight()
+        : fm.charWidth( 'm' ));
+  }
+
+
+  @Override
+  public int getScrollableBlockIncrement( final Rectangle visibleRect,
+                                          final int orientation,
+                                          final int direction )
+  {
+    return (orientation == SwingConstants.VERTICAL
+        ? visibleRect.height
+        : visibleRect.width);
+  }
+
+
+  @Override
+  public boolean getScrollableTracksViewportWidth()
+  {
+    final Container parent = getParent();
+    return (parent instanceof JViewport) && (parent.getWidth() > getPreferredSize().width);
+  }
+
+
+  @Override
+  public boolean getScrollableTracksViewportHeight()
+  {
+    final Container parent = getParent();
+    return (parent instanceof JViewport) && (parent.getHeight() > getPreferredSize().height);
+  }
+
+
+  private void popup( final MouseEvent e )
+  {
+    final JPopupMenu popup = new JPopupMenu();
+    final JMenuItem copy = new JMenuItem( "Copy" );
+    copy.addActionListener( new ActionListener()
+    {
+      @Override
+      public void actionPerformed( final ActionEvent e )
+      {
+        copy();
+      }
+    } );
+    popup.add( copy );
+    popup.addSeparator();
+    final ButtonGroup group = new ButtonGroup();
+    for( final Rendering r : Rendering.values() )
+      {
+        final JRadioButtonMenuItem item = new JRadioButtonMenuItem( r.toString(),
+                                                                    r == rendering );
+        item.addActionListener( new ActionListener()
+        {
+          @Override
+          public void actionPerformed( final ActionEvent e )
+          {
+            setRendering( r );
+          }
+        } );
+        group.add( item );
+        popup.add( item );
+      }
+    popup.show( e.getComponent(),
+                e.getX(),
+                e.getY() );
+  }
+
+
+  private void updateSummary()
+  {
+    final StringBuilder sb = new StringBuilder();
+    sb.append( String.format( "%,d bytes",
+                              bytes.length ) );
+    if( digest != null )
+      {
+        sb.append( " \u2014 SHA-256 " ).append( Transformations.toChars( digest ) );
+      }
+    else if( bytes.length > 0 )
+      {
+        sb.append( " \u2014 SHA-256 \u2026" );
+      }
+    summary.setText( sb.toString() );
+  }
+
+
+  /**
+   * @return For the UTF-8 rendering, the offset at which each line begins;
+   *         null for the other renderings, whose lines are of a fixed number of
+   *         bytes. Computed once for each array.
+   */
+  private int[] lineStarts( final byte[] b,
+                            final Rendering r )
+  {
+    if( r != Rendering.UTF8 )
+      {
+        return null;
+      }
+    int[] result = lineStarts;
+    if( (result == null) || (indexedBytes != b) )
+      {
+        result = indexLines( b );
+        lineStarts = result;
+        indexedBytes = b;
+      }
+    return result;
+  }
+
+
+  /**
+   * Breaks UTF-8 text into lines at each newline, and also wherever a line
+   * grows longer than {@link #MAX_LINE_BYTES} (but never inside a character).
+   * The last element of the result is the length of the array.
+   */
+  private int[] indexLines( final byte[] b )
+  {
+    int[] starts = new int[Math.max( 16,
+                                     b.length / 64 )];
+    int n = 0;
+    int longest = 0;
+    int start = 0;
+    while( start < b.length )
+      {
+        if( n + 1 >= starts.length )
+          {
+            starts = Arrays.copyOf( starts,
+                                    starts.length + (starts.length >> 1) );
+          }
+        starts[n++] = start;
+        final int limit = Math.min( b.length,
+                                    start + MAX_LINE_BYTES );
+        int end = start;
+        while( (end < limit) && (b[end] != '\n') )
+          {
+            end++;
+          }
+        if( end < limit )
+          {
+            // Found a newline: the next line starts after it
+            longest = Math.max( longest,
+                                end - start );
+            start = end + 1;
+          }
+        else
+          {
+            // Break a long line, but not in the middle of a character
+            while( (end < b.length) && (end > start + 1) && ((b[end] & 0xc0) == 0x80) )
+              {
+                end--;
+              }
+            longest = Math.max( longest,
+                                end - start );
+            start = end;
+          }
+      }
+    starts = Arrays.copyOf( starts,
+                            n + 1 );
+    starts[n] = b.length;
+    maxLineLength = longest;
+    return starts;
+  }
+
+
+  private static int lineCount( final byte[] b,
+                                final Rendering r,
+                                final int[] starts )
+  {
+    switch( r )
+      {
+      case HEX:
+        return (b.length + HEX_BYTES_PER_LINE - 1) / HEX_BYTES_PER_LINE;
+
+      case BASE64:
+        return (b.length + BASE64_BYTES_PER_LINE - 1) / BASE64_BYTES_PER_LINE;
+
+      default:
+        return starts.length - 1;
+      }
+  }
+
+
+  private static void appendLine( final StringBuilder sb,
+                                  final byte[] b,
+                                  final Rendering r,
+                                  final int[] starts,
+                                  final int line )
+  {
+    switch( r )
+      {
+      case HEX:
+        {
+          final int start = line * HEX_BYTES_PER_LINE;
+          final int end = Math.min( b.length,
+                                    start + HEX_BYTES_PER_LINE );
+          final String offset = Integer.toHexString( start );
+          for( int i = offset.length(); i < 8; i++ )
+            {
+              sb.append( '0' );
+            }
+          sb.append( offset ).append( "  " );
+          for( int i = start; i < start + HEX_BYTES_PER_LINE; i++ )
+            {
+              if( i < end )
+                {
+                  sb.append( HEX[(b[i] >> 4) & 0x0f] ).append( HEX[b[i] & 0x0f] ).append( ' ' );
+                }
+              else
+                {
+                  sb.append( "   " );
+                }
+            }
+          sb.append( ' ' );
+          for( int i = start; i < end; i++ )
+            {
+              final int c = b[i] & 0xff;
+              sb.append( ((c >= 0x20) && (c < 0x7f))
+                  ? (char)c
+                  : '.' );
+            }
+          break;
+        }
+
+      case BASE64:
+        {
+          final int start = line * BASE64_BYTES_PER_LINE;
+          Base64.appendTo( sb,
+                           b,
+                           start,
+                           Math.min( BASE64_BYTES_PER_LINE,
+                                     b.length - start ) );
+          break;
+        }
+
+      default:
+        {
+          final int start = starts[line];
+          int end = starts[line + 1];
+          while( (end > start) && ((b[end - 1] == '\n') || (b[end - 1] == '\r')) )
+            {
+              end--;
+            }
+          sb.append( new String( b,
+                                 start,
+                                 end - start,
+                                 UTF8 ) );
+        }
+      }
+  }
+
+  private byte[] bytes = NO_BYTES;
+  private byte[] digest;
+  private long bytesVersion;
+  private Rendering rendering;
+  private int[] lineStarts;
+  private byte[] indexedBytes;
+  private int maxLineLength;
+  //
+  private final JLabel summary = new JLabel();
+  private final JComboBox<Rendering> renderingChoice;
+  private final JPanel header = new JPanel( new BorderLayout() );
+  //
+  private static final byte[] NO_BYTES = new byte[0];
+  private static final int MARGIN = 2;
+  private static final int HEX_BYTES_PER_LINE = 16;
+  private static final int HEX_COLUMNS = 8 + 2 + (3 * HEX_BYTES_PER_LINE) + 1 + HEX_BYTES_PER_LINE;
+  private static final int BASE64_BYTES_PER_LINE = 57; // 76 characters, as in MIME
+  private static final int MAX_LINE_BYTES = 512;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final long serialVersionUID = -1934655014618310734L;
+}
@@ -0,0 +1,161 @@
+package com.ringlord.swing;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
+
+
+/**
+ * Provides static services for moving large amounts of text into and out of
+ * Swing {@link Document}s without creating full-size temporary copies.
+ *
+ * @author K Udo Schuermann
+ */
+public class Documents
+{
+  /**
+   * The number of characters handed to the Document in each step.
+   */
+  public static final int CHUNK_SIZE = 16 * 1024;
+
+
+  /**
+   * <p>
+   * Replaces the entire content of a text component's Document with the
+   * given text, much like {@link JTextComponent#setText(String)} but without
+   * first converting the text into one large String. The text is inserted in
+   * chunks of {@link #CHUNK_SIZE} characters, so that the only temporary
+   * copies are of that size.
+   * </p>
+   *
+   * <p>
+   * Must be called on the event dispatch thread. Listeners on the Document
+   * will see one removal followed by one or more insertions; they should
+   * coalesce these if they perform expensive work in response.
+   * </p>
+   *
+   * @param component
+   *          The text component whose content to replace.
+   * @param text
+   *          The new content.
+   */
+  public static void setText( final JTextComponent component,
+			      final CharSequence text )
+  {
+    final Document doc = component.getDocument();
+    try
+      {
+	if( doc.getLength() > 0 )
+	  {
+	    doc.remove( 0,
+			doc.getLength() );
+	  }
+	final int len = text.length();
+	for( int start = 0; start < len; start += CHUNK_SIZE )
+	  {
+	    final int end = Math.min( len,
+				      start + CHUNK_SIZE );
+	    doc.insertString( start,
+			      text.subSequence( start,
+						end ).toString(),
+			      null );
+	  }
+      }
+    catch( final BadLocationException x )
+      {
+	// Cannot happen: we only ever append at the end of the Document
+	throw new IllegalStateException( x );
+      }
+  }
+
+
+  /**
+   * <p>
+   * Provides a Reader over the content of a Document, which reads the Document
+   * in chunks of up to {@link #CHUNK_SIZE} characters, each under the
+   * Document's read lock, instead of copying it all at once.
+   * </p>
+   *
+   * <p>
+   * May be used on any thread. Edits made to the Document while it is being
+   * read become visible to the Reader from the next chunk on.
+   * </p>
+   *
+   * @param document
+   *          The Document to be read.
+   * @return A Reader over the content of the Document.
+   */
+  public static Reader reader( final Document document )
+  {
+    return new Reader()
+    {
+      @Override
+      public int read( final char[] cbuf,
+		       final int off,
+		       final int len )
+	throws IOException
+      {
+	if( len == 0 )
+	  {
+	    return 0;
+	  }
+	final int[] count = new int[1];
+	document.render( new Runnable()
+	{
+	  @Override
+	  public void run()
+	  {
+	    final int available = document.getLength() - position;
+	    if( available <= 0 )
+	      {
+		count[0] = -1;
+		return;
+	      }
+	    try
+	      {
+		document.getText( position,
+				  Math.min( available,
+					    Math.min( len,
+						      CHUNK_SIZE ) ),
+				  segment );
+		System.arraycopy( segment.array,
+				  segment.offset,
+				  cbuf,
+				  off,
+				  segment.count );
+		count[0] = segment.count;
+	      }
+	    catch( final BadLocationException x )
+	      {
+		count[0] = -1;
+	      }
+	  }
+	} );
+	if( count[0] > 0 )
+	  {
+	    position += count[0];
+	  }
+	return count[0];
+      }
+
+
+      @Override
+      public void close()
+      {
+	// Nothing to release
+      }
+
+      private int position;
+      private final Segment segment = new Segment();
+    };
+  }
+
+
+  private Documents()
+  {
+  }
+}
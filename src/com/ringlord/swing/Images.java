@@ -4,19 +4,43 @@ import java.awt.Window;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
 
 
 /**
+ * <p>
  * Provides various static services for loading images and icons.
+ * </p>
+ *
+ * <p>
+ * All methods may be called from any thread. Loaded images are cached: the
+ * most recently used ones (up to {@link #setMaxBytes(long) a limit} on their
+ * combined size) are held firmly, all others only softly, so that the garbage
+ * collector may reclaim them when memory runs short. An image that is requested
+ * by several threads at once is decoded only once. Images that will be needed
+ * soon can be {@link #preload(Runnable, String...) decoded in the background}.
+ * </p>
  *
  * @author K Udo Schuermann
  */
@@ -43,39 +67,49 @@ public class Images
    */
   public static BufferedImage getImage( final String name )
   {
-    BufferedImage result = images.get( name );
-    if( result == null )
+    expungeStaleEntries();
+    final BufferedImage cached = cachedImage( name );
+    if( cached != null )
+      {
+	hits.incrementAndGet();
+	return cached;
+      }
+
+    final CompletableFuture<BufferedImage> pending = new CompletableFuture<>();
+    final CompletableFuture<BufferedImage> inFlight = loading.putIfAbsent( name,
+									   pending );
+    if( inFlight != null )
       {
-	final InputStream f = Images.class.getResourceAsStream( name );
-	if( f != null )
+	// Another thread is decoding this image already
+	hits.incrementAndGet();
+	return await( inFlight );
+      }
+
+    BufferedImage result = null;
+    try
+      {
+	// It may have been cached while we weren't looking
+	result = cachedImage( name );
+	if( result == null )
 	  {
-	    try
-	      {
-		result = ImageIO.read( f );
-		images.put( name,
-		            result );
-	      }
-	    catch( final IOException x )
-	      {
-		x.printStackTrace();
-	      }
-	    finally
+	    misses.incrementAndGet();
+	    result = load( name );
+	    if( result != null )
 	      {
-		try
-		  {
-		    f.close();
-		  }
-		catch( final IOException e )
-		  {
-		    // cleanup failed, don't bother complaining
-		  }
+		cache( name,
+		       result );
 	      }
 	  }
 	else
 	  {
-	    Logger.getGlobal().warning( "Missing image: " + name );
+	    hits.incrementAndGet();
 	  }
       }
+    finally
+      {
+	loading.remove( name );
+	pending.complete( result );
+      }
     return result;
   }
 
@@ -93,7 +127,10 @@ public class Images
    */
   public static Icon getIcon( final String name )
   {
-    ImageIcon result = icons.get( name );
+    final SoftReference<ImageIcon> ref = icons.get( name );
+    ImageIcon result = (ref == null
+	? null
+	: ref.get());
     if( result == null )
       {
 	final BufferedImage image = getImage( name );
@@ -101,9 +138,68 @@ public class Images
 	  {
 	    result = new ImageIcon( image );
 	    icons.put( name,
-		       result );
+		       new SoftReference<>( result ) );
+	  }
+      }
+    return result;
+  }
+
+
+  /**
+   * Decodes the named images in the background (several at a time), so that a
+   * later {@link #getImage(String)} or {@link #getIcon(String)} finds them in
+   * the cache.
+   *
+   * @param names
+   *          The names of the resources.
+   * @return A Future that completes once all of the images have been loaded
+   *         (or found missing).
+   */
+  public static Future<?> preload( final String... names )
+  {
+    final CompletableFuture<?>[] all = new CompletableFuture<?>[names.length];
+    for( int i = 0; i < names.length; i++ )
+      {
+	final String name = names[i];
+	all[i] = CompletableFuture.runAsync( new Runnable()
+	{
+	  @Override
+	  public void run()
+	  {
+	    getImage( name );
 	  }
+	},
+					     loader );
+      }
+    return CompletableFuture.allOf( all );
+  }
+
+
+  /**
+   * Like {@link #preload(String...)}, but also runs some code on the Swing
+   * event dispatch thread once all of the images are available, which is the
+   * natural place to put them into the user interface.
+   *
+   * @param whenLoaded
+   *          Runs on the event dispatch thread after the images have been
+   *          loaded.
+   * @param names
+   *          The names of the resources.
+   * @return A Future that completes once all of the images have been loaded
+   *         (or found missing).
+   */
+  public static Future<?> preload( final Runnable whenLoaded,
+				   final String... names )
+  {
+    final CompletableFuture<?> result = (CompletableFuture<?>)preload( names );
+    result.thenRun( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+	SwingUtilities.invokeLater( whenLoaded );
       }
+    } );
     return result;
   }
 
@@ -125,7 +221,7 @@ public class Images
    *         Window.
    */
   public static boolean setWindowIcons( final Window window,
-	                                final String... availableNames )
+					final String... availableNames )
   {
     final List<BufferedImage> images = new ArrayList<>();
     for( final String name : availableNames )
@@ -144,6 +240,257 @@ public class Images
     return true;
   }
 
-  private static final Map<String,BufferedImage> images = new HashMap<>();
-  private static final Map<String,ImageIcon> icons = new HashMap<>();
+
+  /**
+   * @param maxBytes
+   *          The combined (approximate) size of the images that are held
+   *          firmly in memory; beyond that they are held only softly. The
+   *          default is 16MB.
+   */
+  public static void setMaxBytes( final long maxBytes )
+  {
+    synchronized( recent )
+      {
+	Images.maxBytes = maxBytes;
+	trim();
+      }
+  }
+
+
+  /**
+   * @return The number of requests that were served from the cache (or by
+   *         waiting on a load already in progress).
+   */
+  public static long getHits()
+  {
+    return hits.get();
+  }
+
+
+  /**
+   * @return The number of requests that required an image to be loaded.
+   */
+  public static long getMisses()
+  {
+    return misses.get();
+  }
+
+
+  /**
+   * @return The number of cached images that were reclaimed by the garbage
+   *         collector.
+   */
+  public static long getEvictions()
+  {
+    return evictions.get();
+  }
+
+
+  /**
+   * @return The combined (approximate) size of the images held firmly.
+   */
+  public static long getRetainedBytes()
+  {
+    synchronized( recent )
+      {
+	return retainedBytes;
+      }
+  }
+
+
+  private static BufferedImage load( final String name )
+  {
+    final InputStream f = Images.class.getResourceAsStream( name );
+    if( f == null )
+      {
+	Logger.getGlobal().warning( "Missing image: " + name );
+	return null;
+      }
+    try
+      {
+	return ImageIO.read( f );
+      }
+    catch( final IOException x )
+      {
+	x.printStackTrace();
+	return null;
+      }
+    finally
+      {
+	try
+	  {
+	    f.close();
+	  }
+	catch( final IOException e )
+	  {
+	    // cleanup failed, don't bother complaining
+	  }
+      }
+  }
+
+
+  private static BufferedImage cachedImage( final String name )
+  {
+    final CachedImage ref = images.get( name );
+    if( ref == null )
+      {
+	return null;
+      }
+    final BufferedImage result = ref.get();
+    if( result != null )
+      {
+	retain( name,
+		result );
+      }
+    return result;
+  }
+
+
+  private static void cache( final String name,
+			     final BufferedImage image )
+  {
+    images.put( name,
+		new CachedImage( name,
+				 image ) );
+    retain( name,
+	    image );
+  }
+
+
+  /**
+   * Holds the image firmly as one of the most recently used, and lets go of the
+   * least recently used ones beyond the limit.
+   */
+  private static void retain( final String name,
+			      final BufferedImage image )
+  {
+    synchronized( recent )
+      {
+	final BufferedImage previous = recent.put( name,
+						   image );
+	if( previous != null )
+	  {
+	    retainedBytes -= sizeOf( previous );
+	  }
+	retainedBytes += sizeOf( image );
+	trim();
+      }
+  }
+
+
+  private static void trim()
+  {
+    final Iterator<BufferedImage> i = recent.values().iterator();
+    while( (retainedBytes > maxBytes) && i.hasNext() )
+      {
+	retainedBytes -= sizeOf( i.next() );
+	i.remove();
+      }
+  }
+
+
+  private static long sizeOf( final BufferedImage image )
+  {
+    return (long)image.getWidth() * image.getHeight() * 4;
+  }
+
+
+  /**
+   * Removes the entries whose images the garbage collector has reclaimed.
+   */
+  private static void expungeStaleEntries()
+  {
+    CachedImage stale;
+    while( (stale = (CachedImage)reclaimed.poll()) != null )
+      {
+	if( images.remove( stale.name,
+			   stale ) )
+	  {
+	    evictions.incrementAndGet();
+	  }
+	final SoftReference<ImageIcon> icon = icons.get( stale.name );
+	if( (icon != null) && (icon.get() == null) )
+	  {
+	    icons.remove( stale.name,
+			  icon );
+	  }
+      }
+  }
+
+
+  private static BufferedImage await( final Future<BufferedImage> f )
+  {
+    boolean isInterrupted = false;
+    try
+      {
+	while( true )
+	  {
+	    try
+	      {
+		return f.get();
+	      }
+	    catch( final InterruptedException x )
+	      {
+		isInterrupted = true;
+	      }
+	    catch( final ExecutionException x )
+	      {
+		return null;
+	      }
+	  }
+      }
+    finally
+      {
+	if( isInterrupted )
+	  {
+	    Thread.currentThread().interrupt();
+	  }
+      }
+  }
+
+
+  private static final class CachedImage
+    extends SoftReference<BufferedImage>
+  {
+    CachedImage( final String name,
+		 final BufferedImage image )
+    {
+      super( image,
+	     reclaimed );
+      this.name = name;
+    }
+
+    final String name;
+  }
+
+  private static final Map<String,CachedImage> images = new ConcurrentHashMap<>();
+  private static final Map<String,SoftReference<ImageIcon>> icons = new ConcurrentHashMap<>();
+  private static final Map<String,CompletableFuture<BufferedImage>> loading = new ConcurrentHashMap<>();
+  private static final ReferenceQueue<BufferedImage> reclaimed = new ReferenceQueue<>();
+  private static final Map<String,BufferedImage> recent = new LinkedHashMap<>( 16,
+										0.75f,
+										true );
+  private static long retainedBytes; // guarded by recent
+  private static long maxBytes = 16 * 1024 * 1024; // guarded by recent
+  //
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+  //
+  private static final ExecutorService loader = Executors.newFixedThreadPool( Math.min( 4,
+										       Runtime.getRuntime()
+											      .availableProcessors() ),
+									      new ThreadFactory()
+  {
+    @Override
+    public Thread newThread( final Runnable r )
+    {
+      final Thread t = new Thread( r,
+				   "Image loader " + count.incrementAndGet() );
+      t.setDaemon( true );
+      return t;
+    }
+
+    private final AtomicInteger count = new AtomicInteger();
+  } );
 }
@@ -0,0 +1,240 @@
+package com.ringlord.swing;
+
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * <p>
+ * A {@link Transferable} for (possibly very large) text, which is produced by
+ * a {@link Source} only when, and as, the receiving side reads it. Besides the
+ * usual {@link DataFlavor#stringFlavor} (for which the text must be assembled
+ * in full), the text is offered as a Reader and as a UTF-8 encoded InputStream,
+ * which are streamed.
+ * </p>
+ *
+ * <p>
+ * Example: Copying the content of a large Document to the clipboard
+ * </p>
+ *
+ * <pre>
+ * final TextTransferable t = new TextTransferable( new TextTransferable.Source()
+ * {
+ *   &#64;Override
+ *   public Reader open()
+ *   {
+ *     return Documents.reader( document );
+ *   }
+ * } );
+ * Toolkit.getDefaultToolkit().getSystemClipboard().setContents( t,
+ *                                                               t );
+ * </pre>
+ *
+ * @author K Udo Schuermann
+ */
+public class TextTransferable
+  implements
+    Transferable,
+    ClipboardOwner
+{
+  /**
+   * Produces the text, each time it is asked for.
+   */
+  public interface Source
+  {
+    /**
+     * @return A new Reader positioned at the beginning of the text.
+     * @throws IOException
+     */
+    Reader open()
+      throws IOException;
+  }
+
+
+  public TextTransferable( final Source source )
+  {
+    super();
+    this.source = source;
+  }
+
+
+  @Override
+  public DataFlavor[] getTransferDataFlavors()
+  {
+    return new DataFlavor[]{DataFlavor.stringFlavor,READER_FLAVOR,UTF8_STREAM_FLAVOR};
+  }
+
+
+  @Override
+  public boolean isDataFlavorSupported( final DataFlavor flavor )
+  {
+    for( final DataFlavor f : getTransferDataFlavors() )
+      {
+        if( f.equals( flavor ) )
+          {
+            return true;
+          }
+      }
+    return false;
+  }
+
+
+  @Override
+  public Object getTransferData( final DataFlavor flavor )
+    throws UnsupportedFlavorException,
+      IOException
+  {
+    if( DataFlavor.stringFlavor.equals( flavor ) )
+      {
+        final StringBuilder sb = new StringBuilder();
+        try( final Reader r = source.open() )
+          {
+            final char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while( (count = r.read( buffer )) > -1 )
+              {
+                sb.append( buffer,
+                           0,
+                           count );
+              }
+          }
+        return sb.toString();
+      }
+    if( READER_FLAVOR.equals( flavor ) )
+      {
+        return source.open();
+      }
+    if( UTF8_STREAM_FLAVOR.equals( flavor ) )
+      {
+        return new EncodingInputStream( source.open() );
+      }
+    throw new UnsupportedFlavorException( flavor );
+  }
+
+
+  @Override
+  public void lostOwnership( final Clipboard clipboard,
+                             final Transferable contents )
+  {
+    // Nothing is held that would need releasing
+  }
+
+
+  /**
+   * Encodes the characters of a Reader as UTF-8 bytes, a buffer at a time.
+   */
+  private static class EncodingInputStream
+    extends InputStream
+  {
+    EncodingInputStream( final Reader reader )
+    {
+      super();
+      this.reader = reader;
+      chars.flip();
+      bytes.flip();
+    }
+
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      final byte[] b = new byte[1];
+      return (read( b,
+                    0,
+                    1 ) < 0
+          ? -1
+          : b[0] & 0xff);
+    }
+
+
+    @Override
+    public int read( final byte[] b,
+                     final int off,
+                     final int len )
+      throws IOException
+    {
+      if( len == 0 )
+        {
+          return 0;
+        }
+      while( !bytes.hasRemaining() )
+        {
+          if( isFlushed )
+            {
+              return -1;
+            }
+          fill();
+        }
+      final int count = Math.min( len,
+                                  bytes.remaining() );
+      bytes.get( b,
+                 off,
+                 count );
+      return count;
+    }
+
+
+    private void fill()
+      throws IOException
+    {
+      chars.compact();
+      final int count = (isEndOfInput
+          ? -1
+          : reader.read( chars ));
+      if( count < 0 )
+        {
+          isEndOfInput = true;
+        }
+      chars.flip();
+
+      bytes.clear();
+      encoder.encode( chars,
+                      bytes,
+                      isEndOfInput );
+      if( isEndOfInput && !chars.hasRemaining() )
+        {
+          encoder.flush( bytes );
+          isFlushed = true;
+        }
+      bytes.flip();
+    }
+
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      reader.close();
+    }
+
+    private boolean isEndOfInput;
+    private boolean isFlushed;
+    private final Reader reader;
+    private final CharBuffer chars = CharBuffer.allocate( BUFFER_SIZE );
+    private final CharsetEncoder encoder = UTF8.newEncoder()
+                                               .onMalformedInput( CodingErrorAction.REPLACE )
+                                               .onUnmappableCharacter( CodingErrorAction.REPLACE );
+    private final ByteBuffer bytes = ByteBuffer.allocate( (int)Math.ceil( BUFFER_SIZE * encoder.maxBytesPerChar() ) );
+  }
+
+  private final Source source;
+  //
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final DataFlavor READER_FLAVOR = new DataFlavor( "text/plain; class=java.io.Reader",
+                                                                  "Plain Text" );
+  private static final DataFlavor UTF8_STREAM_FLAVOR = new DataFlavor( "text/plain; charset=UTF-8; class=java.io.InputStream",
+                                                                       "Plain Text (UTF-8)" );
+}